@@ -0,0 +1,136 @@
+package org.jenkinsci.plugins.environmentdashboard.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jenkinsci.plugins.environmentdashboard.entity.Build;
+import org.jenkinsci.plugins.environmentdashboard.entity.DeploymentEvent;
+import org.jenkinsci.plugins.environmentdashboard.store.DashboardStore;
+import org.jenkinsci.plugins.environmentdashboard.store.FileDashboardStore;
+import org.jenkinsci.plugins.environmentdashboard.store.SegmentDashboardStore;
+import org.jenkinsci.plugins.environmentdashboard.utils.DBConnection;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A dashboard store in a temporary directory, seeded with a year of history
+ * spread evenly over every environment and component. The store type and
+ * volumes can be changed with JMH parameters, e.g.
+ * <code>-p store=memory -p envs=5 -p comps=50</code>.
+ *
+ * Deployment k of a component to an environment has the build URL
+ * {@link #url(int, int)}, so benchmarks can address seeded rows.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkDatabase {
+
+    static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    /* Deployments written per transaction while seeding */
+    private static final int SEED_BATCH = 1000;
+
+    @Param({ "h2", "memory", "file", "segment" })
+    public String store;
+
+    @Param("50")
+    public int envs;
+
+    @Param("500")
+    public int comps;
+
+    @Param("1000000")
+    public int historyRows;
+
+    private File dir;
+
+    @Setup(Level.Trial)
+    public void seed() throws Exception {
+        dir = File.createTempFile("env-dashboard-bench", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Could not create " + dir);
+        }
+        // Must be set before the store is first used in this JVM.
+        System.setProperty(DashboardStore.class.getName() + ".type", store);
+        System.setProperty(DBConnection.class.getName() + ".url",
+                "jdbc:h2:" + new File(dir, "jenkins_dashboard") + ";MVCC=true");
+        System.setProperty(FileDashboardStore.class.getName() + ".file", new File(dir, "jenkins_dashboard.log").getPath());
+        System.setProperty(SegmentDashboardStore.class.getName() + ".dir", new File(dir, "segments").getPath());
+
+        DashboardStore dashboardStore = DashboardStore.get();
+        dashboardStore.open();
+        long now = System.currentTimeMillis();
+        long spacing = Math.max(1, 365 * DAY_MILLIS / Math.max(1, historyRows));
+        List<DeploymentEvent> batch = new ArrayList<DeploymentEvent>(SEED_BATCH);
+        for (int row = 0; row < historyRows; row++) {
+            int pair = row % pairs();
+            batch.add(event(pair, row / pairs(), now - (historyRows - row) * spacing));
+            if (batch.size() == SEED_BATCH) {
+                dashboardStore.recordDeployments(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            dashboardStore.recordDeployments(batch);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void drop() {
+        DashboardStore.get().close();
+        delete(dir);
+    }
+
+    /**
+     * @return the number of environment and component pairs
+     */
+    public int pairs() {
+        return envs * comps;
+    }
+
+    public String env(int pair) {
+        return "env" + (pair / comps);
+    }
+
+    public String comp(int pair) {
+        return "comp" + (pair % comps);
+    }
+
+    /**
+     * @return the build URL of deployment k of a pair
+     */
+    public String url(int pair, int k) {
+        return "job/deploy-" + comp(pair) + "/" + k + "/";
+    }
+
+    /**
+     * @return deployment k of a pair, as DashboardBuilder would build it
+     */
+    public Build build(int pair, int k, String result) {
+        return new Build(String.valueOf(k), url(pair, k), result, env(pair), comp(pair), "", "");
+    }
+
+    /**
+     * @return the PRE event recording deployment k of a pair at a time
+     */
+    public DeploymentEvent event(int pair, int k, long timestamp) {
+        return new DeploymentEvent("PRE", env(pair) + '=' + comp(pair), build(pair, k, "SUCCESS"),
+                Collections.<String, String> emptyMap(), timestamp);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,112 @@
+package org.jenkinsci.plugins.environmentdashboard.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.jenkinsci.plugins.environmentdashboard.entity.Build;
+import org.jenkinsci.plugins.environmentdashboard.entity.DeploymentEvent;
+import org.jenkinsci.plugins.environmentdashboard.store.DashboardStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Write path of the dashboard store against a seeded
+ * {@link BenchmarkDatabase}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DashboardStoreBenchmark {
+
+    /* Rows past retention added before each pruneDeployments call */
+    private static final int EXPIRED_ROWS = 1000;
+
+    /* Retention period of the pruneDeployments benchmark, in days */
+    private static final int RETENTION_DAYS = 365;
+
+    @State(Scope.Thread)
+    public static class Writer {
+        final DashboardStore store = DashboardStore.get();
+        final Random random = new Random(42);
+        int next = 0;
+    }
+
+    @State(Scope.Thread)
+    public static class ExpiredRows {
+        @Setup(Level.Invocation)
+        public void addExpiredRows(BenchmarkDatabase db, Writer writer) throws IOException {
+            long expired = System.currentTimeMillis() - (RETENTION_DAYS + 35) * BenchmarkDatabase.DAY_MILLIS;
+            List<DeploymentEvent> events = new ArrayList<DeploymentEvent>(EXPIRED_ROWS);
+            for (int i = 0; i < EXPIRED_ROWS; i++) {
+                events.add(db.event(writer.random.nextInt(db.pairs()), -1 - writer.next++, expired + i));
+            }
+            writer.store.recordDeployments(events);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class RunningBuild {
+        int pair;
+        int buildNum;
+
+        @Setup(Level.Invocation)
+        public void startBuild(BenchmarkDatabase db, Writer writer) throws IOException {
+            // A fresh running build every call; a POST for a finished one is a no-op on some stores.
+            pair = writer.random.nextInt(db.pairs());
+            buildNum = db.historyRows + writer.next++;
+            record(writer, "PRE", db.env(pair) + '=' + db.comp(pair), db.build(pair, buildNum, "RUNNING"));
+        }
+    }
+
+    /**
+     * A PRE update: a new deployment of a random component.
+     */
+    @Benchmark
+    public long addBuild(BenchmarkDatabase db, Writer writer) throws IOException {
+        int pair = writer.random.nextInt(db.pairs());
+        return record(writer, "PRE", db.env(pair) + '=' + db.comp(pair),
+                db.build(pair, db.historyRows + writer.next++, "RUNNING"));
+    }
+
+    /**
+     * A POST update: a running deployment of a random component finished.
+     * Only the POST is timed; its PRE is recorded in setup.
+     */
+    @Benchmark
+    public long updateBuild(BenchmarkDatabase db, Writer writer, RunningBuild running) throws IOException {
+        int pair = running.pair;
+        return record(writer, "POST", db.env(pair) + '=' + db.comp(pair), db.build(pair, running.buildNum, "SUCCESS"));
+    }
+
+    /**
+     * Retention removing a thousand expired rows from the seeded history.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 20, batchSize = 1)
+    public int pruneDeployments(Writer writer, ExpiredRows expired) throws IOException {
+        return writer.store.pruneDeployments(RETENTION_DAYS, EXPIRED_ROWS);
+    }
+
+    private static long record(Writer writer, String runTime, String envComp, Build build) throws IOException {
+        writer.store.recordDeployments(Collections.singletonList(new DeploymentEvent(runTime, envComp, build,
+                Collections.<String, String> emptyMap(), System.currentTimeMillis())));
+        return writer.store.getRevision();
+    }
+}
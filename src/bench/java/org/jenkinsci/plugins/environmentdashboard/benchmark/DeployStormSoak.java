@@ -0,0 +1,274 @@
+package org.jenkinsci.plugins.environmentdashboard.benchmark;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Cause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
+import hudson.tasks.BuildWrapper;
+import hudson.tasks.BuildWrapperDescriptor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jenkinsci.plugins.environmentdashboard.DashboardBuilder;
+import org.jenkinsci.plugins.environmentdashboard.EnvDashboardView;
+import org.jenkinsci.plugins.environmentdashboard.ListItem;
+import org.jenkinsci.plugins.environmentdashboard.entity.Deployment;
+import org.jenkinsci.plugins.environmentdashboard.store.DashboardStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+import static org.junit.Assert.*;
+
+/**
+ * Deploy storm: hundreds of concurrent builds going through
+ * DashboardBuilder's setUp and tearDown (PRE, then POST or NODEPLOY) against
+ * the dashboard store of a test Jenkins, while other threads keep rendering a
+ * dashboard view. Prints throughput, p50/p99 write latency, failed writes,
+ * lost updates and stale dashboard cells, and fails if any write was failed
+ * or lost.
+ *
+ * Not part of the normal test run; start it with
+ * <code>mvn -Pbenchmark test -Dtest=DeployStormSoak</code>. The load can be
+ * tuned with the system properties
+ * org.jenkinsci.plugins.environmentdashboard.benchmark.DeployStormSoak.builds,
+ * .executors, .envs, .comps, .renderers and .noDeployPercent; pick the store
+ * with -Dorg.jenkinsci.plugins.environmentdashboard.store.DashboardStore.type.
+ */
+public class DeployStormSoak {
+
+    private static final String PREFIX = DeployStormSoak.class.getName();
+
+    private static final int BUILDS = Integer.getInteger(PREFIX + ".builds", 1000);
+
+    private static final int EXECUTORS = Integer.getInteger(PREFIX + ".executors", 200);
+
+    private static final int ENVS = Integer.getInteger(PREFIX + ".envs", 10);
+
+    private static final int COMPS = Integer.getInteger(PREFIX + ".comps", 50);
+
+    private static final int RENDERERS = Integer.getInteger(PREFIX + ".renderers", 4);
+
+    private static final int NODEPLOY_PERCENT = Integer.getInteger(PREFIX + ".noDeployPercent", 10);
+
+    /* What DashboardBuilder logs after a successful write */
+    private static final String UPDATED = "Updated Dashboard DB";
+
+    /* Latency of every dashboard setUp and tearDown, in microseconds */
+    private static final List<Long> writeLatencies = Collections.synchronizedList(new ArrayList<Long>());
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void deployStorm() throws Exception {
+        j.jenkins.setNumExecutors(EXECUTORS);
+        List<FreeStyleProject> projects = new ArrayList<FreeStyleProject>();
+        for (int c = 0; c < COMPS; c++) {
+            FreeStyleProject p = j.createFreeStyleProject("comp" + c);
+            p.setConcurrentBuild(true);
+            p.addProperty(new ParametersDefinitionProperty(
+                    new StringParameterDefinition("TARGET_ENV", "env0", ""),
+                    new StringParameterDefinition("UPDATE_ENV_DASH", "true", ""),
+                    new StringParameterDefinition("SEQ", "", "")));
+            p.getBuildWrappersList().add(new TimedWrapper(new DashboardBuilder("$TARGET_ENV", "comp" + c,
+                    "$BUILD_NUMBER", "", "", false, Collections.<ListItem> emptyList())));
+            projects.add(p);
+        }
+        j.jenkins.addView(new EnvDashboardView("storm", "", "", "10"));
+
+        final AtomicInteger renders = new AtomicInteger();
+        final AtomicInteger renderFailures = new AtomicInteger();
+        final AtomicBoolean done = new AtomicBoolean(false);
+        List<Thread> renderers = new ArrayList<Thread>();
+        for (int r = 0; r < RENDERERS; r++) {
+            Thread renderer = new Thread("dashboard renderer " + r) {
+                @Override
+                public void run() {
+                    JenkinsRule.WebClient wc = j.createWebClient();
+                    wc.setJavaScriptEnabled(false);
+                    while (!done.get()) {
+                        try {
+                            wc.goTo("view/storm/");
+                            renders.incrementAndGet();
+                        } catch (Exception e) {
+                            renderFailures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            renderer.start();
+            renderers.add(renderer);
+        }
+
+        // Schedule the storm; SEQ keeps the queue from merging identical builds.
+        Random random = new Random(42);
+        long start = System.nanoTime();
+        List<Future<FreeStyleBuild>> futures = new ArrayList<Future<FreeStyleBuild>>();
+        for (int i = 0; i < BUILDS; i++) {
+            boolean deploy = random.nextInt(100) >= NODEPLOY_PERCENT;
+            futures.add(projects.get(random.nextInt(COMPS)).scheduleBuild2(0, new Cause.UserIdCause(),
+                    new ParametersAction(
+                            new StringParameterValue("TARGET_ENV", "env" + random.nextInt(ENVS)),
+                            new StringParameterValue("UPDATE_ENV_DASH", String.valueOf(deploy)),
+                            new StringParameterValue("SEQ", String.valueOf(i)))));
+        }
+        List<FreeStyleBuild> builds = new ArrayList<FreeStyleBuild>();
+        for (Future<FreeStyleBuild> future : futures) {
+            builds.add(future.get());
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        done.set(true);
+        for (Thread renderer : renderers) {
+            renderer.join();
+        }
+
+        int failedWrites = 0;
+        int lostUpdates = 0;
+        for (FreeStyleBuild build : builds) {
+            int writes = 0;
+            boolean failed = false;
+            for (String line : build.getLog(Integer.MAX_VALUE)) {
+                if (line.startsWith("Pre-Build Update: ") || line.startsWith("Post-Build Update: ")) {
+                    writes++;
+                    if (!line.endsWith(UPDATED)) {
+                        failed = true;
+                    }
+                }
+            }
+            if (failed || writes != 2) {
+                failedWrites++;
+            } else if (!isRecorded(build)) {
+                lostUpdates++;
+            }
+        }
+        int staleCells = countStaleCells((EnvDashboardView) j.jenkins.getView("storm"));
+
+        List<Long> latencies = new ArrayList<Long>(writeLatencies);
+        Collections.sort(latencies);
+        System.out.println("Deploy storm: " + BUILDS + " builds of " + COMPS + " components to " + ENVS
+                + " environments on " + EXECUTORS + " executors in " + elapsedMillis + " ms");
+        System.out.println("  throughput:    " + (BUILDS * 1000L / Math.max(1, elapsedMillis)) + " builds/s");
+        System.out.println("  write latency: p50 " + percentile(latencies, 0.5) + " us, p99 "
+                + percentile(latencies, 0.99) + " us, max " + percentile(latencies, 1.0) + " us");
+        System.out.println("  failed writes: " + failedWrites);
+        System.out.println("  lost updates:  " + lostUpdates);
+        System.out.println("  stale cells:   " + staleCells);
+        System.out.println("  view renders:  " + renders.get() + " (" + renderFailures.get() + " failed)");
+
+        assertEquals("failed writes", 0, failedWrites);
+        assertEquals("lost updates", 0, lostUpdates);
+        assertEquals("stale cells", 0, staleCells);
+        assertEquals("failed view renders", 0, renderFailures.get());
+    }
+
+    /**
+     * A build's writes stuck if its row exists with the POST status, or is
+     * gone after a NODEPLOY.
+     */
+    private static boolean isRecorded(FreeStyleBuild build) throws Exception {
+        ParametersAction parameters = build.getAction(ParametersAction.class);
+        String env = ((StringParameterValue) parameters.getParameter("TARGET_ENV")).value;
+        boolean deploy = Boolean.parseBoolean(((StringParameterValue) parameters.getParameter("UPDATE_ENV_DASH")).value);
+        List<String> statuses = new ArrayList<String>();
+        for (Deployment deployment : DashboardStore.get().getHistory(env, build.getParent().getName(),
+                Integer.MAX_VALUE, null, 0)) {
+            if (build.getUrl().equals(deployment.getUrl())) {
+                statuses.add(deployment.getResult());
+            }
+        }
+        if (!deploy) {
+            return statuses.isEmpty();
+        }
+        return statuses.size() == 1 && "SUCCESS".equals(statuses.get(0));
+    }
+
+    /**
+     * @return the number of dashboard cells that do not show the newest
+     *         deployment in the history
+     */
+    private static int countStaleCells(EnvDashboardView view) throws Exception {
+        int stale = 0;
+        for (int e = 0; e < ENVS; e++) {
+            for (int c = 0; c < COMPS; c++) {
+                List<Deployment> newest = DashboardStore.get().getHistory("env" + e, "comp" + c, 1, null, 0);
+                Deployment expected = newest.isEmpty() ? null : newest.get(0);
+                Deployment shown = view.getCompLastDeployed("env" + e, "comp" + c);
+                if (expected == null ? shown != null
+                        : shown == null || expected.getDeploymentId() != shown.getDeploymentId()) {
+                    stale++;
+                }
+            }
+        }
+        return stale;
+    }
+
+    private static long percentile(List<Long> sorted, double quantile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        return sorted.get((int) Math.min(sorted.size() - 1, Math.ceil(quantile * sorted.size()) - 1));
+    }
+
+    /**
+     * Times DashboardBuilder's setUp and its tearDown.
+     */
+    public static class TimedWrapper extends BuildWrapper {
+
+        private final DashboardBuilder builder;
+
+        public TimedWrapper(DashboardBuilder builder) {
+            this.builder = builder;
+        }
+
+        @SuppressWarnings("rawtypes")
+        @Override
+        public Environment setUp(AbstractBuild build, Launcher launcher, BuildListener listener)
+                throws IOException, InterruptedException {
+            long start = System.nanoTime();
+            final Environment environment = builder.setUp(build, launcher, listener);
+            writeLatencies.add((System.nanoTime() - start) / 1000);
+            return new Environment() {
+                @Override
+                public boolean tearDown(AbstractBuild build, BuildListener listener)
+                        throws IOException, InterruptedException {
+                    long start = System.nanoTime();
+                    try {
+                        return environment.tearDown(build, listener);
+                    } finally {
+                        writeLatencies.add((System.nanoTime() - start) / 1000);
+                    }
+                }
+            };
+        }
+
+        @TestExtension("deployStorm")
+        public static class DescriptorImpl extends BuildWrapperDescriptor {
+
+            @Override
+            public boolean isApplicable(AbstractProject<?, ?> item) {
+                return true;
+            }
+
+            @Override
+            public String getDisplayName() {
+                return "Timed environment dashboard";
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.jenkinsci.plugins.environmentdashboard.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.jenkinsci.plugins.environmentdashboard.EnvDashboardView;
+import org.jenkinsci.plugins.environmentdashboard.entity.Deployment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Read path of the dashboard view against a seeded {@link BenchmarkDatabase}.
+ * The view has no environment order configured, so getOrderOfEnvs reads the
+ * environments from the store as it does on a fresh dashboard.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class EnvDashboardViewBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Dashboard {
+        EnvDashboardView view;
+
+        @Setup(Level.Trial)
+        public void createView(BenchmarkDatabase db) {
+            // The view only touches the store once the store is seeded.
+            view = new EnvDashboardView("benchmark", "", "", "10");
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Reader {
+        final Random random = new Random(42);
+    }
+
+    @Benchmark
+    public Deployment getCompLastDeployed(BenchmarkDatabase db, Dashboard dashboard, Reader reader) {
+        int pair = reader.random.nextInt(db.pairs());
+        return dashboard.view.getCompLastDeployed(db.env(pair), db.comp(pair));
+    }
+
+    @Benchmark
+    public List<Deployment> getDeploymentsByCompEnv(BenchmarkDatabase db, Dashboard dashboard,
+            Reader reader) {
+        int pair = reader.random.nextInt(db.pairs());
+        return dashboard.view.getDeploymentsByCompEnv(db.comp(pair), db.env(pair), dashboard.view.getLimitDeployHistory());
+    }
+
+    @Benchmark
+    public ArrayList<String> getOrderOfEnvs(Dashboard dashboard) {
+        return dashboard.view.getOrderOfEnvs();
+    }
+}
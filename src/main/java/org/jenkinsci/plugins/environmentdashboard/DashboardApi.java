@@ -0,0 +1,358 @@
+package org.jenkinsci.plugins.environmentdashboard;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import jenkins.model.Jenkins;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.jenkinsci.plugins.environmentdashboard.dao.LatestDeploymentCache;
+import org.jenkinsci.plugins.environmentdashboard.entity.DashboardGrid;
+import org.jenkinsci.plugins.environmentdashboard.entity.Deployment;
+import org.jenkinsci.plugins.environmentdashboard.store.ChangeLog;
+import org.jenkinsci.plugins.environmentdashboard.store.DashboardStore;
+import org.jenkinsci.plugins.environmentdashboard.store.RecentHistory;
+import org.jenkinsci.plugins.environmentdashboard.utils.ConnectionPool;
+import org.jenkinsci.plugins.environmentdashboard.utils.DBConnection;
+import org.jenkinsci.plugins.environmentdashboard.utils.DashboardMetrics;
+import org.jenkinsci.plugins.environmentdashboard.utils.Histogram;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * JSON API of an environment dashboard view, served under
+ * <code>view/NAME/dashboardApi/</code>:
+ * <ul>
+ * <li><code>grid</code> - the latest deployment of every component to every
+ * environment, in the view's order.</li>
+ * <li><code>history?comp=COMP&amp;env=ENV[&amp;limit=N][&amp;before=CURSOR]</code> -
+ * a page of the deployment history of a component, an environment or both,
+ * newest first. Pass the returned <code>next</code> cursor as
+ * <code>before</code> to fetch the following page.</li>
+ * <li><code>changes?epoch=EPOCH&amp;since=REVISION</code> - the cells changed
+ * since a revision returned by an earlier call, or every cell if the change
+ * log no longer reaches back that far.</li>
+ * <li><code>events</code> - a Server-Sent Events stream with one
+ * <code>deployment</code> event per recorded change.</li>
+ * <li><code>metrics</code> - call counts, error counts and latencies of the
+ * store, DAO, connection pool and view queries, and the size of the recent
+ * history held in memory; Jenkins administrators only.</li>
+ * </ul>
+ * Responses carry a strong ETag derived from the store revision and the
+ * view configuration. A request whose If-None-Match matches is answered with
+ * 304 Not Modified without reading the store.
+ */
+public class DashboardApi {
+
+    /* How often an idle event stream sends a comment to keep proxies from closing it */
+    private static final long KEEPALIVE_MILLIS = 15000L;
+
+    /* Most deployments returned in one history page */
+    private static final int MAX_PAGE_SIZE = 500;
+
+    private final EnvDashboardView view;
+
+    public DashboardApi(EnvDashboardView view) {
+        this.view = view;
+    }
+
+    /**
+     * Serve the dashboard grid.
+     */
+    public void doGrid(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        view.checkPermission(EnvDashboardView.READ);
+        long revision = DashboardStore.get().getRevision();
+        String etag = etag("grid", revision);
+        if (notModified(req, rsp, etag)) {
+            return;
+        }
+        List<String> envs = orEmpty(view.getOrderOfEnvs());
+        List<String> comps = orEmpty(view.getOrderOfComps());
+        DashboardGrid grid = view.getDashboardGrid();
+        JSONArray deployments = new JSONArray();
+        for (String env : envs) {
+            for (String comp : comps) {
+                if (grid.contains(env, comp)) {
+                    deployments.add(toJSON(grid.get(env, comp)));
+                }
+            }
+        }
+        JSONObject json = new JSONObject();
+        json.element("epoch", DashboardStore.get().getEpoch());
+        json.element("revision", revision);
+        json.element("environments", JSONArray.fromObject(envs));
+        json.element("components", JSONArray.fromObject(comps));
+        json.element("deployments", deployments);
+        send(rsp, etag, json);
+    }
+
+    /**
+     * Serve a page of deployment history.
+     */
+    public void doHistory(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        view.checkPermission(EnvDashboardView.READ);
+        String comp = req.getParameter("comp");
+        String env = req.getParameter("env");
+        String before = req.getParameter("before");
+        boolean hasComp = comp != null && !comp.equals("");
+        boolean hasEnv = env != null && !env.equals("");
+        if (!hasComp && !hasEnv) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "comp or env parameter is required");
+            return;
+        }
+        if (!EnvDashboardView.isValidCursor(before)) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "before is not a cursor returned by this API");
+            return;
+        }
+        if (before != null && before.equals("")) {
+            before = null;
+        }
+        int limit = view.getLimitDeployHistory() > 0 ? view.getLimitDeployHistory() : 10;
+        long requested = parseLong(req.getParameter("limit"));
+        if (requested > 0) {
+            limit = (int) Math.min(requested, MAX_PAGE_SIZE);
+        }
+        String etag = etag("history", DashboardStore.get().getRevision());
+        if (notModified(req, rsp, etag)) {
+            return;
+        }
+        List<Deployment> history;
+        if (!hasEnv) {
+            history = view.getDeploymentsByComp(comp, limit, before);
+        } else if (!hasComp) {
+            history = view.getDeploymentsByEnv(env, limit, before);
+        } else {
+            history = view.getDeploymentsByCompEnv(comp, env, limit, before);
+        }
+        if (history == null) {
+            rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Could not read the dashboard store");
+            return;
+        }
+        JSONArray deployments = new JSONArray();
+        for (Deployment deployment : history) {
+            deployments.add(toJSON(deployment));
+        }
+        JSONObject json = new JSONObject();
+        if (hasComp) {
+            json.element("component", comp);
+        }
+        if (hasEnv) {
+            json.element("environment", env);
+        }
+        json.element("deployments", deployments);
+        if (history.size() == limit) {
+            json.element("next", EnvDashboardView.getCursor(history.get(history.size() - 1)));
+        }
+        send(rsp, etag, json);
+    }
+
+    /**
+     * Serve the cells changed since a revision. Cells whose deployments were
+     * all removed are listed with "removed": true.
+     */
+    public void doChanges(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        view.checkPermission(EnvDashboardView.READ);
+        long since = parseLong(req.getParameter("since"));
+        boolean sameEpoch = String.valueOf(DashboardStore.get().getEpoch()).equals(req.getParameter("epoch"));
+        DashboardStore store = DashboardStore.get();
+        ChangeLog.Delta delta = store.getChangesSince(since);
+        String etag = etag("changes", delta.getRevision());
+        if (notModified(req, rsp, etag)) {
+            return;
+        }
+        JSONObject json = new JSONObject();
+        json.element("epoch", DashboardStore.get().getEpoch());
+        json.element("revision", delta.getRevision());
+        JSONArray deployments = new JSONArray();
+        try {
+            if (!sameEpoch || since < 0 || delta.getPairs() == null) {
+                json.element("snapshot", true);
+                for (Deployment deployment : store.getLatestGrid().values()) {
+                    deployments.add(toJSON(deployment));
+                }
+            } else {
+                json.element("snapshot", false);
+                for (String[] pair : delta.getPairs().values()) {
+                    Deployment deployment = store.getLatest(pair[0], pair[1]);
+                    JSONObject cell = toJSON(deployment);
+                    if (deployment == null) {
+                        cell.element("envName", pair[0]);
+                        cell.element("compName", pair[1]);
+                        cell.element("removed", true);
+                    }
+                    deployments.add(cell);
+                }
+            }
+        } catch (IOException e) {
+            rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Could not read the dashboard store");
+            return;
+        }
+        json.element("deployments", deployments);
+        send(rsp, etag, json);
+    }
+
+    /**
+     * Stream recorded changes as Server-Sent Events until the client goes
+     * away or falls too far behind, in which case it receives an
+     * <code>evicted</code> event and should reload.
+     */
+    public void doEvents(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        view.checkPermission(EnvDashboardView.READ);
+        DashboardEventBroadcaster.Client client = DashboardEventBroadcaster.subscribe();
+        if (client == null) {
+            rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many dashboard event streams are open");
+            return;
+        }
+        try {
+            rsp.setStatus(HttpServletResponse.SC_OK);
+            rsp.setContentType("text/event-stream;charset=UTF-8");
+            rsp.setHeader("Cache-Control", "no-cache");
+            PrintWriter out = rsp.getWriter();
+            out.print("retry: 10000\n\n");
+            while (!out.checkError()) {
+                out.flush();
+                rsp.flushBuffer();
+                String message = client.poll(KEEPALIVE_MILLIS);
+                if (client.isEvicted()) {
+                    out.print("event: evicted\ndata: {}\n\n");
+                    out.flush();
+                    return;
+                }
+                out.print(message == null ? ": keepalive\n\n" : message);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            DashboardEventBroadcaster.unsubscribe(client);
+        }
+    }
+
+    /**
+     * Serve the data layer metrics. They are process-wide, so every view
+     * serves the same numbers.
+     */
+    public void doMetrics(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        JSONObject operations = new JSONObject();
+        for (Map.Entry<String, DashboardMetrics.Operation> entry : DashboardMetrics.getOperations().entrySet()) {
+            DashboardMetrics.Operation op = entry.getValue();
+            Histogram latency = op.getLatency();
+            JSONObject buckets = new JSONObject();
+            long[] bounds = latency.getBounds();
+            long[] counts = latency.getCounts();
+            for (int i = 0; i < bounds.length; i++) {
+                buckets.element("le" + bounds[i], counts[i]);
+            }
+            buckets.element("inf", counts[bounds.length]);
+            JSONObject json = new JSONObject();
+            json.element("count", op.getCount());
+            json.element("errors", op.getErrors());
+            json.element("meanMillis", latency.getMean());
+            json.element("p50Millis", latency.getPercentile(0.5));
+            json.element("p99Millis", latency.getPercentile(0.99));
+            json.element("maxMillis", latency.getMax());
+            json.element("buckets", buckets);
+            operations.element(entry.getKey(), json);
+        }
+        JSONObject json = new JSONObject();
+        json.element("operations", operations);
+        DashboardStore store = DashboardStore.get();
+        JSONObject storeStats = new JSONObject();
+        storeStats.element("type", store.getType());
+        for (Map.Entry<String, Number> stat : store.getStatistics().entrySet()) {
+            storeStats.element(stat.getKey(), stat.getValue());
+        }
+        json.element("store", storeStats);
+        JSONObject recent = new JSONObject();
+        for (Map.Entry<String, Number> stat : RecentHistory.getStatistics().entrySet()) {
+            recent.element(stat.getKey(), stat.getValue());
+        }
+        json.element("recentHistory", recent);
+        ConnectionPool.Stats pool = DBConnection.getPoolStats();
+        if (pool != null) {
+            JSONObject stats = new JSONObject();
+            stats.element("active", pool.getActive());
+            stats.element("idle", pool.getIdle());
+            stats.element("maxSize", pool.getMaxSize());
+            stats.element("borrowCount", pool.getBorrowCount());
+            stats.element("averageWaitMillis", pool.getAverageWaitMillis());
+            stats.element("maxWaitMillis", pool.getMaxWaitMillis());
+            stats.element("timeoutCount", pool.getTimeoutCount());
+            stats.element("statementHits", pool.getStatementHits());
+            stats.element("statementMisses", pool.getStatementMisses());
+            json.element("connectionPool", stats);
+        }
+        JSONObject cache = new JSONObject();
+        cache.element("hits", LatestDeploymentCache.getHits());
+        cache.element("misses", LatestDeploymentCache.getMisses());
+        cache.element("size", LatestDeploymentCache.getSize());
+        json.element("latestDeploymentCache", cache);
+        rsp.setStatus(HttpServletResponse.SC_OK);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.setHeader("Cache-Control", "no-cache");
+        rsp.getWriter().print(json.toString());
+    }
+
+    /**
+     * Build the ETag for a resource. The query parameters are part of the
+     * URL, so only the store revision and view configuration go in.
+     */
+    private String etag(String resource, long revision) {
+        return "\"" + resource + "-" + Long.toHexString(DashboardStore.get().getEpoch()) + "-" + revision
+                + "-" + Integer.toHexString(view.getConfigHash()) + "\"";
+    }
+
+    private static boolean notModified(StaplerRequest req, StaplerResponse rsp, String etag) {
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split("\\s*,\\s*")) {
+            if (candidate.trim().equals(etag) || candidate.trim().equals("*")) {
+                rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                rsp.setHeader("ETag", etag);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void send(StaplerResponse rsp, String etag, JSONObject json) throws IOException {
+        rsp.setStatus(HttpServletResponse.SC_OK);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.setHeader("ETag", etag);
+        // Clients may keep the response but must revalidate before using it.
+        rsp.setHeader("Cache-Control", "no-cache");
+        rsp.getWriter().print(json.toString());
+    }
+
+    private static JSONObject toJSON(Deployment deployment) {
+        JSONObject json = new JSONObject();
+        if (deployment == null) {
+            return json;
+        }
+        for (Map.Entry<String, String> field : deployment.toMap().entrySet()) {
+            json.element(field.getKey(), field.getValue());
+        }
+        return json;
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return value == null ? -1 : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static <T> List<T> orEmpty(List<T> list) {
+        return list == null ? new ArrayList<T>() : list;
+    }
+}
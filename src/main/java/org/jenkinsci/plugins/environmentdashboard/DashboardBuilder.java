@@ -8,13 +8,13 @@ import hudson.model.AbstractProject;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
 
 import java.io.IOException;
-import java.sql.Connection;
-import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.ArrayList;
 import java.util.logging.Logger;
 
@@ -22,9 +22,10 @@ import javax.servlet.ServletException;
 
 import net.sf.json.JSONObject;
 
-import org.jenkinsci.plugins.environmentdashboard.dao.DashboardDAO;
 import org.jenkinsci.plugins.environmentdashboard.entity.Build;
-import org.jenkinsci.plugins.environmentdashboard.utils.DBConnection;
+import org.jenkinsci.plugins.environmentdashboard.entity.DeploymentEvent;
+import org.jenkinsci.plugins.environmentdashboard.store.DashboardStore;
+import org.jenkinsci.plugins.environmentdashboard.utils.SlowQueryLog;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
@@ -44,6 +45,9 @@ public class DashboardBuilder extends BuildWrapper {
     private List<ListItem> data = Collections.emptyList();
     public boolean addColumns = false;
 
+    /* Build log comment for a successful dashboard update */
+    static final String UPDATED = "Updated Dashboard DB";
+
     @DataBoundConstructor
     public DashboardBuilder(String nameOfEnv, String componentName, String buildNumber, String buildJob, String packageName, boolean addColumns, List<ListItem> data) {
         this.nameOfEnv = nameOfEnv;
@@ -86,7 +90,6 @@ public class DashboardBuilder extends BuildWrapper {
     @Override
     public Environment setUp(AbstractBuild build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
         // PreBuild
-        final Integer numberOfDays = ( (getDescriptor().getNumberOfDays() == null) ? 30 : getDescriptor().getNumberOfDays() );
         String passedBuildNumber = build.getEnvironment(listener).expand(buildNumber);
         String passedEnvName = build.getEnvironment(listener).expand(nameOfEnv);
         String passedCompName = build.getEnvironment(listener).expand(componentName);
@@ -110,7 +113,7 @@ public class DashboardBuilder extends BuildWrapper {
         }
 
         if (!(passedBuildNumber.matches("^\\s*$") || passedEnvName.matches("^\\s*$") || passedCompName.matches("^\\s*$"))) {
-            returnComment = writeToDB(build, listener, passedEnvName, passedCompName, passedBuildNumber, "PRE", passedBuildJob, numberOfDays, passedPackageName, passedColumnData);
+            returnComment = writeToDB(build, listener, passedEnvName, passedCompName, passedBuildNumber, "PRE", passedBuildJob, passedPackageName, passedColumnData);
             listener.getLogger().println("Pre-Build Update: " + returnComment);
         } else {
             listener.getLogger().println("Environment dashboard not updated: one or more required values were blank");
@@ -137,12 +140,12 @@ public class DashboardBuilder extends BuildWrapper {
 
                 if (doDeploy.equals("true")){
                     if (!(passedBuildNumber.matches("^\\s*$") || passedEnvName.matches("^\\s*$") || passedCompName.matches("^\\s*$"))) {
-                        returnComment = writeToDB(build, listener, passedEnvName, passedCompName, passedBuildNumber, "POST", passedBuildJob, numberOfDays, passedPackageName, passedColumnData);
+                        returnComment = writeToDB(build, listener, passedEnvName, passedCompName, passedBuildNumber, "POST", passedBuildJob, passedPackageName, passedColumnData);
                         listener.getLogger().println("Post-Build Update: " + returnComment);
                     }
                 }else{
                     if (!(passedBuildNumber.matches("^\\s*$") || passedEnvName.matches("^\\s*$") || passedCompName.matches("^\\s*$"))) {
-                        returnComment = writeToDB(build, listener, passedEnvName, passedCompName, passedBuildNumber, "NODEPLOY", passedBuildJob, numberOfDays, passedPackageName, passedColumnData);
+                        returnComment = writeToDB(build, listener, passedEnvName, passedCompName, passedBuildNumber, "NODEPLOY", passedBuildJob, passedPackageName, passedColumnData);
                         listener.getLogger().println("Post-Build Update: " + returnComment);
                     }
                     
@@ -155,42 +158,16 @@ public class DashboardBuilder extends BuildWrapper {
     }
 
     @SuppressWarnings("rawtypes")
-    private String writeToDB(AbstractBuild build, BuildListener listener, String envName, String compName, String currentBuildNum, String runTime, String buildJob, Integer numberOfDays, String packageName, List<ListItem> passedColumnData) {
+    private String writeToDB(AbstractBuild build, BuildListener listener, String envName, String compName, String currentBuildNum, String runTime, String buildJob, String packageName, List<ListItem> passedColumnData) {
         String returnComment = null;
         if (envName.matches("^\\s*$") || compName.matches("^\\s*$")) {
             returnComment = "WARN: Either Environment name or Component name is empty.";
             return returnComment;
         }
 
-        DashboardDAO dashboardDAO = new DashboardDAO();
-        
-        try {
-            dashboardDAO.createDashboardTable();
-        } catch (SQLException e) {
-            return "WARN: Could not create table env_dashboard.";
-        }
-        
-        try {
-            dashboardDAO.addColumn("packageName VARCHAR(255)");
-        } catch (SQLException e) {
-            return "WARN: Could not alter table env_dashboard." + e.getErrorCode() + " " + e.getMessage();
-        }
-        
-        //Get DB connection
-        Connection conn = DBConnection.getConnection();
-
-        Statement stat = null;
-
-        String columns = "";
-        String contents = "";
+        Map<String, String> columns = new LinkedHashMap<String, String>();
         for (ListItem item : passedColumnData){
-            columns = columns + ", " +  item.columnName;
-            contents = contents + "', '" + item.contents;
-            try {
-                dashboardDAO.addColumn(item.columnName + " VARCHAR");
-            } catch (SQLException e) {
-                return "WARN: Could not alter table env_dashboard to add column " + item.columnName + ".";
-            }
+            columns.put(item.columnName, item.contents);
         }
         String indexValueofTable = envName + '=' + compName;
         String currentBuildResult = "UNKNOWN";
@@ -214,28 +191,61 @@ public class DashboardBuilder extends BuildWrapper {
         }
         
         /* Object represents a environment dashboard Jenkins build */
-        Build b = new Build(currentBuildNum,currentBuildUrl,currentBuildResult,envName,compName,buildJobUrl,packageName + contents);
+        Build b = new Build(currentBuildNum,currentBuildUrl,currentBuildResult,envName,compName,buildJobUrl,packageName);
+
+        DeploymentEvent event = new DeploymentEvent(runTime, indexValueofTable, b, columns, System.currentTimeMillis());
+        if (getDescriptor().isAsyncWrites()) {
+            return DashboardWriteQueue.getInstance(getDescriptor().getQueueCapacity())
+                    .submit(event, getDescriptor().getOverflowPolicy());
+        }
+        return applyToDB(event);
+    }
+
+    /**
+     * Write a dashboard update to the dashboard store.
+     * 
+     * @param event
+     *            the update to write.
+     * @return {@link #UPDATED} on success, else a warning for the build log.
+     */
+    static String applyToDB(DeploymentEvent event) {
+        return applyToDB(Collections.singletonList(event));
+    }
 
+    /**
+     * Write a batch of dashboard updates to the dashboard store atomically.
+     * 
+     * @param events
+     *            the updates to write, in order.
+     * @return {@link #UPDATED} on success, else a warning for the build log.
+     */
+    static String applyToDB(List<DeploymentEvent> events) {
+        DashboardStore store = DashboardStore.get();
+        
         try {
-            if (runTime.equals("PRE")) {
-                dashboardDAO.addBuild(indexValueofTable, b);
-            } else if(runTime.equals("POST")) {
-               dashboardDAO.updateBuild(indexValueofTable, b);
-            } else if (runTime.equals("NODEPLOY")){
-                dashboardDAO.deleteBuild(indexValueofTable, b);
-            }
-        } catch (SQLException e) {
-          return "Error running query!" + e.getMessage().toString();
+            store.open();
+        } catch (IOException e) {
+            return "WARN: Could not open the dashboard store.";
         }
         
+        for (DeploymentEvent event : events) {
+            for (String column : event.getCustomColumns().keySet()){
+                try {
+                    store.addColumn(column);
+                } catch (IOException e) {
+                    return "WARN: Could not add custom column " + column + ".";
+                }
+            }
+        }
 
         try {
-            dashboardDAO.deleteBuilds(numberOfDays);
-        } catch (SQLException e) {
-                return "Error running delete query!" + e.getMessage().toString();
+            store.recordDeployments(events);
+        } catch (IOException e) {
+          return "Error running query!" + e.getMessage().toString();
         }
+        DashboardEventBroadcaster.publish(events, store.getRevision());
         
-        return "Updated Dashboard DB";
+        return UPDATED;
     }
 
 
@@ -249,8 +259,16 @@ public class DashboardBuilder extends BuildWrapper {
 
         private String numberOfDays = "30";
         private Integer parseNumberOfDays;
+        private boolean asyncWrites = false;
+        private String queueCapacity = "1000";
+        private String overflowPolicy = DashboardWriteQueue.OverflowPolicy.BLOCK.name();
+        private String maxBatchSize = "100";
+        private String batchWindow = "50";
+        private String slowQueryMillis = "200";
         public DescriptorImpl() {
             load();
+            DashboardWriteQueue.setBatching(getMaxBatchSize(), getBatchWindow());
+            SlowQueryLog.setThreshold(getSlowQueryMillis());
         }
 
         @Override
@@ -304,13 +322,117 @@ public class DashboardBuilder extends BuildWrapper {
             {
                 numberOfDays = "30";
             }
+            parseNumberOfDays = null;
+            asyncWrites = formData.optBoolean("asyncWrites");
+            queueCapacity = formData.optString("queueCapacity", "1000");
+            overflowPolicy = formData.optString("overflowPolicy", DashboardWriteQueue.OverflowPolicy.BLOCK.name());
+            maxBatchSize = formData.optString("maxBatchSize", "100");
+            batchWindow = formData.optString("batchWindow", "50");
+            slowQueryMillis = formData.optString("slowQueryMillis", "200");
+            DashboardWriteQueue.setBatching(getMaxBatchSize(), getBatchWindow());
+            SlowQueryLog.setThreshold(getSlowQueryMillis());
             save();
             return super.configure(req,formData);
         }
 
         public Integer getNumberOfDays() {
+            if (parseNumberOfDays == null) {
+                try {
+                    parseNumberOfDays = Integer.parseInt(numberOfDays);
+                } catch (NumberFormatException e) {
+                    return 30;
+                }
+            }
             return parseNumberOfDays;
         }
 
+        public boolean isAsyncWrites() {
+            return asyncWrites;
+        }
+
+        public int getQueueCapacity() {
+            return parsePositive(queueCapacity, 1000);
+        }
+
+        public int getMaxBatchSize() {
+            return parsePositive(maxBatchSize, 100);
+        }
+
+        public int getBatchWindow() {
+            return parsePositive(batchWindow, 50);
+        }
+
+        /**
+         * @return the slow query log threshold in milliseconds; 0 turns the
+         *         log off
+         */
+        public int getSlowQueryMillis() {
+            try {
+                return Math.max(Integer.parseInt(slowQueryMillis), 0);
+            } catch (NumberFormatException e) {
+                return 200;
+            }
+        }
+
+        /**
+         * @return the recent slow queries, newest first
+         */
+        public List<SlowQueryLog.SlowQuery> getSlowQueries() {
+            return SlowQueryLog.getRecent();
+        }
+
+        private static int parsePositive(String value, int defaultValue) {
+            try {
+                int parsed = Integer.parseInt(value);
+                return parsed > 0 ? parsed : defaultValue;
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+
+        public DashboardWriteQueue.OverflowPolicy getOverflowPolicy() {
+            try {
+                return DashboardWriteQueue.OverflowPolicy.valueOf(overflowPolicy);
+            } catch (IllegalArgumentException e) {
+                return DashboardWriteQueue.OverflowPolicy.BLOCK;
+            } catch (NullPointerException e) {
+                return DashboardWriteQueue.OverflowPolicy.BLOCK;
+            }
+        }
+
+        public FormValidation doCheckQueueCapacity(@QueryParameter String value)
+                throws IOException, ServletException {
+            return checkPositive(value);
+        }
+
+        public FormValidation doCheckMaxBatchSize(@QueryParameter String value)
+                throws IOException, ServletException {
+            return checkPositive(value);
+        }
+
+        public FormValidation doCheckBatchWindow(@QueryParameter String value)
+                throws IOException, ServletException {
+            return checkPositive(value);
+        }
+
+        private static FormValidation checkPositive(String value) {
+            try {
+                if (Integer.parseInt(value) > 0) {
+                    return FormValidation.ok();
+                }
+            } catch(Exception parseEx) {
+                // fall through
+            }
+            return FormValidation.error("Please provide a positive integer value.");
+        }
+
+        public ListBoxModel doFillOverflowPolicyItems() {
+            ListBoxModel m = new ListBoxModel();
+            m.add("Wait for space in the queue", DashboardWriteQueue.OverflowPolicy.BLOCK.name());
+            m.add("Drop the update", DashboardWriteQueue.OverflowPolicy.DISCARD.name());
+            m.add("Write from the build", DashboardWriteQueue.OverflowPolicy.RUN_IN_CALLER.name());
+            return m;
+        }
+
     }
 }
@@ -0,0 +1,175 @@
+package org.jenkinsci.plugins.environmentdashboard;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import net.sf.json.JSONObject;
+
+import org.jenkinsci.plugins.environmentdashboard.entity.Build;
+import org.jenkinsci.plugins.environmentdashboard.entity.DeploymentEvent;
+
+/**
+ * Fans recorded dashboard changes out to the open Server-Sent Events
+ * streams of every dashboard view.
+ *
+ * Publishing never blocks: each subscriber has a bounded buffer, and a
+ * subscriber whose buffer is full is evicted so a slow client cannot hold
+ * up writes or other clients. Buffer size and the most concurrent streams
+ * can be tuned with the system properties
+ * org.jenkinsci.plugins.environmentdashboard.DashboardEventBroadcaster.bufferSize
+ * and .maxClients.
+ */
+public final class DashboardEventBroadcaster {
+
+    private static final Logger LOGGER = Logger.getLogger(DashboardEventBroadcaster.class.getName());
+
+    private static final int BUFFER_SIZE = Integer.getInteger(DashboardEventBroadcaster.class.getName() + ".bufferSize", 100);
+
+    private static final int MAX_CLIENTS = Integer.getInteger(DashboardEventBroadcaster.class.getName() + ".maxClients", 50);
+
+    private static final List<Client> clients = new CopyOnWriteArrayList<Client>();
+
+    private static final AtomicLong published = new AtomicLong();
+    private static final AtomicLong evicted = new AtomicLong();
+
+    /**
+     * Added explicit private constructor as this is a utility class.
+     */
+    private DashboardEventBroadcaster() {
+
+    }
+
+    /**
+     * Open a stream.
+     *
+     * @return the new subscriber, or null if too many streams are open.
+     */
+    public static synchronized Client subscribe() {
+        if (clients.size() >= MAX_CLIENTS) {
+            return null;
+        }
+        Client client = new Client();
+        clients.add(client);
+        return client;
+    }
+
+    /**
+     * Close a stream.
+     *
+     * @param client
+     *            the subscriber returned by {@link #subscribe()}.
+     */
+    public static void unsubscribe(Client client) {
+        clients.remove(client);
+    }
+
+    /**
+     * Send recorded changes to every subscriber.
+     *
+     * @param events
+     *            the committed PRE, POST and NODEPLOY events.
+     * @param revision
+     *            the data revision that includes them.
+     */
+    public static void publish(List<DeploymentEvent> events, long revision) {
+        if (clients.isEmpty()) {
+            return;
+        }
+        for (DeploymentEvent event : events) {
+            String message = "id: " + revision + "\nevent: deployment\ndata: " + toJSON(event) + "\n\n";
+            for (Client client : clients) {
+                if (!client.buffer.offer(message)) {
+                    evict(client);
+                }
+            }
+            published.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of open streams
+     */
+    public static int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * @return the number of events published
+     */
+    public static long getPublished() {
+        return published.get();
+    }
+
+    /**
+     * @return the number of streams closed for falling behind
+     */
+    public static long getEvicted() {
+        return evicted.get();
+    }
+
+    private static void evict(Client client) {
+        if (clients.remove(client)) {
+            client.evicted = true;
+            client.buffer.clear();
+            // Wake the stream so it can tell the client and close.
+            client.buffer.offer(Client.EVICTED);
+            evicted.incrementAndGet();
+            LOGGER.info("Environment dashboard event stream fell " + BUFFER_SIZE + " events behind and was closed.");
+        }
+    }
+
+    private static String toJSON(DeploymentEvent event) {
+        Build b = event.getBuild();
+        JSONObject json = new JSONObject();
+        json.element("type", event.getRunTime());
+        json.element("envName", b.getEnvironment());
+        json.element("compName", b.getComponantName());
+        json.element("buildstatus", b.getResult());
+        json.element("buildNum", b.getId());
+        json.element("packageName", b.getPackages());
+        json.element("jobUrl", b.getUrl());
+        json.element("created_at", new Timestamp(event.getTimestamp()).toString().substring(0, 19));
+        return json.toString();
+    }
+
+    /**
+     * One open event stream.
+     */
+    public static final class Client {
+
+        /* Queued to wake the stream once the client has been evicted */
+        private static final String EVICTED = "";
+
+        private final BlockingQueue<String> buffer = new ArrayBlockingQueue<String>(BUFFER_SIZE);
+
+        private volatile boolean evicted = false;
+
+        private Client() {
+        }
+
+        /**
+         * Wait for the next message.
+         *
+         * @param timeoutMillis
+         *            how long to wait.
+         * @return the next message in SSE wire format, or null on timeout.
+         *         Check {@link #isEvicted()} before sending it.
+         */
+        public String poll(long timeoutMillis) throws InterruptedException {
+            return buffer.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * @return true if the client fell behind and the stream must close
+         */
+        public boolean isEvicted() {
+            return evicted;
+        }
+    }
+}
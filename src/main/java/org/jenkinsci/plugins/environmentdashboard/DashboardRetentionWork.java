@@ -0,0 +1,78 @@
+package org.jenkinsci.plugins.environmentdashboard;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.jenkinsci.plugins.environmentdashboard.store.DashboardStore;
+
+/**
+ * Periodically deletes dashboard data older than the configured number of
+ * days, so builds do not pay for retention on every write. Values left
+ * behind by dropped custom columns are purged by the same task.
+ *
+ * The interval and chunk size can be tuned with the system properties
+ * org.jenkinsci.plugins.environmentdashboard.DashboardRetentionWork.recurrencePeriod
+ * (milliseconds) and .chunkSize.
+ */
+@Extension
+public class DashboardRetentionWork extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(DashboardRetentionWork.class.getName());
+
+    private static final long RECURRENCE_PERIOD = Long.getLong(DashboardRetentionWork.class.getName() + ".recurrencePeriod", HOUR);
+
+    private static final int CHUNK_SIZE = Integer.getInteger(DashboardRetentionWork.class.getName() + ".chunkSize", 1000);
+
+    /* Rows removed by the last run */
+    private static volatile int lastRemoved = 0;
+
+    public DashboardRetentionWork() {
+        super("Environment dashboard retention");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        try {
+            int purged = DashboardStore.get().pruneDroppedColumns(CHUNK_SIZE);
+            if (purged > 0) {
+                listener.getLogger().println("Deleted " + purged + " values of dropped dashboard columns.");
+            }
+        } catch (IOException e) {
+            listener.getLogger().println("WARN: Could not delete values of dropped dashboard columns. " + e.getMessage());
+        }
+        DashboardBuilder.DescriptorImpl descriptor = Jenkins.getInstance().getDescriptorByType(DashboardBuilder.DescriptorImpl.class);
+        Integer numberOfDays = descriptor == null ? null : descriptor.getNumberOfDays();
+        if (numberOfDays == null || numberOfDays <= 0) {
+            listener.getLogger().println("Dashboard retention disabled; no data deleted.");
+            return;
+        }
+        try {
+            int removed = DashboardStore.get().pruneDeployments(numberOfDays, CHUNK_SIZE);
+            lastRemoved = removed;
+            listener.getLogger().println("Deleted " + removed + " dashboard rows older than " + numberOfDays + " days.");
+            if (removed > 0) {
+                LOGGER.info("Environment dashboard retention deleted " + removed + " rows older than " + numberOfDays + " days.");
+            }
+        } catch (IOException e) {
+            listener.getLogger().println("WARN: Could not delete old dashboard data. " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the number of rows removed by the last run
+     */
+    public static int getLastRemoved() {
+        return lastRemoved;
+    }
+}
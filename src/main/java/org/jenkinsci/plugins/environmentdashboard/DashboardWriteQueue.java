@@ -0,0 +1,403 @@
+package org.jenkinsci.plugins.environmentdashboard;
+
+import hudson.Extension;
+import hudson.model.listeners.ItemListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jenkinsci.plugins.environmentdashboard.entity.DeploymentEvent;
+import org.jenkinsci.plugins.environmentdashboard.store.DashboardStore;
+import org.jenkinsci.plugins.environmentdashboard.utils.Histogram;
+
+/**
+ * Bounded in-process queue of dashboard updates drained to the DB by a single
+ * writer thread, so builds do not wait on the dashboard DB.
+ *
+ * Events are applied in the order they were queued. The writer gathers
+ * events for a short window and commits them together in one transaction.
+ */
+public class DashboardWriteQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(DashboardWriteQueue.class.getName());
+
+    /**
+     * What to do with an update when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /* Wait for the writer to free up space */
+        BLOCK,
+        /* Drop the update and carry on with the build */
+        DISCARD,
+        /* Write the update from the build thread; it may overtake queued updates */
+        RUN_IN_CALLER
+    }
+
+    private static DashboardWriteQueue instance = null;
+
+    /* Most events written in one transaction */
+    private static volatile int maxBatchSize = 100;
+
+    /* How long the writer waits for more events before writing a batch */
+    private static volatile long batchWindowMillis = 50;
+
+    private final int capacity;
+
+    private final BlockingQueue<DeploymentEvent> queue;
+
+    private final Thread writer;
+
+    /* The queue this one replaced; its writer finishes before this one starts writing */
+    private volatile DashboardWriteQueue previous = null;
+
+    /* The queue that replaced this one; takes the updates submitted once stopped */
+    private DashboardWriteQueue successor = null;
+
+    /* Events queued but not yet applied */
+    private int pending = 0;
+
+    private volatile boolean stopped = false;
+
+    private long submitted = 0;
+    private long written = 0;
+    private long failed = 0;
+    private long discarded = 0;
+
+    /* Events per committed batch */
+    private final Histogram batchSizes = new Histogram(Histogram.SIZE_BOUNDS);
+
+    /* Milliseconds to write and commit a batch */
+    private final Histogram batchLatency = new Histogram(Histogram.LATENCY_BOUNDS);
+
+    private DashboardWriteQueue(int capacity) {
+        this.capacity = capacity;
+        this.queue = new ArrayBlockingQueue<DeploymentEvent>(capacity);
+        this.writer = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, "Environment dashboard writer");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Return the shared queue, replacing it if the configured capacity has
+     * changed. A replaced queue finishes writing what it already holds
+     * before its replacement writes anything, and hands it later updates.
+     *
+     * @param capacity
+     *            the maximum number of queued updates.
+     * @return the shared queue.
+     */
+    public static synchronized DashboardWriteQueue getInstance(int capacity) {
+        if (instance == null || instance.capacity != capacity) {
+            DashboardWriteQueue old = instance;
+            instance = new DashboardWriteQueue(capacity);
+            if (old != null) {
+                instance.previous = old;
+                synchronized (old) {
+                    old.successor = instance;
+                    old.stopped = true;
+                }
+            }
+            instance.writer.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Set how updates are grouped into transactions.
+     *
+     * @param maxSize
+     *            the most events written in one transaction.
+     * @param windowMillis
+     *            how long to wait for more events before writing.
+     */
+    public static void setBatching(int maxSize, long windowMillis) {
+        maxBatchSize = Math.max(1, maxSize);
+        batchWindowMillis = Math.max(0, windowMillis);
+    }
+
+    /**
+     * Queue an update.
+     *
+     * @param event
+     *            the update to write.
+     * @param policy
+     *            what to do if the queue is full.
+     * @return a comment for the build log.
+     */
+    public String submit(DeploymentEvent event, OverflowPolicy policy) {
+        DashboardWriteQueue next;
+        synchronized (this) {
+            next = successor;
+            if (!stopped) {
+                pending++;
+                submitted++;
+                next = this;
+            }
+        }
+        if (next != this) {
+            // Replaced queues forward, so a build's updates stay in order.
+            return next == null ? DashboardBuilder.applyToDB(event) : next.submit(event, policy);
+        }
+        boolean queued = queue.offer(event);
+        if (!queued && policy == OverflowPolicy.BLOCK) {
+            try {
+                queue.put(event);
+                queued = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (queued) {
+            return "Queued Dashboard DB update";
+        }
+        notQueued();
+        if (policy == OverflowPolicy.RUN_IN_CALLER) {
+            return DashboardBuilder.applyToDB(event);
+        }
+        synchronized (this) {
+            discarded++;
+        }
+        LOGGER.warning("Environment dashboard write queue full; dropped " + event.getRunTime() + " update for " + event.getEnvComp());
+        return "WARN: Dashboard DB update dropped, write queue is full.";
+    }
+
+    /**
+     * Wait until every queued update has been written.
+     *
+     * @param timeoutMillis
+     *            the maximum time to wait.
+     * @return true if the queue was drained in time.
+     */
+    public synchronized boolean flush(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (pending > 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of updates waiting to be written
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return the maximum number of queued updates
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getSubmitted() {
+        return submitted;
+    }
+
+    public synchronized long getWritten() {
+        return written;
+    }
+
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    public synchronized long getDiscarded() {
+        return discarded;
+    }
+
+    /**
+     * @return the number of events in each committed batch
+     */
+    public Histogram getBatchSizes() {
+        return batchSizes;
+    }
+
+    /**
+     * @return the time taken to write and commit each batch, in milliseconds
+     */
+    public Histogram getBatchLatency() {
+        return batchLatency;
+    }
+
+    private void drain() {
+        awaitPrevious();
+        List<DeploymentEvent> batch = new ArrayList<DeploymentEvent>();
+        while (true) {
+            DeploymentEvent event;
+            try {
+                event = queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                event = null;
+            }
+            if (event == null) {
+                synchronized (this) {
+                    // A submit may be between its pending++ and its offer.
+                    if (stopped && pending == 0) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            batch.clear();
+            batch.add(event);
+            gather(batch);
+            apply(batch);
+        }
+    }
+
+    /**
+     * Wait for the writer of the replaced queue to apply what it holds, so a
+     * build's POST cannot be written before its PRE.
+     */
+    private void awaitPrevious() {
+        DashboardWriteQueue before = previous;
+        if (before == null) {
+            return;
+        }
+        try {
+            before.writer.join();
+        } catch (InterruptedException e) {
+            // Stopping; the replaced queue is stopped first.
+            return;
+        }
+        previous = null;
+    }
+
+    /**
+     * Add queued events to the batch until it is full or the batch window
+     * has passed.
+     */
+    private void gather(List<DeploymentEvent> batch) {
+        int max = maxBatchSize;
+        long deadline = System.nanoTime() + batchWindowMillis * 1000000L;
+        queue.drainTo(batch, max - batch.size());
+        while (batch.size() < max) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+            DeploymentEvent next;
+            try {
+                next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+            queue.drainTo(batch, max - batch.size());
+        }
+    }
+
+    /**
+     * Write a batch in one transaction. If the batch fails, its events are
+     * retried one at a time so a single bad event does not lose the rest.
+     */
+    private void apply(List<DeploymentEvent> batch) {
+        long start = System.nanoTime();
+        String result = applyQuietly(batch);
+        if (DashboardBuilder.UPDATED.equals(result)) {
+            batchLatency.record((System.nanoTime() - start) / 1000000L);
+            batchSizes.record(batch.size());
+            completed(batch.size(), true);
+            return;
+        }
+        if (batch.size() == 1) {
+            LOGGER.warning("Environment dashboard update for " + batch.get(0).getEnvComp() + " failed: " + result);
+            completed(1, false);
+            return;
+        }
+        LOGGER.info("Environment dashboard batch of " + batch.size() + " updates failed, retrying singly: " + result);
+        for (DeploymentEvent event : batch) {
+            start = System.nanoTime();
+            result = applyQuietly(Collections.singletonList(event));
+            boolean ok = DashboardBuilder.UPDATED.equals(result);
+            if (ok) {
+                batchLatency.record((System.nanoTime() - start) / 1000000L);
+                batchSizes.record(1);
+            } else {
+                LOGGER.warning("Environment dashboard update for " + event.getEnvComp() + " failed: " + result);
+            }
+            completed(1, ok);
+        }
+    }
+
+    private static String applyQuietly(List<DeploymentEvent> batch) {
+        try {
+            return DashboardBuilder.applyToDB(batch);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Environment dashboard update failed", e);
+            return e.toString();
+        }
+    }
+
+    private synchronized void notQueued() {
+        pending--;
+        submitted--;
+        notifyAll();
+    }
+
+    private synchronized void completed(int count, boolean ok) {
+        pending -= count;
+        if (ok) {
+            written += count;
+        } else {
+            failed += count;
+        }
+        notifyAll();
+    }
+
+    private void stop(long timeoutMillis) throws InterruptedException {
+        DashboardWriteQueue before = previous;
+        if (before != null) {
+            before.stop(timeoutMillis);
+        }
+        flush(timeoutMillis);
+        stopped = true;
+        writer.interrupt();
+        writer.join(timeoutMillis);
+    }
+
+    /**
+     * Flushes pending dashboard updates and closes the dashboard store when
+     * Jenkins shuts down.
+     */
+    @Extension
+    public static class ShutdownListener extends ItemListener {
+
+        private static final long FLUSH_TIMEOUT = 30000L;
+
+        @Override
+        public void onBeforeShutdown() {
+            DashboardWriteQueue q;
+            synchronized (DashboardWriteQueue.class) {
+                q = instance;
+                instance = null;
+            }
+            try {
+                if (q != null) {
+                    q.stop(FLUSH_TIMEOUT);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                DashboardStore.get().close();
+            }
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package org.jenkinsci.plugins.environmentdashboard;
 
 import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
 import hudson.model.Item;
 import hudson.model.TopLevelItem;
 import hudson.model.Descriptor.FormException;
@@ -11,21 +13,24 @@ import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 
 import java.io.IOException;
-import java.sql.Connection;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.servlet.ServletException;
 
+import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 
-import org.apache.commons.lang.StringUtils;
-import org.jenkinsci.plugins.environmentdashboard.utils.DBConnection;
+import org.jenkinsci.plugins.environmentdashboard.entity.DashboardGrid;
+import org.jenkinsci.plugins.environmentdashboard.entity.Deployment;
+import org.jenkinsci.plugins.environmentdashboard.store.DashboardStore;
+import org.jenkinsci.plugins.environmentdashboard.store.RecentHistory;
+import org.jenkinsci.plugins.environmentdashboard.utils.DashboardMetrics;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
@@ -52,30 +57,27 @@ public class EnvDashboardView extends View {
         this.deployHistory = deployHistory;
     }
 
-    static {
-        ensureCorrectDBSchema();
-    }
-
-   private static void ensureCorrectDBSchema(){
-       String returnComment = "";
-       Connection conn = null;
-       Statement stat = null;
-       conn = DBConnection.getConnection();
-       try {
-           assert conn != null;
-           stat = conn.createStatement();
-       } catch (SQLException e) {
-           System.out.println("E13" + e.getMessage());
-       }
-       try {
-           stat.execute("ALTER TABLE env_dashboard ADD IF NOT EXISTS packageName VARCHAR(255);");
-       } catch (SQLException e) {
-           System.out.println("E14: Could not alter table to add package column to table env_dashboard.\n" + e.getMessage());
-       } finally { 
-           DBConnection.closeConnection();
-       }
-       return;
-   }
+    /**
+     * Load the recent history of every pair into memory once the views are
+     * loaded, sized for the dashboard showing the longest history.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void loadRecentHistory() {
+        int limit = 0;
+        for (View view : Jenkins.getInstance().getViews()) {
+            if (view instanceof EnvDashboardView) {
+                limit = Math.max(limit, ((EnvDashboardView) view).getLimitDeployHistory());
+            }
+        }
+        if (limit <= 0) {
+            return;
+        }
+        try {
+            RecentHistory.populate(DashboardStore.get(), limit);
+        } catch (IOException e) {
+            System.out.println("E16: Could not load the recent deployment history.\n" + e.getMessage());
+        }
+    }
 
     @Override
     protected void submit(final StaplerRequest req) throws IOException, ServletException, FormException {
@@ -103,49 +105,12 @@ public class EnvDashboardView extends View {
         }
 
         public static ArrayList<String> getCustomColumns(){
-            Connection conn = null;
-            Statement stat = null;
-            ArrayList<String> columns;
-            columns = new ArrayList<String>();
-            String queryString="SELECT DISTINCT COLUMN_NAME FROM INFORMATION_SCHEMA.COLUMNS where TABLE_NAME='ENV_DASHBOARD';";
-            String[] fields = {"envComp", "compName", "envName", "buildstatus", "buildJobUrl", "jobUrl", "buildNum", "created_at", "packageName"};
-            boolean columnFound = false;
             try {
-                ResultSet rs = null;
-                conn = DBConnection.getConnection();
-
-                try {
-                    assert conn != null;
-                    stat = conn.createStatement();
-                } catch (SQLException e) {
-                    System.out.println("E3" + e.getMessage());
-                }
-                try {
-                    assert stat != null;
-                    rs = stat.executeQuery(queryString);
-                } catch (SQLException e) {
-                    System.out.println("E4" + e.getMessage());
-                }
-                String col = "";
-                while (rs.next()) {
-                    columnFound=false;
-                    col = rs.getString("COLUMN_NAME");
-                    for (String presetColumn : fields){
-                        if (col.toLowerCase().equals(presetColumn.toLowerCase())){
-                            columnFound = true;
-                            break;
-                        }
-                    }
-                    if (!columnFound){
-                        columns.add(col.toLowerCase());
-                    }
-                }
-                DBConnection.closeConnection();
-            } catch (SQLException e) {
+                return new ArrayList<String>(DashboardStore.get().getCustomColumns());
+            } catch (IOException e) {
                 System.out.println("E11" + e.getMessage());
                 return null;
             }
-            return columns;
         }
 
 
@@ -162,29 +127,17 @@ public class EnvDashboardView extends View {
 
         @SuppressWarnings("unused")
         public FormValidation doDropColumn(@QueryParameter("column") final String column){
-            Connection conn = null;
-            Statement stat = null;
             if ("".equals(column)){
                 return FormValidation.ok(); 
             }
-            String queryString = "ALTER TABLE ENV_DASHBOARD DROP COLUMN " + column + ";";
-            //Get DB connection
-            conn = DBConnection.getConnection();
-
-            try {
-                assert conn != null;
-                stat = conn.createStatement();
-            } catch (SQLException e) {
-                return FormValidation.error("Failed to create statement."); 
-            }
             try {
-                assert stat != null;
-                stat.execute(queryString);
-            } catch (SQLException e) {
-                DBConnection.closeConnection();
+                if (!DashboardStore.get().getCustomColumns().contains(column.toLowerCase())) {
+                    return FormValidation.error("Failed to remove column: " + column + "\nThis column may have already been removed. Refresh to update the list of columns to remove."); 
+                }
+                DashboardStore.get().dropColumn(column);
+            } catch (IOException e) {
                 return FormValidation.error("Failed to remove column: " + column + "\nThis column may have already been removed. Refresh to update the list of columns to remove."); 
-            } 
-            DBConnection.closeConnection();
+            }
 
             return FormValidation.ok("Successfully removed column " + column + ".");
         }
@@ -226,49 +179,36 @@ public class EnvDashboardView extends View {
         return orderOfComps;
     }
 
-    public ResultSet runQuery(String queryString) {
-        Connection conn = null;
-        Statement stat = null;
+    /**
+     * @return true if the view shows only the environments listed in its
+     *         environment order
+     */
+    public boolean isEnvOrderSet() {
+        return envOrder != null && !splitEnvOrder(envOrder).isEmpty();
+    }
 
-        ResultSet rs = null;
-        
-        //Get DB connection
-        conn = DBConnection.getConnection();
-        
-        try {
-            assert conn != null;
-            stat = conn.createStatement();
-        } catch (SQLException e) {
-            System.out.println("E3" + e.getMessage());
-        }
-        try {
-            assert stat != null;
-            rs = stat.executeQuery(queryString);
-        } catch (SQLException e) {
-            System.out.println("E4" + e.getMessage());
-        }
-        return rs;
+    /**
+     * @return true if the view shows only the components listed in its
+     *         component order
+     */
+    public boolean isCompOrderSet() {
+        return compOrder != null && !splitCompOrder(compOrder).isEmpty();
     }
 
     public ArrayList<String> getOrderOfEnvs() {
         ArrayList<String> orderOfEnvs;
         orderOfEnvs = splitEnvOrder(envOrder);
         if (orderOfEnvs == null || orderOfEnvs.isEmpty()){
-            String queryString="select distinct envname from env_dashboard order by envname;";
+            DashboardMetrics.Operation op = DashboardMetrics.operation("EnvDashboardView.getOrderOfEnvs");
+            long start = System.nanoTime();
             try {
-                ResultSet rs = runQuery(queryString);
-                if (rs == null ) {
-                    return null;
-                }
-                while (rs.next()) {
-                    if (orderOfEnvs != null) {
-                        orderOfEnvs.add(rs.getString("envName"));
-                    }
-                }
-                DBConnection.closeConnection();
-            } catch (SQLException e) {
+                orderOfEnvs.addAll(DashboardStore.get().getEnvironments());
+            } catch (IOException e) {
+                op.error();
                 System.out.println("E6" + e.getMessage());
                 return null;
+            } finally {
+                op.record(start);
             }
         }
         return orderOfEnvs;
@@ -278,18 +218,16 @@ public class EnvDashboardView extends View {
         ArrayList<String> orderOfComps;
         orderOfComps = splitCompOrder(compOrder);
         if (orderOfComps == null || orderOfComps.isEmpty()){
-            String queryString="select distinct compname from env_dashboard order by compname;";
+            DashboardMetrics.Operation op = DashboardMetrics.operation("EnvDashboardView.getOrderOfComps");
+            long start = System.nanoTime();
             try {
-                ResultSet rs = runQuery(queryString);
-                while (rs.next()) {
-                    if (orderOfComps != null) {
-                        orderOfComps.add(rs.getString("compName"));
-                    }
-                }
-                DBConnection.closeConnection();
-            } catch (SQLException e) {
+                orderOfComps.addAll(DashboardStore.get().getComponents());
+            } catch (IOException e) {
+                op.error();
                 System.out.println("E8" + e.getMessage());
                 return null;
+            } finally {
+                op.record(start);
             }
         }
         return orderOfComps;
@@ -315,17 +253,19 @@ public class EnvDashboardView extends View {
         }
         ArrayList<String> deployments;
         deployments = new ArrayList<String>();
-        String queryString="select top " + lastDeploy + " created_at from env_dashboard where envName ='" + env + "' order by created_at desc;";
-            try {
-                ResultSet rs = runQuery(queryString);
-                while (rs.next()) {
-                    deployments.add(rs.getString("created_at"));
-                }
-                DBConnection.closeConnection();
-            } catch (SQLException e) {
-                System.out.println("E11" + e.getMessage());
-                return null;
+        DashboardMetrics.Operation op = DashboardMetrics.operation("EnvDashboardView.getDeployments");
+        long start = System.nanoTime();
+        try {
+            for (Deployment deployment : DashboardStore.get().getHistory(env, null, lastDeploy, null, 0)) {
+                deployments.add(deployment.getTimestamp().toString());
             }
+        } catch (IOException e) {
+            op.error();
+            System.out.println("E11" + e.getMessage());
+            return null;
+        } finally {
+            op.record(start);
+        }
         return deployments;
     }
 
@@ -343,21 +283,29 @@ public class EnvDashboardView extends View {
         return timeStamp.substring(0,19);
     }
 
-    public HashMap getCompDeployed(String env, String time) {
-        HashMap<String, String> deployment;
-        deployment = new HashMap<String, String>();
-        String[] fields = {"buildstatus", "compName", "buildJobUrl", "jobUrl", "buildNum", "packageName"};
-        String queryString = "select " + StringUtils.join(fields, ", ").replace(".$","") + " from env_dashboard where envName = '" + env + "' and created_at = '" + time + "';";
+    public String getNiceTimeStamp(Deployment deployment) {
+        return getNiceTimeStamp(deployment.getTimestamp().toString());
+    }
+
+    public Deployment getCompDeployed(String env, String time) {
+        Deployment deployment = null;
+        DashboardMetrics.Operation op = DashboardMetrics.operation("EnvDashboardView.getCompDeployed");
+        long start = System.nanoTime();
         try {
-            ResultSet rs = runQuery(queryString);
-            rs.next();
-            for (String field : fields) {
-                deployment.put(field, rs.getString(field));
+            // The newest deployment at or before the time, if it is at the time.
+            Timestamp at = Timestamp.valueOf(time);
+            List<Deployment> rows = DashboardStore.get().getHistory(env, null, 1, at, Long.MAX_VALUE);
+            if (!rows.isEmpty() && rows.get(0).getTimestamp().equals(at)) {
+                deployment = rows.get(0);
             }
-            DBConnection.closeConnection();
-        } catch (SQLException e) {
+        } catch (IOException e) {
+            op.error();
             System.out.println("E10" + e.getMessage());
-            System.out.println("Error executing: " + queryString);
+        } catch (IllegalArgumentException e) {
+            op.error();
+            System.out.println("E10" + e.getMessage());
+        } finally {
+            op.record(start);
         }
         return deployment;
     }
@@ -366,93 +314,202 @@ public class EnvDashboardView extends View {
         return DescriptorImpl.getCustomColumns();
     }
 
-    public ArrayList<HashMap<String, String>> getDeploymentsByComp(String comp, Integer lastDeploy) {
-        if ( lastDeploy <= 0 ) {
-            lastDeploy = 10;
+    public List<Deployment> getDeploymentsByEnv(String env, Integer lastDeploy) {
+        return getDeploymentsByEnv(env, lastDeploy, null);
+    }
+
+    public List<Deployment> getDeploymentsByEnv(String env, Integer lastDeploy, String before) {
+        return getHistoryPage("EnvDashboardView.getDeploymentsByEnv", env, null, lastDeploy, before);
+    }
+
+    /**
+     * Load the deployments shown in a popup, from {@link PopupCache} if
+     * nothing has been written since they were last loaded.
+     *
+     * @param kind
+     *            "env" for an environment's history, "comp" for a
+     *            component's history or "compEnv" for a component's
+     *            history in one environment.
+     * @param comp
+     *            the component name, unless kind is "env".
+     * @param env
+     *            the environment name, unless kind is "comp".
+     * @param before
+     *            the cursor of the last deployment already shown, or null
+     *            for the newest deployments.
+     * @return the deployments, newest first, or null on error.
+     */
+    public List<Deployment> getPopupDeployments(String kind, String comp, String env, String before) {
+        Integer limit = getLimitDeployHistory();
+        String key = getViewName() + '\n' + limit + '\n' + kind + '\n' + comp + '\n' + env + '\n' + before;
+        long version = DashboardStore.get().getRevision();
+        List<Deployment> deployments = PopupCache.get(key, version);
+        if (deployments != null) {
+            return deployments;
         }
-        ArrayList<HashMap<String, String>> deployments;
-        deployments = new ArrayList<HashMap<String, String>>();
-        HashMap<String, String> hash;
-        String[] fields = {"envName", "buildstatus", "buildJobUrl", "jobUrl", "buildNum", "created_at", "packageName"};
-        ArrayList<String> allDBFields = getCustomDBColumns();
-        for (String field : fields ){
-            allDBFields.add(field);
+        if ("env".equals(kind)) {
+            deployments = getDeploymentsByEnv(env, limit, before);
+        } else if ("comp".equals(kind)) {
+            deployments = getDeploymentsByComp(comp, limit, before);
+        } else if ("compEnv".equals(kind)) {
+            deployments = getDeploymentsByCompEnv(comp, env, limit, before);
+        }
+        if (deployments != null) {
+            PopupCache.put(key, version, deployments);
         }
-        String queryString="select top " + lastDeploy + " * from env_dashboard where compName='" + comp + "' order by created_at desc;";
-            try {
-                ResultSet rs = runQuery(queryString);
-                while (rs.next()) {
-                    hash = new HashMap<String, String>();
-                    for (String field : allDBFields) {
-                        hash.put(field, rs.getString(field));
-                    }
-                    deployments.add(hash);
-                }
-                DBConnection.closeConnection();
-            } catch (SQLException e) {
-                System.out.println("E11" + e.getMessage());
-                return null;
-            }
         return deployments;
     }
 
-    public ArrayList<HashMap<String, String>> getDeploymentsByCompEnv(String comp, String env, Integer lastDeploy) {
+    public List<Deployment> getDeploymentsByComp(String comp, Integer lastDeploy) {
+        return getDeploymentsByComp(comp, lastDeploy, null);
+    }
+
+    public List<Deployment> getDeploymentsByComp(String comp, Integer lastDeploy, String before) {
+        return getHistoryPage("EnvDashboardView.getDeploymentsByComp", null, comp, lastDeploy, before);
+    }
+
+    public List<Deployment> getDeploymentsByCompEnv(String comp, String env, Integer lastDeploy) {
+        return getDeploymentsByCompEnv(comp, env, lastDeploy, null);
+    }
+
+    public List<Deployment> getDeploymentsByCompEnv(String comp, String env, Integer lastDeploy, String before) {
+        return getHistoryPage("EnvDashboardView.getDeploymentsByCompEnv", env, comp, lastDeploy, before);
+    }
+
+    /**
+     * Load one page of deployment history, newest first. Pages are keyed on
+     * (created_at, id) rather than offset, so any page costs the same as the
+     * first.
+     *
+     * @param operation
+     *            the name the query is timed under in {@link DashboardMetrics}.
+     * @param env
+     *            the environment, or null for every environment.
+     * @param comp
+     *            the component, or null for every component.
+     * @param lastDeploy
+     *            the page size.
+     * @param before
+     *            the cursor of the last deployment of the previous page, or
+     *            null for the first page.
+     * @return the page of deployments, or null on error.
+     */
+    private List<Deployment> getHistoryPage(String operation, String env, String comp, Integer lastDeploy, String before) {
         if ( lastDeploy <= 0 ) {
             lastDeploy = 10;
         }
-        ArrayList<HashMap<String, String>> deployments;
-        deployments = new ArrayList<HashMap<String, String>>();
-        HashMap<String, String> hash;
-        String[] fields = {"envName", "buildstatus", "buildJobUrl", "jobUrl", "buildNum", "created_at", "packageName"};
-        ArrayList<String> allDBFields = getCustomDBColumns();
-        for (String field : fields ){
-            allDBFields.add(field);
-        }
-        String queryString="select top " + lastDeploy + " " +  StringUtils.join(allDBFields, ", ").replace(".$","") + " from env_dashboard where compName='" + comp + "' and envName='" + env + "' order by created_at desc;";
-            try {
-                ResultSet rs = runQuery(queryString);
-                while (rs.next()) {
-                    hash = new HashMap<String, String>();
-                    for (String field : allDBFields) {
-                        hash.put(field, rs.getString(field));
-                    }
-                    deployments.add(hash);
+        Object[] cursor = parseCursor(before);
+        Timestamp beforeTime = cursor == null ? null : (Timestamp) cursor[0];
+        long beforeId = cursor == null ? 0 : (Long) cursor[1];
+        DashboardMetrics.Operation op = DashboardMetrics.operation(operation);
+        long start = System.nanoTime();
+        try {
+            if (env != null && comp != null && cursor == null) {
+                // The newest deployments of a pair are kept in memory.
+                List<Deployment> recent = RecentHistory.get(DashboardStore.get(), env, comp, lastDeploy);
+                if (recent != null) {
+                    return recent;
                 }
-                DBConnection.closeConnection();
-            } catch (SQLException e) {
-                System.out.println("E11" + e.getMessage());
-                return null;
             }
-        return deployments;
+            return DashboardStore.get().getHistory(env, comp, lastDeploy, beforeTime, beforeId);
+        } catch (IOException e) {
+            op.error();
+            System.out.println("E11" + e.getMessage());
+            return null;
+        } finally {
+            op.record(start);
+        }
     }
 
-    public HashMap getCompLastDeployed(String env, String comp) {
-        HashMap<String, String> deployment;
-        deployment = new HashMap<String, String>();
-        String[] fields = {"buildstatus", "buildJobUrl", "jobUrl", "buildNum", "created_at", "packageName"};
-        ArrayList<String> allDBFields = getCustomDBColumns();
-        for (String field : fields ){
-            allDBFields.add(field);
+    /**
+     * @param deployment
+     *            a deployment returned by one of the history methods.
+     * @return the cursor to pass as "before" to fetch the deployments after
+     *         it.
+     */
+    public static String getCursor(Deployment deployment) {
+        return deployment.getTimestamp() + "_" + deployment.getDeploymentId();
+    }
+
+    /**
+     * @param cursor
+     *            a cursor from {@link #getCursor(Deployment)}.
+     * @return true if the cursor is empty or well formed.
+     */
+    public static boolean isValidCursor(String cursor) {
+        return cursor == null || cursor.equals("") || parseCursor(cursor) != null;
+    }
+
+    /**
+     * @return {created_at, id} or null if the cursor is empty or malformed.
+     */
+    private static Object[] parseCursor(String cursor) {
+        if (cursor == null) {
+            return null;
+        }
+        int split = cursor.lastIndexOf('_');
+        if (split < 0) {
+            return null;
         }
-        String queryString = "select top 1 " + StringUtils.join(allDBFields, ", ").replace(".$","") + " from env_dashboard where envName = '" + env + "' and compName = '" + comp + "' order by created_at desc;";
         try {
-            ResultSet rs = runQuery(queryString);
-            rs.next();
-            for (String field : allDBFields) {
-                deployment.put(field, rs.getString(field));
-            }
-            DBConnection.closeConnection();
-        } catch (SQLException e) {
-            if (e.getErrorCode() == 2000) {
-                //We'll assume this comp has never been deployed to this env            }
-            } else {
-                System.out.println("E12" + e.getMessage());
-                System.out.println("Error executing: " + queryString);
-            }
+            return new Object[] { Timestamp.valueOf(cursor.substring(0, split)), Long.valueOf(cursor.substring(split + 1)) };
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public Deployment getCompLastDeployed(String env, String comp) {
+        Deployment deployment = null;
+        DashboardMetrics.Operation op = DashboardMetrics.operation("EnvDashboardView.getCompLastDeployed");
+        long start = System.nanoTime();
+        try {
+            deployment = DashboardStore.get().getLatest(env, comp);
+        } catch (IOException e) {
+            op.error();
+            System.out.println("E12" + e.getMessage());
+        } finally {
+            op.record(start);
         }
         return deployment;
     }
 
+    /**
+     * Load the latest deployment of every component to every environment.
+     * Every {@link DashboardStore} keeps the latest deployments apart from
+     * the history, so the cost depends on the size of the grid rather than
+     * the length of the history.
+     *
+     * @return an immutable snapshot of the dashboard grid.
+     */
+    public DashboardGrid getDashboardGrid() {
+        Map<String, Deployment> cells = new HashMap<String, Deployment>();
+        DashboardMetrics.Operation op = DashboardMetrics.operation("EnvDashboardView.getDashboardGrid");
+        long start = System.nanoTime();
+        try {
+            cells = DashboardStore.get().getLatestGrid();
+        } catch (IOException e) {
+            op.error();
+            System.out.println("E15" + e.getMessage());
+        } finally {
+            op.record(start);
+        }
+        return new DashboardGrid(cells);
+    }
+
+    /**
+     * @return the JSON API of this view, served under dashboardApi/.
+     */
+    public DashboardApi getDashboardApi() {
+        return new DashboardApi(this);
+    }
+
+    /**
+     * @return a hash of the settings that shape what this view shows.
+     */
+    public int getConfigHash() {
+        return (envOrder + "|" + compOrder + "|" + deployHistory).hashCode();
+    }
+
     @Override
     public Collection<TopLevelItem> getItems() {
         return null;
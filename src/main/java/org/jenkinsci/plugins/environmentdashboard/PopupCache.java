@@ -0,0 +1,73 @@
+package org.jenkinsci.plugins.environmentdashboard;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jenkinsci.plugins.environmentdashboard.entity.Deployment;
+
+/**
+ * Small process-wide cache of the deployment lists shown in recently opened
+ * dashboard popups.
+ *
+ * Each entry remembers the store revision it was loaded at and is only
+ * served while that revision is current, so any write makes every entry
+ * stale. The number of entries is bounded by the system property
+ * org.jenkinsci.plugins.environmentdashboard.PopupCache.maxSize.
+ */
+final class PopupCache {
+
+    private static final int MAX_SIZE = Integer.getInteger(PopupCache.class.getName() + ".maxSize", 100);
+
+    /* Popup contents keyed by popup, least recently used first */
+    private static final Map<String, CachedPopup> entries = new LinkedHashMap<String, CachedPopup>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedPopup> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    /**
+     * Added explicit private constructor as this is a utility class.
+     */
+    private PopupCache() {
+
+    }
+
+    /**
+     * @param key
+     *            identifies the popup.
+     * @param version
+     *            the current data version.
+     * @return the cached deployments, or null if absent or stale.
+     */
+    static synchronized List<Deployment> get(String key, long version) {
+        CachedPopup entry = entries.get(key);
+        if (entry == null || entry.version != version) {
+            return null;
+        }
+        return entry.deployments;
+    }
+
+    /**
+     * @param key
+     *            identifies the popup.
+     * @param version
+     *            the data version read before loading the deployments.
+     * @param deployments
+     *            the deployments shown in the popup.
+     */
+    static synchronized void put(String key, long version, List<Deployment> deployments) {
+        entries.put(key, new CachedPopup(version, deployments));
+    }
+
+    private static final class CachedPopup {
+        final long version;
+        final List<Deployment> deployments;
+
+        CachedPopup(long version, List<Deployment> deployments) {
+            this.version = version;
+            this.deployments = deployments;
+        }
+    }
+}
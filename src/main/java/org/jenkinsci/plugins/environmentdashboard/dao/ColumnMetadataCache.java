@@ -0,0 +1,115 @@
+package org.jenkinsci.plugins.environmentdashboard.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.jenkinsci.plugins.environmentdashboard.utils.DBConnection;
+
+/**
+ * Process-wide cache of the registered custom column names.
+ *
+ * Loaded from env_dashboard_columns on first use and reloaded only after
+ * {@link #invalidate()}, which is called whenever a column is actually added
+ * or dropped.
+ */
+public final class ColumnMetadataCache {
+
+    private static final String COLUMNS_QUERY = "SELECT column_name FROM env_dashboard_columns ORDER BY created_at, column_name;";
+
+    /* Cached column names; null when not loaded */
+    private static Columns columns = null;
+
+    /* Bumped on every invalidation so an in-flight load cannot install stale data */
+    private static long generation = 0;
+
+    /**
+     * Added explicit private constructor as this is a utility class.
+     */
+    private ColumnMetadataCache() {
+
+    }
+
+    /**
+     * @return a fresh, mutable list of the custom column names in lower case.
+     * @throws SQLException
+     *             unable to read the column metadata.
+     */
+    public static ArrayList<String> getCustomColumns() throws SQLException {
+        return new ArrayList<String>(load().custom);
+    }
+
+    /**
+     * @param column
+     *            the column name, in any case.
+     * @return true if the custom column is registered.
+     * @throws SQLException
+     *             unable to read the column metadata.
+     */
+    public static boolean hasColumn(String column) throws SQLException {
+        return load().all.contains(column.toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Discard the cached metadata so the next lookup reloads it.
+     */
+    public static synchronized void invalidate() {
+        columns = null;
+        generation++;
+    }
+
+    private static Columns load() throws SQLException {
+        long loadGeneration;
+        synchronized (ColumnMetadataCache.class) {
+            if (columns != null) {
+                return columns;
+            }
+            loadGeneration = generation;
+        }
+        Set<String> all = new HashSet<String>();
+        List<String> custom = new ArrayList<String>();
+        Connection conn = DBConnection.getConnection();
+        if (conn == null) {
+            throw new SQLException("Could not acquire connection to H2 DB.");
+        }
+        try {
+            PreparedStatement stat = conn.prepareStatement(COLUMNS_QUERY);
+            ResultSet rs = stat.executeQuery();
+            while (rs.next()) {
+                String col = rs.getString(1).toLowerCase(Locale.ENGLISH);
+                if (all.add(col)) {
+                    custom.add(col);
+                }
+            }
+        } finally {
+            DBConnection.closeConnection(conn);
+        }
+        Columns loaded = new Columns(all, custom);
+        synchronized (ColumnMetadataCache.class) {
+            if (generation == loadGeneration) {
+                columns = loaded;
+            }
+        }
+        return loaded;
+    }
+
+    private static final class Columns {
+        /* Custom column names for lookups, lower case */
+        final Set<String> all;
+
+        /* Custom column names, lower case, in table order */
+        final List<String> custom;
+
+        Columns(Set<String> all, List<String> custom) {
+            this.all = Collections.unmodifiableSet(all);
+            this.custom = Collections.unmodifiableList(custom);
+        }
+    }
+}
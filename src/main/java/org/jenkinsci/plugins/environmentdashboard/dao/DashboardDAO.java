@@ -2,11 +2,30 @@ package org.jenkinsci.plugins.environmentdashboard.dao;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 import org.jenkinsci.plugins.environmentdashboard.entity.Build;
+import org.jenkinsci.plugins.environmentdashboard.entity.DashboardGrid;
+import org.jenkinsci.plugins.environmentdashboard.entity.Deployment;
+import org.jenkinsci.plugins.environmentdashboard.entity.DeploymentEvent;
 import org.jenkinsci.plugins.environmentdashboard.utils.DBConnection;
+import org.jenkinsci.plugins.environmentdashboard.utils.DashboardMetrics;
+import org.jenkinsci.plugins.environmentdashboard.utils.NamePool;
 
 /**
  * This class is a data access object that handles interactions between the
@@ -17,66 +36,760 @@ import org.jenkinsci.plugins.environmentdashboard.utils.DBConnection;
  */
 public class DashboardDAO {
 
-    // Create dashboard query
-    private static String createDashboardTblQuery = "CREATE TABLE IF NOT EXISTS env_dashboard (envComp VARCHAR(255), jobUrl VARCHAR(255), "
-            + "buildNum VARCHAR(255), buildStatus VARCHAR(255), envName VARCHAR(255), compName "
-            + "VARCHAR(255), created_at TIMESTAMP,  buildJobUrl VARCHAR(255), packageName VARCHAR(255));";
+    // Create id sequence query - ids are handed out before insert so custom values can reference them.
+    private static String createIdSequenceQuery = "CREATE SEQUENCE IF NOT EXISTS env_dashboard_id_seq;";
+
+    // Create name dictionary queries - each environment, component and status name is stored once.
+    private static String[] createNameTblQueries = {
+            "CREATE TABLE IF NOT EXISTS env_dashboard_env (id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(255) NOT NULL UNIQUE);",
+            "CREATE TABLE IF NOT EXISTS env_dashboard_comp (id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(255) NOT NULL UNIQUE);",
+            "CREATE TABLE IF NOT EXISTS env_dashboard_status (id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(255) NOT NULL UNIQUE);" };
+
+    // Create dashboard query - names are ids into the dictionary tables.
+    private static String createDashboardTblQuery = "CREATE TABLE IF NOT EXISTS env_dashboard (env_id INT, comp_id INT, status_id INT, "
+            + "jobUrl VARCHAR(255), buildNum VARCHAR(255), created_at TIMESTAMP, buildJobUrl VARCHAR(255), packageName VARCHAR(255), "
+            + "id BIGINT DEFAULT (NEXT VALUE FOR env_dashboard_id_seq));";
+
+    // Upgrade queries - bring tables created by older versions up to date.
+    private static String[] upgradeDashboardTblQueries = {
+            "ALTER TABLE env_dashboard ADD IF NOT EXISTS packageName VARCHAR(255);",
+            "ALTER TABLE env_dashboard ADD IF NOT EXISTS id BIGINT DEFAULT (NEXT VALUE FOR env_dashboard_id_seq);",
+            "UPDATE env_dashboard SET id = NEXT VALUE FOR env_dashboard_id_seq WHERE id IS NULL;" };
+
+    // Name columns of older versions, as {column, id column, dictionary table}.
+    private static String[][] legacyNameColumns = { { "ENVNAME", "env_id", "env_dashboard_env" },
+            { "COMPNAME", "comp_id", "env_dashboard_comp" }, { "BUILDSTATUS", "status_id", "env_dashboard_status" } };
+
+    // Find column query - the table and column names are upper case.
+    private static String findColumnQuery = "SELECT COUNT(*) FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_NAME = ? AND COLUMN_NAME = ?;";
+
+    // Drop name index queries - indexes of older versions on the name columns, which cannot be dropped while indexed.
+    private static String[] dropNameIndexQueries = {
+            "DROP INDEX IF EXISTS env_dashboard_env_comp_page_idx;",
+            "DROP INDEX IF EXISTS env_dashboard_env_page_idx;",
+            "DROP INDEX IF EXISTS env_dashboard_comp_page_idx;",
+            "DROP INDEX IF EXISTS env_dashboard_env_comp_time_idx;",
+            "DROP INDEX IF EXISTS env_dashboard_env_time_idx;",
+            "DROP INDEX IF EXISTS env_dashboard_comp_time_idx;",
+            "DROP INDEX IF EXISTS env_dashboard_env_comp_idx;",
+            "DROP INDEX IF EXISTS env_dashboard_env_idx;",
+            "DROP INDEX IF EXISTS env_dashboard_comp_idx;",
+            "DROP INDEX IF EXISTS env_dashboard_envcomp_joburl_idx;" };
+
+    // Create custom column registry query - dropping a column only removes it from here.
+    private static String createColumnsTblQuery = "CREATE TABLE IF NOT EXISTS env_dashboard_columns (column_name VARCHAR(255) PRIMARY KEY, "
+            + "created_at TIMESTAMP);";
+
+    // Create custom column values query - one row per deployment and custom column.
+    private static String createCustomTblQuery = "CREATE TABLE IF NOT EXISTS env_dashboard_custom (deployment_id BIGINT NOT NULL, "
+            + "column_name VARCHAR(255) NOT NULL, column_value VARCHAR, PRIMARY KEY (deployment_id, column_name), "
+            + "FOREIGN KEY (deployment_id) REFERENCES env_dashboard (id) ON DELETE CASCADE);";
+
+    // Create latest deployment query - one row per environment and component, maintained on every write.
+    private static String createLatestTblQuery = "CREATE TABLE IF NOT EXISTS env_comp_latest (env_id INT NOT NULL, "
+            + "comp_id INT NOT NULL, deployment_id BIGINT NOT NULL, created_at TIMESTAMP, PRIMARY KEY (env_id, comp_id), "
+            + "FOREIGN KEY (deployment_id) REFERENCES env_dashboard (id) ON DELETE CASCADE);";
+
+    // Rebuild latest deployment queries - run once per JVM so the table cannot drift from env_dashboard.
+    private static String[] rebuildLatestQueries = {
+            "DELETE FROM env_comp_latest;",
+            "INSERT INTO env_comp_latest (env_id, comp_id, deployment_id, created_at) SELECT d.env_id, d.comp_id, "
+                    + "MAX(d.id), d.created_at FROM env_dashboard d INNER JOIN (SELECT env_id, comp_id, MAX(created_at) AS "
+                    + "last_created FROM env_dashboard WHERE env_id IS NOT NULL AND comp_id IS NOT NULL GROUP BY env_id, "
+                    + "comp_id) l ON d.env_id = l.env_id AND d.comp_id = l.comp_id AND d.created_at = l.last_created "
+                    + "GROUP BY d.env_id, d.comp_id, d.created_at;" };
+
+    // Delete latest deployment query
+    private static String deleteLatestQuery = "DELETE FROM env_comp_latest WHERE env_id = ? AND comp_id = ?;";
+
+    // Refresh latest deployment query - an index seek on env_dashboard_env_comp_time_idx.
+    private static String refreshLatestQuery = "INSERT INTO env_comp_latest (env_id, comp_id, deployment_id, created_at) "
+            + "SELECT TOP 1 env_id, comp_id, id, created_at FROM env_dashboard WHERE env_id = ? AND comp_id = ? "
+            + "ORDER BY created_at DESC, id DESC;";
+
+    // Name filters - scalar subqueries rather than joins, so both ids seek on env_dashboard_env_comp_time_idx.
+    private static String envIdFilter = "(SELECT id FROM env_dashboard_env WHERE name = ?)";
+    private static String compIdFilter = "(SELECT id FROM env_dashboard_comp WHERE name = ?)";
+
+    // Deployment fields, as read by getLatestDeployments and getHistory.
+    private static String[] latestFields = { "id", "envName", "compName", "buildstatus", "buildJobUrl", "jobUrl", "buildNum",
+            "created_at", "packageName" };
+
+    // Deployment columns, with the names looked up in the dictionary tables.
+    private static String deploymentColumns = "SELECT d.id, e.name AS envName, c.name AS compName, s.name AS buildStatus, "
+            + "d.buildJobUrl, d.jobUrl, d.buildNum, d.created_at, d.packageName FROM ";
+
+    // Dictionary joins of deployment rows d.
+    private static String nameJoins = " LEFT JOIN env_dashboard_env e ON e.id = d.env_id LEFT JOIN env_dashboard_comp c "
+            + "ON c.id = d.comp_id LEFT JOIN env_dashboard_status s ON s.id = d.status_id";
+
+    // Select latest deployments query - a filter may be appended.
+    private static String selectLatestQuery = DashboardDAO.deploymentColumns
+            + "env_comp_latest l INNER JOIN env_dashboard d ON d.id = l.deployment_id" + DashboardDAO.nameJoins;
+
+    // Select history query - the filter and page bounds are appended.
+    private static String selectHistoryQuery = DashboardDAO.deploymentColumns + "env_dashboard d" + DashboardDAO.nameJoins;
+
+    // Select environments query - names stay in the dictionary once their deployments are pruned.
+    private static String selectEnvironmentsQuery = "SELECT e.name FROM env_dashboard_env e WHERE EXISTS "
+            + "(SELECT 1 FROM env_dashboard d WHERE d.env_id = e.id) ORDER BY e.name;";
+
+    // Select components query
+    private static String selectComponentsQuery = "SELECT c.name FROM env_dashboard_comp c WHERE EXISTS "
+            + "(SELECT 1 FROM env_dashboard d WHERE d.comp_id = c.id) ORDER BY c.name;";
+
+    // Select name id query - formatted with the dictionary table.
+    private static String selectNameIdQuery = "SELECT id FROM %s WHERE name = ?;";
+
+    // Add name query - formatted with the dictionary table. A MERGE waits for a concurrent insert of the name
+    // where an INSERT fails on the unique key.
+    private static String mergeNameQuery = "MERGE INTO %s (name) KEY (name) VALUES (?);";
+
+    // Legacy custom columns - columns added to env_dashboard by older versions.
+    private static String legacyColumnsQuery = "SELECT COLUMN_NAME FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_NAME = 'ENV_DASHBOARD' "
+            + "AND LOWER(COLUMN_NAME) NOT IN ('envcomp', 'joburl', 'buildnum', 'buildstatus', 'envname', 'compname', 'created_at', "
+            + "'buildjoburl', 'packagename', 'id', 'env_id', 'comp_id', 'status_id');";
+
+    // Allocate ids query
+    private static String nextIdsQuery = "SELECT NEXT VALUE FOR env_dashboard_id_seq FROM SYSTEM_RANGE(1, ?);";
 
     // Delete old build query
-    private static String deleteOldBuildQuery = "DELETE FROM env_dashboard where created_at <= current_timestamp - ";
+    private static String deleteOldBuildQuery = "DELETE FROM env_dashboard where created_at <= ?;";
+
+    // Delete a chunk of old builds query
+    private static String pruneOldBuildQuery = "DELETE FROM env_dashboard WHERE created_at <= ? LIMIT ?;";
+
+    // Delete a chunk of values of dropped custom columns query
+    private static String pruneDroppedValuesQuery = "DELETE FROM env_dashboard_custom WHERE column_name NOT IN "
+            + "(SELECT column_name FROM env_dashboard_columns) LIMIT ?;";
+
+    // Update build query with an explicit timestamp
+    private static String updateBuildAtQuery = "UPDATE env_dashboard SET status_id = ?, created_at = ? WHERE "
+            + "joburl = ? AND env_id = ? AND comp_id = ?;";
 
-    // Update build query
-    private static String updateBuildQuery = "UPDATE env_dashboard SET buildStatus = ?, created_at = CURRENT_TIMESTAMP WHERE "
-            + "envComp = ? AND joburl = ?;";
+    // Insert build query
+    private static String insertBuildQuery = "INSERT INTO env_dashboard (id, jobUrl, buildNum, status_id, env_id, comp_id, "
+            + "created_at, buildJobUrl, packageName) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?);";
+
+    // Insert custom column value query
+    private static String insertCustomValueQuery = "INSERT INTO env_dashboard_custom (deployment_id, column_name, column_value) "
+            + "VALUES (?, ?, ?);";
+
+    // Select custom column values query - the id list is appended.
+    private static String selectCustomValuesQuery = "SELECT deployment_id, column_name, column_value FROM env_dashboard_custom "
+            + "WHERE deployment_id IN ";
 
     // Truncate table - delete old tuples in env_dashboard
-    private static String truncateEnvDashbord = "TRUNCATE TABLE env_dashboard;";
+    private static String truncateEnvDashbord = "DELETE FROM env_dashboard;";
     
-    // Add Column - add column to db.
-    private static String alterColumnQuery = "ALTER TABLE env_dashboard ADD IF NOT EXISTS ";
+    // Add Column - register a custom column.
+    private static String addColumnQuery = "MERGE INTO env_dashboard_columns (column_name, created_at) KEY (column_name) VALUES (?, ?);";
     
+    // Drop Column - unregister a custom column.
+    private static String dropColumnQuery = "DELETE FROM env_dashboard_columns WHERE column_name = ?;";
+
     // Delete Build query
-    private static String deleteBuildQuery = "DELETE FROM env_dashboard where envComp = ? AND joburl = ?;";
+    private static String deleteBuildQuery = "DELETE FROM env_dashboard where joburl = ? AND env_id = ? AND comp_id = ?;";
+
+    // Create index queries - one per access path used by the view and the builder.
+    private static String[] createIndexQueries = {
+            "CREATE UNIQUE INDEX IF NOT EXISTS env_dashboard_id_idx ON env_dashboard (id);",
+            // Ascending: H2 1.4's MVStore finds no rows through a prefix of an index with DESC columns.
+            "DROP INDEX IF EXISTS env_dashboard_env_comp_page_idx;",
+            "DROP INDEX IF EXISTS env_dashboard_env_page_idx;",
+            "DROP INDEX IF EXISTS env_dashboard_comp_page_idx;",
+            "CREATE INDEX IF NOT EXISTS env_dashboard_env_comp_time_idx ON env_dashboard (env_id, comp_id, created_at, id);",
+            "CREATE INDEX IF NOT EXISTS env_dashboard_env_time_idx ON env_dashboard (env_id, created_at, id);",
+            "CREATE INDEX IF NOT EXISTS env_dashboard_comp_time_idx ON env_dashboard (comp_id, created_at, id);",
+            // Superseded by the page indexes above, which also order by id for keyset paging.
+            "DROP INDEX IF EXISTS env_dashboard_env_comp_idx;",
+            "DROP INDEX IF EXISTS env_dashboard_env_idx;",
+            "DROP INDEX IF EXISTS env_dashboard_comp_idx;",
+            // Build urls are near unique, so POST and NODEPLOY need no name columns in the index.
+            "CREATE INDEX IF NOT EXISTS env_dashboard_joburl_idx ON env_dashboard (jobUrl);",
+            "CREATE INDEX IF NOT EXISTS env_dashboard_created_idx ON env_dashboard (created_at);" };
+
+    // Create custom value index queries
+    private static String[] createCustomIndexQueries = {
+            "CREATE INDEX IF NOT EXISTS env_dashboard_custom_column_idx ON env_dashboard_custom (column_name);" };
+
+    // Set once the schema has been created and upgraded in this JVM.
+    private static volatile boolean schemaReady = false;
 
     /**
-     * Create dashboard table
+     * Create the dashboard tables and indexes, and upgrade tables created by
+     * older versions. Runs its DDL once per JVM.
      * 
-     * @return true if table created, else false.
+     * @return true if the schema was created or upgraded by this call.
      * @exception SQLException
      *                unable to execute create dashboard query.
      */
     public boolean createDashboardTable() throws SQLException {
+        if (schemaReady) {
+            return false;
+        }
+        DashboardMetrics.Operation op = DashboardMetrics.operation("DashboardDAO.createDashboardTable");
+        long start = System.nanoTime();
+        try {
+            synchronized (DashboardDAO.class) {
+                if (schemaReady) {
+                    return false;
+                }
+                Connection conn = DashboardDAO.getConnection();
+                try {
+                    Statement stat = conn.createStatement();
+                    stat.execute(DashboardDAO.createIdSequenceQuery);
+                    for (String query : DashboardDAO.createNameTblQueries) {
+                        stat.execute(query);
+                    }
+                    stat.execute(DashboardDAO.createDashboardTblQuery);
+                    for (String query : DashboardDAO.upgradeDashboardTblQueries) {
+                        stat.execute(query);
+                    }
+                    stat.close();
+                    migrateNameColumns(conn);
+                } finally {
+                    DBConnection.closeConnection(conn);
+                }
+                createIndexes();
+                conn = DashboardDAO.getConnection();
+                try {
+                    Statement stat = conn.createStatement();
+                    stat.execute(DashboardDAO.createColumnsTblQuery);
+                    stat.execute(DashboardDAO.createCustomTblQuery);
+                    for (String query : DashboardDAO.createCustomIndexQueries) {
+                        stat.execute(query);
+                    }
+                    stat.close();
+                    migrateLegacyColumns(conn);
+                } finally {
+                    DBConnection.closeConnection(conn);
+                    ColumnMetadataCache.invalidate();
+                }
+                conn = DashboardDAO.getConnection();
+                try {
+                    Statement stat = conn.createStatement();
+                    stat.execute(DashboardDAO.createLatestTblQuery);
+                    conn.setAutoCommit(false);
+                    for (String query : DashboardDAO.rebuildLatestQueries) {
+                        stat.execute(query);
+                    }
+                    conn.commit();
+                    stat.close();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    DBConnection.closeConnection(conn);
+                }
+                LatestDeploymentCache.invalidate();
+                schemaReady = true;
+                return true;
+            }
+        } catch (SQLException e) {
+            op.error();
+            throw e;
+        } finally {
+            op.record(start);
+        }
+    }
 
-        // Get DB connection
-        Connection conn = DBConnection.getConnection();
-        return conn.prepareStatement(DashboardDAO.createDashboardTblQuery)
-                .execute();
+    /**
+     * Make the next {@link #createDashboardTable()} check and upgrade the
+     * schema again, as after the DB has been replaced.
+     */
+    static void invalidateSchema() {
+        schemaReady = false;
+    }
+
+    /**
+     * Create the indexes on env_dashboard if they do not already exist.
+     * Existing installs get them the first time this runs.
+     * 
+     * @throws SQLException
+     *             unable to execute create index query.
+     */
+    public void createIndexes() throws SQLException {
+        DashboardMetrics.Operation op = DashboardMetrics.operation("DashboardDAO.createIndexes");
+        long start = System.nanoTime();
+        try {
+            Connection conn = DashboardDAO.getConnection();
+            try {
+                Statement stat = conn.createStatement();
+                for (String query : DashboardDAO.createIndexQueries) {
+                    stat.execute(query);
+                }
+                stat.close();
+            } finally {
+                DBConnection.closeConnection(conn);
+            }
+        } catch (SQLException e) {
+            op.error();
+            throw e;
+        } finally {
+            op.record(start);
+        }
+    }
+
+    /**
+     * Move the name columns of env_dashboard tables created by older versions
+     * into the dictionary tables, one column at a time so an interrupted
+     * migration carries on where it stopped. env_comp_latest is recreated, as
+     * it is rebuilt on start anyway.
+     */
+    private static void migrateNameColumns(Connection conn) throws SQLException {
+        Statement stat = conn.createStatement();
+        if (DashboardDAO.hasColumn(conn, "ENV_COMP_LATEST", "ENVNAME")) {
+            stat.execute("DROP TABLE env_comp_latest;");
+        }
+        boolean indexesDropped = false;
+        for (String[] name : DashboardDAO.legacyNameColumns) {
+            if (!DashboardDAO.hasColumn(conn, "ENV_DASHBOARD", name[0])) {
+                continue;
+            }
+            if (!indexesDropped) {
+                for (String query : DashboardDAO.dropNameIndexQueries) {
+                    stat.execute(query);
+                }
+                indexesDropped = true;
+            }
+            stat.execute("ALTER TABLE env_dashboard ADD IF NOT EXISTS " + name[1] + " INT;");
+            stat.execute("INSERT INTO " + name[2] + " (name) SELECT DISTINCT " + name[0] + " FROM env_dashboard WHERE "
+                    + name[0] + " IS NOT NULL AND " + name[0] + " NOT IN (SELECT name FROM " + name[2] + ");");
+            stat.execute("UPDATE env_dashboard d SET " + name[1] + " = (SELECT n.id FROM " + name[2] + " n WHERE n.name = d."
+                    + name[0] + ") WHERE " + name[0] + " IS NOT NULL;");
+            stat.execute("ALTER TABLE env_dashboard DROP COLUMN " + name[0] + ";");
+        }
+        if (DashboardDAO.hasColumn(conn, "ENV_DASHBOARD", "ENVCOMP")) {
+            // Always envName=compName, so nothing to keep.
+            stat.execute("DROP INDEX IF EXISTS env_dashboard_envcomp_joburl_idx;");
+            stat.execute("ALTER TABLE env_dashboard DROP COLUMN envComp;");
+        }
+        stat.close();
+    }
+
+    private static boolean hasColumn(Connection conn, String table, String column) throws SQLException {
+        PreparedStatement stat = conn.prepareStatement(DashboardDAO.findColumnQuery);
+        DashboardDAO.setValues(stat, table, column);
+        ResultSet rs = stat.executeQuery();
+        boolean found = rs.next() && rs.getInt(1) > 0;
+        stat.close();
+        return found;
+    }
+
+    /**
+     * Move custom columns added to env_dashboard by older versions into the
+     * custom value table and drop them from env_dashboard. Safe to re-run.
+     */
+    private static void migrateLegacyColumns(Connection conn) throws SQLException {
+        List<String> legacyColumns = new ArrayList<String>();
+        Statement stat = conn.createStatement();
+        ResultSet rs = stat.executeQuery(DashboardDAO.legacyColumnsQuery);
+        while (rs.next()) {
+            legacyColumns.add(rs.getString("COLUMN_NAME"));
+        }
+        rs.close();
+        for (String column : legacyColumns) {
+            String name = column.toLowerCase(Locale.ENGLISH);
+            String quoted = "\"" + column.replace("\"", "\"\"") + "\"";
+            PreparedStatement register = conn.prepareStatement(DashboardDAO.addColumnQuery);
+            DashboardDAO.setValues(register, name, new Timestamp(System.currentTimeMillis()));
+            register.execute();
+            PreparedStatement copy = conn.prepareStatement("MERGE INTO env_dashboard_custom (deployment_id, column_name, column_value) "
+                    + "KEY (deployment_id, column_name) SELECT id, ?, " + quoted + " FROM env_dashboard WHERE " + quoted + " IS NOT NULL;");
+            DashboardDAO.setValues(copy, name);
+            copy.execute();
+            stat.execute("ALTER TABLE env_dashboard DROP COLUMN " + quoted + ";");
+        }
+        stat.close();
     }
     
     /**
-     * add column to db table.
-     * @param the column to add
+     * Register a custom column. The column metadata cache is consulted first
+     * so nothing is written for columns that already exist.
+     * @param the column to add; a trailing type such as "name VARCHAR" is
+     *            ignored.
      * @return true if added, else false.
      * @exception SQLException
      *                unable to execute add column query.
      * 
      */
     public boolean addColumn(String column) throws SQLException{
-        // Get DB Connection
-        Connection conn = DBConnection.getConnection();
+        DashboardMetrics.Operation op = DashboardMetrics.operation("DashboardDAO.addColumn");
+        long start = System.nanoTime();
+        try {
+            String columnName = column.trim().split("\\s+")[0].toLowerCase(Locale.ENGLISH);
+            if (ColumnMetadataCache.hasColumn(columnName)) {
+                return false;
+            }
 
-        /* Can't use prepared statement for modifying a table as '?' are
-         * bound to data items only.
-         * Using temp variable as the query has a static modifier. 
-         */
-        String temp = DashboardDAO.alterColumnQuery + column + ";";
-        
-        Statement stat = conn.createStatement();
-        boolean result = stat.execute(temp);
-        stat.close();
-        DBConnection.closeConnection();
+            // Get DB Connection
+            Connection conn = DashboardDAO.getConnection();
+            try {
+                PreparedStatement stat = conn.prepareStatement(DashboardDAO.addColumnQuery);
+                DashboardDAO.setValues(stat, columnName, new Timestamp(System.currentTimeMillis()));
+                stat.execute();
+            } finally {
+                DBConnection.closeConnection(conn);
+                ColumnMetadataCache.invalidate();
+                LatestDeploymentCache.invalidate();
+            }
+
+            return true;
+        } catch (SQLException e) {
+            op.error();
+            throw e;
+        } finally {
+            op.record(start);
+        }
+    }
+
+    /**
+     * Unregister a custom column. Its values are no longer shown and are
+     * deleted later by {@link #pruneDroppedColumnValues(int)}.
+     * @param column
+     *            the column to drop.
+     * @exception SQLException
+     *                unable to execute drop column query.
+     */
+    public void dropColumn(String column) throws SQLException {
+        DashboardMetrics.Operation op = DashboardMetrics.operation("DashboardDAO.dropColumn");
+        long start = System.nanoTime();
+        try {
+            // Get DB Connection
+            Connection conn = DashboardDAO.getConnection();
+            try {
+                PreparedStatement stat = conn.prepareStatement(DashboardDAO.dropColumnQuery);
+                DashboardDAO.setValues(stat, column.toLowerCase(Locale.ENGLISH));
+                stat.execute();
+            } finally {
+                DBConnection.closeConnection(conn);
+                ColumnMetadataCache.invalidate();
+                LatestDeploymentCache.invalidate();
+            }
+        } catch (SQLException e) {
+            op.error();
+            throw e;
+        } finally {
+            op.record(start);
+        }
+    }
 
-        return result;
+    /**
+     * Load the custom column values of a set of deployments in one query.
+     * 
+     * @param deploymentIds
+     *            the ids of the env_dashboard rows.
+     * @return the custom column values keyed by deployment id, then by
+     *         column name.
+     * @throws SQLException
+     *             unable to execute select custom values query.
+     */
+    public Map<Long, Map<String, String>> getCustomValues(Collection<Long> deploymentIds) throws SQLException {
+        DashboardMetrics.Operation op = DashboardMetrics.operation("DashboardDAO.getCustomValues");
+        long start = System.nanoTime();
+        try {
+            Map<Long, Map<String, String>> values = new HashMap<Long, Map<String, String>>();
+            if (deploymentIds.isEmpty()) {
+                return values;
+            }
+            // Pad the id list so only a few statement shapes are ever prepared.
+            Object[] ids = DashboardDAO.padToBucket(deploymentIds.toArray(), 1);
+            StringBuilder placeholders = new StringBuilder("(");
+            for (int i = 0; i < ids.length; i++) {
+                placeholders.append(i == 0 ? "?" : ", ?");
+            }
+            placeholders.append(");");
+            Connection conn = DashboardDAO.getConnection();
+            try {
+                PreparedStatement stat = conn.prepareStatement(DashboardDAO.selectCustomValuesQuery + placeholders);
+                DashboardDAO.setValues(stat, ids);
+                ResultSet rs = stat.executeQuery();
+                while (rs.next()) {
+                    Long id = rs.getLong(1);
+                    Map<String, String> row = values.get(id);
+                    if (row == null) {
+                        row = new HashMap<String, String>();
+                        values.put(id, row);
+                    }
+                    row.put(NamePool.canonical(rs.getString(2)), rs.getString(3));
+                }
+            } finally {
+                DBConnection.closeConnection(conn);
+            }
+            return values;
+        } catch (SQLException e) {
+            op.error();
+            throw e;
+        } finally {
+            op.record(start);
+        }
+    }
+
+    /**
+     * Load the latest deployment of every environment and component.
+     * 
+     * @return the deployments with their registered custom column values,
+     *         keyed by envComp.
+     * @throws SQLException
+     *             unable to execute select latest query.
+     */
+    public Map<String, Deployment> getLatestDeployments() throws SQLException {
+        return loadLatest(DashboardDAO.selectLatestQuery + ";", new Object[0]);
+    }
+
+    /**
+     * Load the latest deployment of some environment and component pairs in
+     * one query.
+     * 
+     * @param pairs
+     *            {envName, compName} pairs.
+     * @return the deployments with their registered custom column values,
+     *         keyed by envComp. Pairs never deployed are absent.
+     * @throws SQLException
+     *             unable to execute select latest query.
+     */
+    public Map<String, Deployment> getLatestDeployments(Collection<String[]> pairs) throws SQLException {
+        if (pairs.isEmpty()) {
+            return new HashMap<String, Deployment>();
+        }
+        Object[] values = new Object[pairs.size() * 2];
+        int i = 0;
+        for (String[] pair : pairs) {
+            values[i++] = pair[0];
+            values[i++] = pair[1];
+        }
+        // Pad the pair list so only a few statement shapes are ever prepared.
+        values = DashboardDAO.padToBucket(values, 2);
+        StringBuilder query = new StringBuilder(DashboardDAO.selectLatestQuery).append(" WHERE ");
+        for (i = 0; i < values.length; i += 2) {
+            query.append(i == 0 ? "" : " OR ").append("(l.env_id = ").append(DashboardDAO.envIdFilter)
+                    .append(" AND l.comp_id = ").append(DashboardDAO.compIdFilter).append(")");
+        }
+        return loadLatest(query.append(";").toString(), values);
+    }
+
+    private Map<String, Deployment> loadLatest(String query, Object[] values) throws SQLException {
+        DashboardMetrics.Operation op = DashboardMetrics.operation("DashboardDAO.getLatestDeployments");
+        long start = System.nanoTime();
+        try {
+            Map<String, Deployment> latest = new HashMap<String, Deployment>();
+            for (Deployment deployment : selectDeployments(query, values)) {
+                latest.put(DashboardGrid.key(deployment.getEnvironment(), deployment.getComponantName()), deployment);
+            }
+            return latest;
+        } catch (SQLException e) {
+            op.error();
+            throw e;
+        } finally {
+            op.record(start);
+        }
+    }
+
+    /**
+     * Load one page of deployment history, newest first. Pages are keyed on
+     * (created_at, id) rather than offset, so any page costs the same as the
+     * first.
+     * 
+     * @param env
+     *            the environment name, or null for every environment.
+     * @param comp
+     *            the component name, or null for every component.
+     * @param limit
+     *            the page size.
+     * @param beforeTime
+     *            created_at of the last deployment of the previous page, or
+     *            null for the first page.
+     * @param beforeId
+     *            id of the last deployment of the previous page.
+     * @return the deployments with their registered custom column values.
+     * @throws SQLException
+     *             unable to execute select history query.
+     */
+    public List<Deployment> getHistory(String env, String comp, int limit, Timestamp beforeTime, long beforeId)
+            throws SQLException {
+        DashboardMetrics.Operation op = DashboardMetrics.operation("DashboardDAO.getHistory");
+        long start = System.nanoTime();
+        try {
+            List<String> filters = new ArrayList<String>();
+            List<Object> values = new ArrayList<Object>();
+            if (env != null) {
+                filters.add("d.env_id = " + DashboardDAO.envIdFilter);
+                values.add(env);
+            }
+            if (comp != null) {
+                filters.add("d.comp_id = " + DashboardDAO.compIdFilter);
+                values.add(comp);
+            }
+            if (beforeTime != null) {
+                filters.add("d.created_at <= ? AND (d.created_at < ? OR d.id < ?)");
+                values.add(beforeTime);
+                values.add(beforeTime);
+                values.add(beforeId);
+            }
+            StringBuilder query = new StringBuilder(DashboardDAO.selectHistoryQuery);
+            for (int i = 0; i < filters.size(); i++) {
+                query.append(i == 0 ? " WHERE " : " AND ").append(filters.get(i));
+            }
+            query.append(" ORDER BY d.created_at DESC, d.id DESC LIMIT ?;");
+            values.add(limit);
+            return selectDeployments(query.toString(), values.toArray());
+        } catch (SQLException e) {
+            op.error();
+            throw e;
+        } finally {
+            op.record(start);
+        }
+    }
+
+    /**
+     * @return every environment deployed to, in name order.
+     * @throws SQLException
+     *             unable to execute select environments query.
+     */
+    public List<String> getEnvironments() throws SQLException {
+        return selectNames("DashboardDAO.getEnvironments", DashboardDAO.selectEnvironmentsQuery);
+    }
+
+    /**
+     * @return every component deployed, in name order.
+     * @throws SQLException
+     *             unable to execute select components query.
+     */
+    public List<String> getComponents() throws SQLException {
+        return selectNames("DashboardDAO.getComponents", DashboardDAO.selectComponentsQuery);
+    }
+
+    /**
+     * Run a deployment query, then load the values of the registered custom
+     * columns of every row read with one more query.
+     */
+    private List<Deployment> selectDeployments(String query, Object[] values) throws SQLException {
+        List<String> registered = ColumnMetadataCache.getCustomColumns();
+        String[] columns = registered.toArray(new String[registered.size()]);
+        List<Deployment> deployments = new ArrayList<Deployment>();
+        Map<Long, String[]> byId = new HashMap<Long, String[]>();
+        Connection conn = DashboardDAO.getConnection();
+        try {
+            PreparedStatement stat = conn.prepareStatement(query);
+            DashboardDAO.setValues(stat, values);
+            ResultSet rs = stat.executeQuery();
+            int[] fields = DashboardDAO.findFields(rs);
+            while (rs.next()) {
+                String[] custom = columns.length == 0 ? null : new String[columns.length];
+                Deployment deployment = DashboardDAO.readDeployment(rs, fields, columns, custom);
+                deployments.add(deployment);
+                if (custom != null) {
+                    byId.put(deployment.getDeploymentId(), custom);
+                }
+            }
+        } finally {
+            DBConnection.closeConnection(conn);
+        }
+        addCustomValues(columns, byId);
+        return deployments;
+    }
+
+    /**
+     * @return the index of every one of the latestFields in the result set,
+     *         resolved once per query rather than once per row.
+     */
+    private static int[] findFields(ResultSet rs) throws SQLException {
+        int[] fields = new int[DashboardDAO.latestFields.length];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = rs.findColumn(DashboardDAO.latestFields[i]);
+        }
+        return fields;
+    }
+
+    /**
+     * @param fields
+     *            the indexes from {@link #findFields(ResultSet)}.
+     * @return the deployment of the current row, with the names taken from
+     *         {@link NamePool}. The custom values are filled in later.
+     */
+    private static Deployment readDeployment(ResultSet rs, int[] fields, String[] columns, String[] custom)
+            throws SQLException {
+        Timestamp createdAt = rs.getTimestamp(fields[7]);
+        return new Deployment(rs.getLong(fields[0]), NamePool.canonical(rs.getString(fields[1])),
+                NamePool.canonical(rs.getString(fields[2])), NamePool.canonical(rs.getString(fields[3])),
+                rs.getString(fields[4]), rs.getString(fields[5]), rs.getString(fields[6]),
+                createdAt == null ? 0 : createdAt.getTime(), rs.getString(fields[8]), columns, custom);
+    }
+
+    private List<String> selectNames(String operation, String query) throws SQLException {
+        DashboardMetrics.Operation op = DashboardMetrics.operation(operation);
+        long start = System.nanoTime();
+        try {
+            List<String> names = new ArrayList<String>();
+            Connection conn = DashboardDAO.getConnection();
+            try {
+                PreparedStatement stat = conn.prepareStatement(query);
+                ResultSet rs = stat.executeQuery();
+                while (rs.next()) {
+                    names.add(NamePool.canonical(rs.getString(1)));
+                }
+            } finally {
+                DBConnection.closeConnection(conn);
+            }
+            return names;
+        } catch (SQLException e) {
+            op.error();
+            throw e;
+        } finally {
+            op.record(start);
+        }
+    }
+
+    /**
+     * Fill in the custom values of each deployment, by index into the
+     * registered columns, using one query for the whole set.
+     */
+    private void addCustomValues(String[] columns, Map<Long, String[]> byId) throws SQLException {
+        if (byId.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<Long, Map<String, String>> row : getCustomValues(byId.keySet()).entrySet()) {
+            String[] custom = byId.get(row.getKey());
+            for (int i = 0; i < columns.length; i++) {
+                custom[i] = row.getValue().get(columns[i]);
+            }
+        }
+    }
+
+    /**
+     * Delete values of dropped custom columns in chunks.
+     * 
+     * @param chunkSize
+     *            the most rows deleted per statement.
+     * @return the number of rows deleted.
+     * @throws SQLException
+     *             unable to execute delete query.
+     */
+    public int pruneDroppedColumnValues(int chunkSize) throws SQLException {
+        DashboardMetrics.Operation op = DashboardMetrics.operation("DashboardDAO.pruneDroppedColumnValues");
+        long start = System.nanoTime();
+        try {
+            int total = 0;
+            int deleted;
+            do {
+                Connection conn = DashboardDAO.getConnection();
+                try {
+                    PreparedStatement stat = conn.prepareStatement(DashboardDAO.pruneDroppedValuesQuery);
+                    DashboardDAO.setValues(stat, chunkSize);
+                    deleted = stat.executeUpdate();
+                } finally {
+                    DBConnection.closeConnection(conn);
+                }
+                total += deleted;
+            } while (deleted >= chunkSize);
+            return total;
+        } catch (SQLException e) {
+            op.error();
+            throw e;
+        } finally {
+            op.record(start);
+        }
     }
 
     /**
@@ -86,33 +799,23 @@ public class DashboardDAO {
      *            the primary key in the env_dashboard table.
      * @param build
      *            the build being added to the dashboard.
-     * @param componant
-     *            the component being deployed/built
-     * @param buildJobUrl
-     *            the URL of the build job.
      * @return true if build added else false.
      * @throws SQLException
      *             unable to execute insert build query.
      */
     public boolean addBuild(String index, Build build) throws SQLException {
-        
-        // Get DB Connection
-        Connection conn = DBConnection.getConnection();
-
-        // Refactor this somewhere.
-        String insertBuildQuery = "INSERT INTO env_dashboard VALUES( '" 
-                    + index + "', '" + build.getUrl() + "', '" +  build.getId() + "', '" 
-                    + build.getResult() + "', '" + build.getEnvironment() + "', '" 
-                    + build.getComponantName() + "' ,current_timestamp, '" + build.getUrl() + "' , '" 
-                    + build.getPackages() +  "');";
-        
-        Statement stat = conn.createStatement();
-        boolean result = stat.execute(insertBuildQuery);
-        
-        stat.close();
-        DBConnection.closeConnection();
-
-        return result;
+        DashboardMetrics.Operation op = DashboardMetrics.operation("DashboardDAO.addBuild");
+        long start = System.nanoTime();
+        try {
+            recordDeployments(Collections.singletonList(new DeploymentEvent("PRE", index, build,
+                    Collections.<String, String> emptyMap(), System.currentTimeMillis())));
+            return true;
+        } catch (SQLException e) {
+            op.error();
+            throw e;
+        } finally {
+            op.record(start);
+        }
     }
 
     /**
@@ -127,18 +830,18 @@ public class DashboardDAO {
      *             unable to execute update build query.
      */
     public boolean updateBuild(String envComp, Build b) throws SQLException {
-        // Get DB Connection
-        Connection conn = DBConnection.getConnection();
-        PreparedStatement stat = conn
-                .prepareStatement(DashboardDAO.updateBuildQuery);
-
-        // Populate prepared statement.
-        DashboardDAO.setValues(stat, b.getResult(), envComp, b.getUrl());
-
-        boolean result = stat.execute();
-        DBConnection.closeConnection();
-
-        return result;
+        DashboardMetrics.Operation op = DashboardMetrics.operation("DashboardDAO.updateBuild");
+        long start = System.nanoTime();
+        try {
+            recordDeployments(Collections.singletonList(new DeploymentEvent("POST", envComp, b,
+                    Collections.<String, String> emptyMap(), System.currentTimeMillis())));
+            return true;
+        } catch (SQLException e) {
+            op.error();
+            throw e;
+        } finally {
+            op.record(start);
+        }
     }
 
     /**
@@ -151,25 +854,85 @@ public class DashboardDAO {
      *             unable to execute delete build query.
      */
     public boolean deleteBuilds(Integer daysOld) throws SQLException {
+        DashboardMetrics.Operation op = DashboardMetrics.operation("DashboardDAO.deleteBuilds");
+        long start = System.nanoTime();
+        try {
+            boolean result = false;
 
-        boolean result = false;
+            if (daysOld > 0) {
+                // Get DB Connection
+                Connection conn = DashboardDAO.getConnection();
+                try {
+                    PreparedStatement stat = conn
+                            .prepareStatement(DashboardDAO.deleteOldBuildQuery);
+                    DashboardDAO.setValues(stat, new Timestamp(System.currentTimeMillis() - daysOld * 24L * 60 * 60 * 1000));
 
-        if (daysOld > 0) {
-            // Get DB Connection
-            Connection conn = DBConnection.getConnection();
-            PreparedStatement stat = conn
-                    .prepareStatement(DashboardDAO.deleteOldBuildQuery
-                            + daysOld);
+                    result = stat.execute();
+                } finally {
+                    DBConnection.closeConnection(conn);
+                    LatestDeploymentCache.invalidate();
+                }
+            }else{
+                return this.truncateEnvDashboard();
+            }
 
-            result = stat.execute();
-            DBConnection.closeConnection();
-        }else{
-            return this.truncateEnvDashboard();
+            return result;
+        } catch (SQLException e) {
+            op.error();
+            throw e;
+        } finally {
+            op.record(start);
         }
-
-        return result;
     }
     
+    /**
+     * Delete builds older than the specified days in chunks, committing after
+     * each chunk so no lock is held for long.
+     * 
+     * @param daysOld
+     *            delete builds older than this many days; nothing is deleted
+     *            if zero or less.
+     * @param chunkSize
+     *            the most rows deleted per statement.
+     * @return the number of rows deleted.
+     * @throws SQLException
+     *             unable to execute delete build query.
+     */
+    public int pruneBuilds(int daysOld, int chunkSize) throws SQLException {
+        DashboardMetrics.Operation op = DashboardMetrics.operation("DashboardDAO.pruneBuilds");
+        long start = System.nanoTime();
+        try {
+            if (daysOld <= 0) {
+                return 0;
+            }
+            Timestamp cutoff = new Timestamp(System.currentTimeMillis() - daysOld * 24L * 60 * 60 * 1000);
+            int total = 0;
+            int deleted;
+            do {
+                Connection conn = DashboardDAO.getConnection();
+                try {
+                    PreparedStatement stat = conn
+                            .prepareStatement(DashboardDAO.pruneOldBuildQuery);
+                    DashboardDAO.setValues(stat, cutoff, chunkSize);
+                    deleted = stat.executeUpdate();
+                } finally {
+                    DBConnection.closeConnection(conn);
+                }
+                total += deleted;
+            } while (deleted >= chunkSize);
+            if (total > 0) {
+                // Removed rows may have been the latest of their pair.
+                LatestDeploymentCache.invalidate();
+            }
+            return total;
+        } catch (SQLException e) {
+            op.error();
+            throw e;
+        } finally {
+            op.record(start);
+        }
+    }
+
     /**
      * Delete builds.
      * 
@@ -180,19 +943,18 @@ public class DashboardDAO {
      *             unable to execute delete build query.
      */
     public boolean deleteBuild(String indexValueofTable, Build b) throws SQLException{
-      
-        // Get DB Connection
-        Connection conn = DBConnection.getConnection();
-        PreparedStatement stat = conn
-                .prepareStatement(DashboardDAO.deleteBuildQuery);
-
-        // Populate prepared statement.
-        DashboardDAO.setValues(stat, indexValueofTable, b.getUrl());
-
-        boolean result = stat.execute();
-        DBConnection.closeConnection();
-
-        return result;
+        DashboardMetrics.Operation op = DashboardMetrics.operation("DashboardDAO.deleteBuild");
+        long start = System.nanoTime();
+        try {
+            recordDeployments(Collections.singletonList(new DeploymentEvent("NODEPLOY", indexValueofTable, b,
+                    Collections.<String, String> emptyMap(), System.currentTimeMillis())));
+            return true;
+        } catch (SQLException e) {
+            op.error();
+            throw e;
+        } finally {
+            op.record(start);
+        }
     }
 
     /**
@@ -203,17 +965,306 @@ public class DashboardDAO {
      *             if unable to execute truncate query
      */
     public boolean truncateEnvDashboard() throws SQLException {
-        boolean result = false;
+        DashboardMetrics.Operation op = DashboardMetrics.operation("DashboardDAO.truncateEnvDashboard");
+        long start = System.nanoTime();
+        try {
+            boolean result = false;
 
-        // Get DB Connection
-        Connection conn = DBConnection.getConnection();
-        PreparedStatement stat = conn
-                .prepareStatement(DashboardDAO.truncateEnvDashbord);
+            // Get DB Connection
+            Connection conn = DashboardDAO.getConnection();
+            try {
+                PreparedStatement stat = conn
+                        .prepareStatement(DashboardDAO.truncateEnvDashbord);
+
+                result = stat.execute();
+            } finally {
+                DBConnection.closeConnection(conn);
+                LatestDeploymentCache.invalidate();
+            }
+
+            return result;
+        } catch (SQLException e) {
+            op.error();
+            throw e;
+        } finally {
+            op.record(start);
+        }
+    }
+
+    /**
+     * Record a batch of deployment events in a single transaction.
+     * Consecutive events that use the same statement are sent to the DB with
+     * one executeBatch, and the events are applied in the order given.
+     * env_comp_latest is brought up to date for every environment and
+     * component touched before the transaction commits, and
+     * {@link LatestDeploymentCache} right after. New environment, component
+     * and status names are added to the dictionary tables in the same
+     * transaction.
+     * 
+     * @param events
+     *            the PRE, POST and NODEPLOY events to record.
+     * @throws SQLException
+     *             unable to execute the batch; nothing is recorded.
+     */
+    public void recordDeployments(List<DeploymentEvent> events) throws SQLException {
+        DashboardMetrics.Operation op = DashboardMetrics.operation("DashboardDAO.recordDeployments");
+        long start = System.nanoTime();
+        try {
+            Map<String, Build> touched = new LinkedHashMap<String, Build>();
+            Connection conn = DashboardDAO.getConnection();
+            try {
+                conn.setAutoCommit(false);
+                Iterator<Long> ids = DashboardDAO.allocateIds(conn, events).iterator();
+                Set<String> envs = new HashSet<String>();
+                Set<String> comps = new HashSet<String>();
+                Set<String> statuses = new HashSet<String>();
+                for (DeploymentEvent event : events) {
+                    Build b = event.getBuild();
+                    envs.add(b.getEnvironment());
+                    comps.add(b.getComponantName());
+                    if (!event.getRunTime().equals("NODEPLOY")) {
+                        statuses.add(b.getResult());
+                    }
+                }
+                Map<String, Integer> envIds = DashboardDAO.nameIds(conn, "env_dashboard_env", envs);
+                Map<String, Integer> compIds = DashboardDAO.nameIds(conn, "env_dashboard_comp", comps);
+                Map<String, Integer> statusIds = DashboardDAO.nameIds(conn, "env_dashboard_status", statuses);
+                String currentQuery = null;
+                PreparedStatement stat = null;
+                PreparedStatement customStat = conn.prepareStatement(DashboardDAO.insertCustomValueQuery);
+                int pendingCustom = 0;
+
+                for (DeploymentEvent event : events) {
+                    String query = DashboardDAO.queryFor(event);
+                    if (query == null) {
+                        continue;
+                    }
+                    Build b = event.getBuild();
+                    touched.put(DashboardGrid.key(b.getEnvironment(), b.getComponantName()), b);
+                    if (!query.equals(currentQuery)) {
+                        if (stat != null) {
+                            stat.executeBatch();
+                            stat.close();
+                        }
+                        // Custom values reference rows inserted by the previous run.
+                        if (pendingCustom > 0) {
+                            customStat.executeBatch();
+                            pendingCustom = 0;
+                        }
+                        stat = conn.prepareStatement(query);
+                        currentQuery = query;
+                    }
+                    if (event.getRunTime().equals("PRE")) {
+                        Long id = ids.next();
+                        DashboardDAO.bindInsert(stat, id, event, envIds, compIds, statusIds);
+                        for (Map.Entry<String, String> column : event.getCustomColumns().entrySet()) {
+                            DashboardDAO.setValues(customStat, id, column.getKey().toLowerCase(Locale.ENGLISH), column.getValue());
+                            customStat.addBatch();
+                            pendingCustom++;
+                        }
+                    } else {
+                        DashboardDAO.bind(stat, event, envIds, compIds, statusIds);
+                    }
+                    stat.addBatch();
+                }
+                if (stat != null) {
+                    stat.executeBatch();
+                    stat.close();
+                }
+                if (pendingCustom > 0) {
+                    customStat.executeBatch();
+                }
+                customStat.close();
+                DashboardDAO.refreshLatest(conn, touched.values(), envIds, compIds);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                DBConnection.closeConnection(conn);
+            }
+            List<String[]> pairs = new ArrayList<String[]>();
+            for (Build b : touched.values()) {
+                pairs.add(new String[] { b.getEnvironment(), b.getComponantName() });
+            }
+            LatestDeploymentCache.refresh(pairs);
+        } catch (SQLException e) {
+            op.error();
+            throw e;
+        } finally {
+            op.record(start);
+        }
+    }
+
+    /**
+     * Point env_comp_latest at the newest remaining deployment of each
+     * environment and component, or remove the entry if none is left.
+     */
+    private static void refreshLatest(Connection conn, Collection<Build> builds, Map<String, Integer> envIds,
+            Map<String, Integer> compIds) throws SQLException {
+        if (builds.isEmpty()) {
+            return;
+        }
+        PreparedStatement delete = conn.prepareStatement(DashboardDAO.deleteLatestQuery);
+        PreparedStatement refresh = conn.prepareStatement(DashboardDAO.refreshLatestQuery);
+        for (Build b : builds) {
+            Integer envId = envIds.get(b.getEnvironment());
+            Integer compId = compIds.get(b.getComponantName());
+            DashboardDAO.setValues(delete, envId, compId);
+            delete.addBatch();
+            DashboardDAO.setValues(refresh, envId, compId);
+            refresh.addBatch();
+        }
+        delete.executeBatch();
+        refresh.executeBatch();
+        delete.close();
+        refresh.close();
+    }
+
+    /**
+     * Look up the ids of names in a dictionary table, adding the names it
+     * does not hold yet. Names found are not merged, as that would lock their
+     * rows until the transaction ends.
+     * 
+     * @param table
+     *            the dictionary table.
+     * @param names
+     *            the names; null is left out.
+     * @return the id of every name, keyed by name.
+     */
+    private static Map<String, Integer> nameIds(Connection conn, String table, Collection<String> names) throws SQLException {
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        PreparedStatement select = conn.prepareStatement(String.format(DashboardDAO.selectNameIdQuery, table));
+        PreparedStatement merge = null;
+        try {
+            for (String name : names) {
+                if (name == null) {
+                    continue;
+                }
+                Integer id = DashboardDAO.selectId(select, name);
+                if (id == null) {
+                    if (merge == null) {
+                        merge = conn.prepareStatement(String.format(DashboardDAO.mergeNameQuery, table));
+                    }
+                    DashboardDAO.setValues(merge, name);
+                    merge.executeUpdate();
+                    id = DashboardDAO.selectId(select, name);
+                }
+                ids.put(name, id);
+            }
+        } finally {
+            select.close();
+            if (merge != null) {
+                merge.close();
+            }
+        }
+        return ids;
+    }
+
+    private static Integer selectId(PreparedStatement select, String name) throws SQLException {
+        DashboardDAO.setValues(select, name);
+        ResultSet rs = select.executeQuery();
+        try {
+            return rs.next() ? Integer.valueOf(rs.getInt(1)) : null;
+        } finally {
+            rs.close();
+        }
+    }
 
-        result = stat.execute();
-        DBConnection.closeConnection();
+    /**
+     * Take one id from the sequence for every PRE event in a single query.
+     */
+    private static List<Long> allocateIds(Connection conn, List<DeploymentEvent> events) throws SQLException {
+        int count = 0;
+        for (DeploymentEvent event : events) {
+            if (event.getRunTime().equals("PRE")) {
+                count++;
+            }
+        }
+        List<Long> ids = new ArrayList<Long>(count);
+        if (count == 0) {
+            return ids;
+        }
+        PreparedStatement stat = conn.prepareStatement(DashboardDAO.nextIdsQuery);
+        DashboardDAO.setValues(stat, count);
+        ResultSet rs = stat.executeQuery();
+        while (rs.next()) {
+            ids.add(rs.getLong(1));
+        }
+        stat.close();
+        return ids;
+    }
+
+    private static String queryFor(DeploymentEvent event) {
+        String runTime = event.getRunTime();
+        if (runTime.equals("PRE")) {
+            return DashboardDAO.insertBuildQuery;
+        } else if (runTime.equals("POST")) {
+            return DashboardDAO.updateBuildAtQuery;
+        } else if (runTime.equals("NODEPLOY")) {
+            return DashboardDAO.deleteBuildQuery;
+        }
+        return null;
+    }
+
+    private static void bindInsert(PreparedStatement stat, Long id, DeploymentEvent event, Map<String, Integer> envIds,
+            Map<String, Integer> compIds, Map<String, Integer> statusIds) throws SQLException {
+        Build b = event.getBuild();
+        DashboardDAO.setValues(stat, id, b.getUrl(), b.getId(), statusIds.get(b.getResult()), envIds.get(b.getEnvironment()),
+                compIds.get(b.getComponantName()), new Timestamp(event.getTimestamp()), b.getUrl(), b.getPackages());
+    }
+
+    private static void bind(PreparedStatement stat, DeploymentEvent event, Map<String, Integer> envIds,
+            Map<String, Integer> compIds, Map<String, Integer> statusIds) throws SQLException {
+        Build b = event.getBuild();
+        Integer envId = envIds.get(b.getEnvironment());
+        Integer compId = compIds.get(b.getComponantName());
+        if (event.getRunTime().equals("POST")) {
+            DashboardDAO.setValues(stat, statusIds.get(b.getResult()), new Timestamp(event.getTimestamp()), b.getUrl(), envId,
+                    compId);
+        } else {
+            DashboardDAO.setValues(stat, b.getUrl(), envId, compId);
+        }
+    }
 
-        return result;
+    /**
+     * Pad a list of query values to the next power of two entries by
+     * repeating its last entry, so statements with a variable number of
+     * parameters come in few enough shapes to stay in the statement cache.
+     * 
+     * @param values
+     *            the values, in groups of groupSize.
+     * @param groupSize
+     *            how many values make up one entry.
+     * @return the padded values.
+     */
+    private static Object[] padToBucket(Object[] values, int groupSize) {
+        int entries = values.length / groupSize;
+        int bucket = 1;
+        while (bucket < entries) {
+            bucket <<= 1;
+        }
+        Object[] padded = Arrays.copyOf(values, bucket * groupSize);
+        for (int i = values.length; i < padded.length; i++) {
+            // Copy from the padded array, as the padding may span several groups.
+            padded[i] = padded[i - groupSize];
+        }
+        return padded;
+    }
+
+    /**
+     * Borrow a connection from the pool.
+     * 
+     * @return a pooled connection
+     * @throws SQLException
+     *             if no connection could be acquired.
+     */
+    private static Connection getConnection() throws SQLException {
+        Connection conn = DBConnection.getConnection();
+        if (conn == null) {
+            throw new SQLException("Could not acquire connection to H2 DB.");
+        }
+        return conn;
     }
 
     /**
@@ -0,0 +1,200 @@
+package org.jenkinsci.plugins.environmentdashboard.dao;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jenkinsci.plugins.environmentdashboard.entity.DashboardGrid;
+import org.jenkinsci.plugins.environmentdashboard.entity.Deployment;
+
+/**
+ * Process-wide read-through cache of the latest deployment of each
+ * environment and component, keyed by envComp (envName=compName).
+ *
+ * Entries are loaded lazily, either one pair at a time or as a whole grid.
+ * {@link DashboardDAO} refreshes the pairs it wrote as soon as its
+ * transaction commits, so a build never reads back its own stale entry.
+ * The number of entries is bounded by the system property
+ * org.jenkinsci.plugins.environmentdashboard.dao.LatestDeploymentCache.maxSize;
+ * least recently used entries are evicted first.
+ */
+public final class LatestDeploymentCache {
+
+    private static final int MAX_SIZE = Integer.getInteger(LatestDeploymentCache.class.getName() + ".maxSize", 10000);
+
+    /* Cached for pairs known never to have been deployed */
+    private static final Deployment NONE = new Deployment(0, null, null, null, null, null, null, 0, null, null, null);
+
+    /* Latest deployments keyed by envComp, in access order */
+    private static final Map<String, Deployment> entries = new LinkedHashMap<String, Deployment>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Deployment> eldest) {
+            if (size() > MAX_SIZE) {
+                complete = false;
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /* True while entries holds every deployed pair */
+    private static boolean complete = false;
+
+    /* Bumped on every change so an in-flight load cannot install stale data */
+    private static long generation = 0;
+
+    /* Serialises refreshes so the last one to finish read the newest data */
+    private static final Object refreshLock = new Object();
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Added explicit private constructor as this is a utility class.
+     */
+    private LatestDeploymentCache() {
+
+    }
+
+    /**
+     * @param env
+     *            the environment name.
+     * @param comp
+     *            the component name.
+     * @return the latest deployment, or null if the component has never
+     *         been deployed to the environment.
+     * @throws SQLException
+     *             unable to load the deployment.
+     */
+    public static Deployment get(String env, String comp) throws SQLException {
+        String key = DashboardGrid.key(env, comp);
+        long loadGeneration;
+        synchronized (LatestDeploymentCache.class) {
+            Deployment cached = entries.get(key);
+            if (cached != null || complete) {
+                hits.incrementAndGet();
+                return cached == NONE ? null : cached;
+            }
+            loadGeneration = generation;
+        }
+        misses.incrementAndGet();
+        Map<String, Deployment> loaded = new DashboardDAO().getLatestDeployments(
+                Collections.singletonList(new String[] { env, comp }));
+        Deployment deployment = loaded.get(key);
+        synchronized (LatestDeploymentCache.class) {
+            if (generation == loadGeneration) {
+                entries.put(key, deployment == null ? NONE : deployment);
+            }
+        }
+        return deployment;
+    }
+
+    /**
+     * @return the latest deployment of every deployed pair, keyed by envComp.
+     * @throws SQLException
+     *             unable to load the deployments.
+     */
+    public static Map<String, Deployment> getAll() throws SQLException {
+        long loadGeneration;
+        synchronized (LatestDeploymentCache.class) {
+            if (complete) {
+                hits.incrementAndGet();
+                return snapshot();
+            }
+            loadGeneration = generation;
+        }
+        misses.incrementAndGet();
+        Map<String, Deployment> loaded = new DashboardDAO().getLatestDeployments();
+        synchronized (LatestDeploymentCache.class) {
+            if (generation == loadGeneration && loaded.size() <= MAX_SIZE) {
+                entries.clear();
+                entries.putAll(loaded);
+                complete = true;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Reload the given pairs after their writes have committed.
+     *
+     * @param pairs
+     *            {envName, compName} pairs that were written.
+     */
+    static void refresh(Collection<String[]> pairs) {
+        if (pairs.isEmpty()) {
+            return;
+        }
+        synchronized (refreshLock) {
+            synchronized (LatestDeploymentCache.class) {
+                generation++;
+            }
+            Map<String, Deployment> loaded;
+            try {
+                loaded = new DashboardDAO().getLatestDeployments(pairs);
+            } catch (SQLException e) {
+                invalidate();
+                return;
+            }
+            synchronized (LatestDeploymentCache.class) {
+                generation++;
+                for (String[] pair : pairs) {
+                    String key = DashboardGrid.key(pair[0], pair[1]);
+                    Deployment deployment = loaded.get(key);
+                    entries.put(key, deployment == null ? NONE : deployment);
+                }
+            }
+        }
+    }
+
+    /**
+     * Discard every cached entry so the next lookups reload them.
+     */
+    public static synchronized void invalidate() {
+        entries.clear();
+        complete = false;
+        generation++;
+    }
+
+    /**
+     * @return the number of lookups served from memory
+     */
+    public static long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups that had to query the DB
+     */
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of cached entries
+     */
+    public static synchronized int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * @return the most entries kept in memory
+     */
+    public static int getMaxSize() {
+        return MAX_SIZE;
+    }
+
+    private static Map<String, Deployment> snapshot() {
+        Map<String, Deployment> copy = new HashMap<String, Deployment>();
+        for (Map.Entry<String, Deployment> entry : entries.entrySet()) {
+            if (entry.getValue() != NONE) {
+                copy.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return copy;
+    }
+}
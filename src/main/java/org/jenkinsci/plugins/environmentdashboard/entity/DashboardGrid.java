@@ -0,0 +1,68 @@
+package org.jenkinsci.plugins.environmentdashboard.entity;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the latest deployment for every environment and
+ * component pair on the dashboard.
+ *
+ * Cells are keyed on the envComp key builds are recorded under
+ * (envName=compName).
+ */
+public class DashboardGrid {
+
+    /* Latest deployments keyed by envComp */
+    private final Map<String, Deployment> cells;
+
+    /**
+     * Create a snapshot of the dashboard grid.
+     *
+     * @param cells
+     *            latest deployments keyed by envComp; copied on
+     *            construction.
+     */
+    public DashboardGrid(Map<String, Deployment> cells) {
+        this.cells = Collections.unmodifiableMap(new HashMap<String, Deployment>(cells));
+    }
+
+    /**
+     * Build the key a cell is stored under.
+     *
+     * @param env
+     *            the environment name
+     * @param comp
+     *            the component name
+     * @return the envComp key
+     */
+    public static String key(String env, String comp) {
+        return env + '=' + comp;
+    }
+
+    /**
+     * @param env
+     *            the environment name
+     * @param comp
+     *            the component name
+     * @return the latest deployment, or null if the component has never
+     *         been deployed to the environment.
+     */
+    public Deployment get(String env, String comp) {
+        return cells.get(key(env, comp));
+    }
+
+    /**
+     * @return true if the component has been deployed to the environment.
+     */
+    public boolean contains(String env, String comp) {
+        return cells.containsKey(key(env, comp));
+    }
+
+    /**
+     * @return the number of populated cells
+     */
+    public int size() {
+        return cells.size();
+    }
+}
@@ -0,0 +1,228 @@
+package org.jenkinsci.plugins.environmentdashboard.entity;
+
+import java.sql.Timestamp;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A deployment read back from the dashboard store: the build deployed, when
+ * it was deployed and the values of the custom columns registered when it
+ * was read. Immutable; the setters of {@link Build} throw.
+ *
+ * The build url is the jobUrl field of the env_dashboard row and the build
+ * job url its buildJobUrl field.
+ */
+public final class Deployment extends Build {
+
+    /**
+     * The status of a deployment, from the result of its build.
+     */
+    public enum Status {
+        SUCCESS, FAILURE, UNSTABLE, ABORTED, NOT_BUILT, RUNNING, UNKNOWN;
+
+        private static final Status[] VALUES = values();
+
+        /**
+         * @param result
+         *            the build result as stored, e.g. "SUCCESS".
+         * @return the matching status, or UNKNOWN.
+         */
+        public static Status of(String result) {
+            if (result != null) {
+                for (Status status : VALUES) {
+                    if (status.name().equals(result)) {
+                        return status;
+                    }
+                }
+            }
+            return UNKNOWN;
+        }
+    }
+
+    /* Shared by deployments read without custom columns */
+    private static final String[] NONE = new String[0];
+
+    /* env_dashboard row id */
+    private final long deploymentId;
+
+    /* When the deployment was recorded, in milliseconds since the epoch */
+    private final long createdAt;
+
+    private final Status status;
+
+    /* Registered custom columns, lower case; shared by the deployments of a read */
+    private final String[] columns;
+
+    /* Custom column values, by index into columns */
+    private final String[] values;
+
+    /* Set once Build's constructor is done with the setters */
+    private final boolean sealed;
+
+    /**
+     * Create a deployment. The arrays are not copied; the caller must not
+     * change them once the deployment is published.
+     *
+     * @param deploymentId
+     *            the env_dashboard row id.
+     * @param envName
+     *            the environment name.
+     * @param compName
+     *            the component name.
+     * @param buildStatus
+     *            the build result as stored.
+     * @param buildJobUrl
+     *            the build job url.
+     * @param jobUrl
+     *            the build url.
+     * @param buildNum
+     *            the build number.
+     * @param createdAt
+     *            when the deployment was recorded, in milliseconds since the
+     *            epoch.
+     * @param packageName
+     *            the packages deployed, or null.
+     * @param columns
+     *            the registered custom columns, lower case.
+     * @param values
+     *            the custom column values, by index into columns; null for
+     *            unset values.
+     */
+    public Deployment(long deploymentId, String envName, String compName, String buildStatus, String buildJobUrl,
+            String jobUrl, String buildNum, long createdAt, String packageName, String[] columns, String[] values) {
+        super(buildNum, jobUrl, buildStatus, envName, compName, buildJobUrl, packageName == null ? "" : packageName);
+        this.deploymentId = deploymentId;
+        this.createdAt = createdAt;
+        this.status = Status.of(buildStatus);
+        this.columns = columns == null ? NONE : columns;
+        this.values = values == null ? NONE : values;
+        this.sealed = true;
+    }
+
+    /**
+     * @param columns
+     *            the registered custom columns, lower case.
+     * @param custom
+     *            custom column values keyed by lower case column name.
+     * @return the values of the columns, by index, for the constructor.
+     */
+    public static String[] customValues(String[] columns, Map<String, String> custom) {
+        if (columns.length == 0 || custom.isEmpty()) {
+            return NONE;
+        }
+        String[] values = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            values[i] = custom.get(columns[i]);
+        }
+        return values;
+    }
+
+    /**
+     * @return the env_dashboard row id
+     */
+    public long getDeploymentId() {
+        return deploymentId;
+    }
+
+    /**
+     * @return when the deployment was recorded, in milliseconds since the
+     *         epoch
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * @return when the deployment was recorded
+     */
+    public Timestamp getTimestamp() {
+        return new Timestamp(createdAt);
+    }
+
+    /**
+     * @return the status
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @param column
+     *            a custom column, lower case.
+     * @return the value of the column, or null if unset or not registered.
+     */
+    public String getCustom(String column) {
+        for (int i = 0; i < values.length; i++) {
+            if (columns[i].equals(column)) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the deployment as a field map with the keys id, envName,
+     *         compName, buildstatus, buildJobUrl, jobUrl, buildNum,
+     *         created_at and packageName, plus the set custom column values.
+     */
+    public Map<String, String> toMap() {
+        Map<String, String> fields = new LinkedHashMap<String, String>();
+        fields.put("id", String.valueOf(deploymentId));
+        fields.put("envName", getEnvironment());
+        fields.put("compName", getComponantName());
+        fields.put("buildstatus", getResult());
+        fields.put("buildJobUrl", getJobUrl());
+        fields.put("jobUrl", getUrl());
+        fields.put("buildNum", getId());
+        fields.put("created_at", getTimestamp().toString());
+        fields.put("packageName", getPackages());
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                fields.put(columns[i], values[i]);
+            }
+        }
+        return fields;
+    }
+
+    @Override
+    public void addPackages(String packages) {
+        checkNotSealed();
+        super.addPackages(packages);
+    }
+
+    @Override
+    public void setResult(String result) {
+        checkNotSealed();
+        super.setResult(result);
+    }
+
+    @Override
+    public void setUrl(String url) {
+        checkNotSealed();
+        super.setUrl(url);
+    }
+
+    @Override
+    public void setEnvironment(String environment) {
+        checkNotSealed();
+        super.setEnvironment(environment);
+    }
+
+    @Override
+    public void setJobUrl(String jobUrl) {
+        checkNotSealed();
+        super.setJobUrl(jobUrl);
+    }
+
+    @Override
+    public void setComponantName(String componantName) {
+        checkNotSealed();
+        super.setComponantName(componantName);
+    }
+
+    private void checkNotSealed() {
+        if (sealed) {
+            throw new UnsupportedOperationException("Deployments are immutable");
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.jenkinsci.plugins.environmentdashboard.entity;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A single change to the dashboard recorded by a build: a deployment
+ * starting (PRE), finishing (POST) or being withdrawn (NODEPLOY).
+ */
+public class DeploymentEvent {
+
+    /* PRE, POST or NODEPLOY */
+    private final String runTime;
+
+    /* envName=compName key of the dashboard cell */
+    private final String envComp;
+
+    /* The build being recorded */
+    private final Build build;
+
+    /* Custom column values keyed by column name, in configured order */
+    private final Map<String, String> customColumns;
+
+    /* When the event was raised, in milliseconds since the epoch */
+    private final long timestamp;
+
+    /**
+     * Create a deployment event.
+     *
+     * @param runTime
+     *            PRE, POST or NODEPLOY.
+     * @param envComp
+     *            the environment component key.
+     * @param build
+     *            the build being recorded.
+     * @param customColumns
+     *            custom column values keyed by column name.
+     * @param timestamp
+     *            when the event was raised, in milliseconds since the epoch.
+     */
+    public DeploymentEvent(String runTime, String envComp, Build build, Map<String, String> customColumns, long timestamp) {
+        this.runTime = runTime;
+        this.envComp = envComp;
+        this.build = build;
+        this.customColumns = Collections.unmodifiableMap(new LinkedHashMap<String, String>(customColumns));
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return PRE, POST or NODEPLOY
+     */
+    public String getRunTime() {
+        return runTime;
+    }
+
+    /**
+     * @return the environment component key
+     */
+    public String getEnvComp() {
+        return envComp;
+    }
+
+    /**
+     * @return the build being recorded
+     */
+    public Build getBuild() {
+        return build;
+    }
+
+    /**
+     * @return custom column values keyed by column name
+     */
+    public Map<String, String> getCustomColumns() {
+        return customColumns;
+    }
+
+    /**
+     * @return when the event was raised, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+}
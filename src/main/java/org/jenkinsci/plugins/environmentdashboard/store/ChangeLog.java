@@ -0,0 +1,138 @@
+package org.jenkinsci.plugins.environmentdashboard.store;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.jenkinsci.plugins.environmentdashboard.entity.DashboardGrid;
+
+/**
+ * Process-wide revision counter of the dashboard data, with a bounded log of
+ * the environment and component pairs each revision changed.
+ *
+ * Writes whose changed pairs are not known, such as retention or custom
+ * column changes, clear the log, so clients behind them need a full
+ * snapshot. The number of revisions kept is bounded by the system property
+ * org.jenkinsci.plugins.environmentdashboard.store.ChangeLog.maxSize.
+ */
+public final class ChangeLog {
+
+    private static final int MAX_SIZE = Integer.getInteger(ChangeLog.class.getName() + ".maxSize", 1000);
+
+    /* The latest revision */
+    private static long revision = 0;
+
+    /* Every revision after this one is in the log */
+    private static long floor = 0;
+
+    /* Changed pairs per revision, oldest first */
+    private static final LinkedList<Change> changes = new LinkedList<Change>();
+
+    /**
+     * Added explicit private constructor as this is a utility class.
+     */
+    private ChangeLog() {
+
+    }
+
+    /**
+     * @return the latest revision
+     */
+    public static synchronized long getRevision() {
+        return revision;
+    }
+
+    /**
+     * Look up the pairs changed after a revision.
+     *
+     * @param since
+     *            the revision the client has.
+     * @return the changes up to the latest revision; the pairs are null if
+     *         the log no longer reaches back to the given revision.
+     */
+    public static synchronized Delta getChangesSince(long since) {
+        if (since < floor || since > revision) {
+            return new Delta(revision, null);
+        }
+        Map<String, String[]> pairs = new LinkedHashMap<String, String[]>();
+        Iterator<Change> it = changes.descendingIterator();
+        while (it.hasNext()) {
+            Change change = it.next();
+            if (change.revision <= since) {
+                break;
+            }
+            for (String[] pair : change.pairs) {
+                pairs.put(DashboardGrid.key(pair[0], pair[1]), pair);
+            }
+        }
+        return new Delta(revision, pairs);
+    }
+
+    /**
+     * Start a new revision that changed the given pairs.
+     *
+     * @param pairs
+     *            {envName, compName} pairs that were written.
+     * @return the new revision.
+     */
+    static synchronized long record(Collection<String[]> pairs) {
+        revision++;
+        changes.addLast(new Change(revision, pairs.toArray(new String[pairs.size()][])));
+        while (changes.size() > MAX_SIZE) {
+            floor = changes.removeFirst().revision;
+        }
+        return revision;
+    }
+
+    /**
+     * Start a new revision whose changes are not known.
+     *
+     * @return the new revision.
+     */
+    static synchronized long reset() {
+        revision++;
+        changes.clear();
+        floor = revision;
+        return revision;
+    }
+
+    /**
+     * The revision a client caught up to, and what changed since its last one.
+     */
+    public static final class Delta {
+        private final long revision;
+        private final Map<String, String[]> pairs;
+
+        Delta(long revision, Map<String, String[]> pairs) {
+            this.revision = revision;
+            this.pairs = pairs;
+        }
+
+        /**
+         * @return the latest revision
+         */
+        public long getRevision() {
+            return revision;
+        }
+
+        /**
+         * @return {envName, compName} of every changed pair keyed by envComp,
+         *         or null if a full snapshot is needed.
+         */
+        public Map<String, String[]> getPairs() {
+            return pairs;
+        }
+    }
+
+    private static final class Change {
+        final long revision;
+        final String[][] pairs;
+
+        Change(long revision, String[][] pairs) {
+            this.revision = revision;
+            this.pairs = pairs;
+        }
+    }
+}
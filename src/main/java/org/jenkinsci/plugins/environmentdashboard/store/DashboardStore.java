@@ -0,0 +1,302 @@
+package org.jenkinsci.plugins.environmentdashboard.store;
+
+import hudson.ExtensionPoint;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.jenkinsci.plugins.environmentdashboard.entity.Build;
+import org.jenkinsci.plugins.environmentdashboard.entity.DashboardGrid;
+import org.jenkinsci.plugins.environmentdashboard.entity.Deployment;
+import org.jenkinsci.plugins.environmentdashboard.entity.DeploymentEvent;
+
+/**
+ * Storage engine behind the environment dashboard. The view, the API, the
+ * builder and the retention task only go through this class, so engines can
+ * be swapped to fit the write and read profile of an install.
+ *
+ * Deployments are returned as immutable {@link Deployment} records carrying
+ * the values of the registered custom columns.
+ *
+ * The engine in use is picked by type with the system property
+ * org.jenkinsci.plugins.environmentdashboard.store.DashboardStore.type;
+ * "h2" (the default), "memory", "file" and "segment" are shipped.
+ */
+public abstract class DashboardStore implements ExtensionPoint {
+
+    private static final Logger LOGGER = Logger.getLogger(DashboardStore.class.getName());
+
+    /* The engine used when the type property is not set */
+    private static final String DEFAULT_TYPE = "h2";
+
+    /* When this JVM started serving data - keeps revisions unique across restarts */
+    private static final long EPOCH = System.currentTimeMillis();
+
+    private static volatile DashboardStore store = null;
+
+    /**
+     * @return the storage engine selected for this JVM, chosen on first use.
+     */
+    public static DashboardStore get() {
+        DashboardStore s = store;
+        if (s == null) {
+            synchronized (DashboardStore.class) {
+                s = store;
+                if (s == null) {
+                    s = find(System.getProperty(DashboardStore.class.getName() + ".type", DEFAULT_TYPE));
+                    store = s;
+                }
+            }
+        }
+        return s;
+    }
+
+    private static DashboardStore find(String type) {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            // Outside Jenkins, as in the benchmarks; extensions are not loaded.
+            if (type.equals("memory")) {
+                return new MemoryDashboardStore();
+            } else if (type.equals("file")) {
+                return new FileDashboardStore();
+            } else if (type.equals("segment")) {
+                return new SegmentDashboardStore();
+            }
+            return new H2DashboardStore();
+        }
+        DashboardStore fallback = null;
+        for (DashboardStore candidate : jenkins.getExtensionList(DashboardStore.class)) {
+            if (candidate.getType().equals(type)) {
+                return candidate;
+            }
+            if (candidate.getType().equals(DEFAULT_TYPE)) {
+                fallback = candidate;
+            }
+        }
+        LOGGER.info("WARN: Unknown environment dashboard store " + type + "; using " + DEFAULT_TYPE + ".");
+        return fallback == null ? new H2DashboardStore() : fallback;
+    }
+
+    /**
+     * @return the name the engine is selected by, e.g. "h2".
+     */
+    public abstract String getType();
+
+    /**
+     * Create or load the stored data. Called lazily by the other methods, so
+     * callers only need it to report a store that cannot be opened. Cheap
+     * once it has succeeded.
+     *
+     * @throws IOException
+     *             unable to open the store.
+     */
+    public abstract void open() throws IOException;
+
+    /**
+     * Record a batch of deployment events atomically, in the order given.
+     * The latest deployments and the revision reflect the batch once this
+     * returns.
+     *
+     * @param events
+     *            the PRE, POST and NODEPLOY events to record.
+     * @throws IOException
+     *             unable to record the batch; nothing is recorded.
+     */
+    public abstract void recordDeployments(List<DeploymentEvent> events) throws IOException;
+
+    /**
+     * Register a custom column.
+     *
+     * @param column
+     *            the column to add; a trailing type such as "name VARCHAR" is
+     *            ignored.
+     * @return true if added, false if already registered.
+     * @throws IOException
+     *             unable to register the column.
+     */
+    public abstract boolean addColumn(String column) throws IOException;
+
+    /**
+     * Unregister a custom column. Its values are no longer returned and are
+     * deleted later by {@link #pruneDroppedColumns(int)}.
+     *
+     * @param column
+     *            the column to drop.
+     * @throws IOException
+     *             unable to unregister the column.
+     */
+    public abstract void dropColumn(String column) throws IOException;
+
+    /**
+     * @return the registered custom columns, lower case, in the order they
+     *         were added.
+     * @throws IOException
+     *             unable to read the columns.
+     */
+    public abstract List<String> getCustomColumns() throws IOException;
+
+    /**
+     * Delete deployments older than the specified days in chunks.
+     *
+     * @param daysOld
+     *            delete deployments older than this many days; nothing is
+     *            deleted if zero or less.
+     * @param chunkSize
+     *            the most deployments deleted at a time.
+     * @return the number of deployments deleted.
+     * @throws IOException
+     *             unable to delete the deployments.
+     */
+    public abstract int pruneDeployments(int daysOld, int chunkSize) throws IOException;
+
+    /**
+     * Delete the values of dropped custom columns in chunks.
+     *
+     * @param chunkSize
+     *            the most values deleted at a time.
+     * @return the number of values deleted.
+     * @throws IOException
+     *             unable to delete the values.
+     */
+    public abstract int pruneDroppedColumns(int chunkSize) throws IOException;
+
+    /**
+     * @return every environment deployed to, in name order.
+     * @throws IOException
+     *             unable to read the environments.
+     */
+    public abstract List<String> getEnvironments() throws IOException;
+
+    /**
+     * @return every component deployed, in name order.
+     * @throws IOException
+     *             unable to read the components.
+     */
+    public abstract List<String> getComponents() throws IOException;
+
+    /**
+     * @param env
+     *            the environment name.
+     * @param comp
+     *            the component name.
+     * @return the latest deployment, or null if the component has never
+     *         been deployed to the environment.
+     * @throws IOException
+     *             unable to read the deployment.
+     */
+    public abstract Deployment getLatest(String env, String comp) throws IOException;
+
+    /**
+     * @return the latest deployment of every deployed pair, keyed by
+     *         {@link DashboardGrid#key(String, String)}.
+     * @throws IOException
+     *             unable to read the deployments.
+     */
+    public abstract Map<String, Deployment> getLatestGrid() throws IOException;
+
+    /**
+     * Load one page of deployment history, newest first by created_at, then
+     * id. Pages are keyed on (created_at, id) rather than offset.
+     *
+     * @param env
+     *            the environment name, or null for every environment.
+     * @param comp
+     *            the component name, or null for every component.
+     * @param limit
+     *            the page size.
+     * @param beforeTime
+     *            created_at of the last deployment of the previous page, or
+     *            null for the first page.
+     * @param beforeId
+     *            id of the last deployment of the previous page.
+     * @return the page of deployments.
+     * @throws IOException
+     *             unable to read the history.
+     */
+    public abstract List<Deployment> getHistory(String env, String comp, int limit, Timestamp beforeTime,
+            long beforeId) throws IOException;
+
+    /**
+     * @return engine specific figures for the metrics API, keyed by name.
+     */
+    public Map<String, Number> getStatistics() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Release the resources held by the store when Jenkins shuts down.
+     */
+    public void close() {
+    }
+
+    /**
+     * @return the {@link ChangeLog} revision, bumped after every write once
+     *         reads reflect it. Read it before reading the data it describes.
+     */
+    public long getRevision() {
+        return ChangeLog.getRevision();
+    }
+
+    /**
+     * @return when this JVM started counting revisions, in milliseconds since
+     *         the epoch.
+     */
+    public long getEpoch() {
+        return EPOCH;
+    }
+
+    /**
+     * @param since
+     *            the revision the client has.
+     * @return the pairs changed after it.
+     */
+    public ChangeLog.Delta getChangesSince(long since) {
+        return ChangeLog.getChangesSince(since);
+    }
+
+    /**
+     * Update the {@link RecentHistory} of the written pairs and start a new
+     * revision after a batch of events has been recorded.
+     *
+     * @param events
+     *            the recorded events.
+     */
+    protected void recordChanges(List<DeploymentEvent> events) {
+        RecentHistory.update(this, events);
+        ChangeLog.record(pairsOf(events));
+    }
+
+    /**
+     * Drop the {@link RecentHistory} and start a new revision after a write
+     * whose changed pairs are not known, such as retention or custom column
+     * changes.
+     */
+    protected static void resetChanges() {
+        RecentHistory.clear();
+        ChangeLog.reset();
+    }
+
+    /**
+     * @return {envName, compName} of every pair the events write, once each.
+     */
+    static Collection<String[]> pairsOf(List<DeploymentEvent> events) {
+        Map<String, String[]> pairs = new LinkedHashMap<String, String[]>();
+        for (DeploymentEvent event : events) {
+            String runTime = event.getRunTime();
+            if (runTime.equals("PRE") || runTime.equals("POST") || runTime.equals("NODEPLOY")) {
+                Build b = event.getBuild();
+                pairs.put(DashboardGrid.key(b.getEnvironment(), b.getComponantName()),
+                        new String[] { b.getEnvironment(), b.getComponantName() });
+            }
+        }
+        return pairs.values();
+    }
+}
@@ -0,0 +1,445 @@
+package org.jenkinsci.plugins.environmentdashboard.store;
+
+import hudson.Extension;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.jenkinsci.plugins.environmentdashboard.entity.Build;
+import org.jenkinsci.plugins.environmentdashboard.entity.DeploymentEvent;
+
+/**
+ * Serves reads from memory like {@link MemoryDashboardStore}, and appends
+ * every write to a log file in JENKINS_HOME that is replayed on startup.
+ * Writes cost one sequential append; retention rewrites the log without the
+ * deleted deployments.
+ *
+ * The log is jenkins_dashboard.log in JENKINS_HOME unless the system
+ * property org.jenkinsci.plugins.environmentdashboard.store.FileDashboardStore.file
+ * names another file.
+ */
+@Extension
+public class FileDashboardStore extends MemoryDashboardStore {
+
+    private static final Logger LOGGER = Logger.getLogger(FileDashboardStore.class.getName());
+
+    private static final String FILE = System.getProperty(FileDashboardStore.class.getName() + ".file");
+
+    /* Log entry types */
+    private static final byte BATCH = 'B';
+    private static final byte DEPLOYMENT = 'S';
+    private static final byte ADD_COLUMN = 'C';
+    private static final byte DROP_COLUMN = 'D';
+    private static final byte NEXT_ID = 'N';
+
+    /* Suffixes of the files a rewrite goes through */
+    private static final String TMP = ".tmp";
+    private static final String OLD = ".old";
+
+    private File file = null;
+
+    private DataOutputStream out = null;
+
+    /* Entries appended since the log was opened */
+    private long appended = 0;
+
+    /**
+     * Create the store the extension list and {@link DashboardStore#get()}
+     * use, logging to the file picked on open.
+     */
+    public FileDashboardStore() {
+    }
+
+    /**
+     * @param file
+     *            the log file to use instead of the configured one.
+     */
+    FileDashboardStore(File file) {
+        this.file = file;
+    }
+
+    @Override
+    public String getType() {
+        return "file";
+    }
+
+    @Override
+    public synchronized void open() throws IOException {
+        if (out != null) {
+            return;
+        }
+        if (file == null) {
+            if (FILE != null) {
+                file = new File(FILE);
+            } else if (Jenkins.getInstance() != null) {
+                file = new File(Jenkins.getInstance().root, "jenkins_dashboard.log");
+            } else {
+                throw new IOException("No log file: set " + FileDashboardStore.class.getName() + ".file outside Jenkins.");
+            }
+        }
+        // A failed replay may have loaded part of the log.
+        clear();
+        FileDashboardStore.recover(file);
+        if (file.exists()) {
+            replay();
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        resetChanges();
+    }
+
+    @Override
+    public synchronized void recordDeployments(List<DeploymentEvent> events) throws IOException {
+        open();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream entry = new DataOutputStream(bytes);
+        entry.writeByte(BATCH);
+        entry.writeLong(getNextId());
+        entry.writeInt(events.size());
+        for (DeploymentEvent event : events) {
+            writeEvent(entry, event);
+        }
+        append(bytes);
+        super.recordDeployments(events);
+    }
+
+    @Override
+    public synchronized boolean addColumn(String column) throws IOException {
+        open();
+        String name = columnName(column);
+        if (getCustomColumns().contains(name)) {
+            return false;
+        }
+        appendColumn(ADD_COLUMN, name);
+        return super.addColumn(column);
+    }
+
+    @Override
+    public synchronized void dropColumn(String column) throws IOException {
+        open();
+        appendColumn(DROP_COLUMN, column.toLowerCase(Locale.ENGLISH));
+        super.dropColumn(column);
+    }
+
+    @Override
+    public int pruneDeployments(int daysOld, int chunkSize) throws IOException {
+        int deleted = super.pruneDeployments(daysOld, chunkSize);
+        if (deleted > 0) {
+            compact();
+        }
+        return deleted;
+    }
+
+    @Override
+    public int pruneDroppedColumns(int chunkSize) throws IOException {
+        int deleted = super.pruneDroppedColumns(chunkSize);
+        if (deleted > 0) {
+            compact();
+        }
+        return deleted;
+    }
+
+    @Override
+    public synchronized Map<String, Number> getStatistics() {
+        Map<String, Number> stats = new LinkedHashMap<String, Number>(super.getStatistics());
+        stats.put("logBytes", file == null ? 0 : file.length());
+        stats.put("logEntriesAppended", appended);
+        return stats;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            LOGGER.info("WARN: Could not close the environment dashboard log. " + e);
+        }
+        out = null;
+    }
+
+    /**
+     * Rewrite the log as the current columns and deployments only.
+     */
+    private synchronized void compact() throws IOException {
+        File tmp = new File(file.getPath() + TMP);
+        FileOutputStream stream = new FileOutputStream(tmp);
+        DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(stream));
+        try {
+            for (String column : getCustomColumns()) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream entry = new DataOutputStream(bytes);
+                entry.writeByte(ADD_COLUMN);
+                writeString(entry, column);
+                writeEntry(compacted, bytes);
+            }
+            for (Record r : getRecords()) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream entry = new DataOutputStream(bytes);
+                entry.writeByte(DEPLOYMENT);
+                writeRecord(entry, r);
+                writeEntry(compacted, bytes);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream entry = new DataOutputStream(bytes);
+            entry.writeByte(NEXT_ID);
+            entry.writeLong(getNextId());
+            writeEntry(compacted, bytes);
+            compacted.flush();
+            stream.getFD().sync();
+        } finally {
+            compacted.close();
+        }
+        if (out != null) {
+            out.close();
+        }
+        try {
+            FileDashboardStore.replace(tmp, file);
+        } finally {
+            // Either log in place holds every deployment kept in memory.
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        }
+    }
+
+    /**
+     * Put a fully written and synced file in place of another. Where a
+     * rename cannot replace a file, as on Windows, the old file is first
+     * moved aside to name.old, so a crash leaves one of the two whole for
+     * {@link #recover(File)}.
+     *
+     * @param tmp
+     *            the new contents, named as file plus ".tmp".
+     * @param file
+     *            the file to replace.
+     * @throws IOException
+     *             unable to replace the file; it is left as it was.
+     */
+    static void replace(File tmp, File file) throws IOException {
+        if (tmp.renameTo(file)) {
+            return;
+        }
+        File old = new File(file.getPath() + OLD);
+        if ((old.exists() && !old.delete()) || (file.exists() && !file.renameTo(old))) {
+            throw new IOException("Could not move " + file + " aside to " + old);
+        }
+        if (!tmp.renameTo(file)) {
+            old.renameTo(file);
+            throw new IOException("Could not replace " + file + " with " + tmp);
+        }
+        old.delete();
+    }
+
+    /**
+     * Finish or undo a {@link #replace(File, File)} cut short by a crash.
+     * The file is only ever missing once its replacement is complete, so a
+     * missing file is restored from name.tmp, or else from name.old.
+     * Leftovers of a replacement that did not get that far are deleted.
+     *
+     * @param file
+     *            the file about to be read.
+     * @throws IOException
+     *             unable to restore the file.
+     */
+    static void recover(File file) throws IOException {
+        File tmp = new File(file.getPath() + TMP);
+        File old = new File(file.getPath() + OLD);
+        if (!file.exists()) {
+            if (tmp.exists() ? !tmp.renameTo(file) : old.exists() && !old.renameTo(file)) {
+                throw new IOException("Could not restore " + file);
+            }
+            if (file.exists()) {
+                LOGGER.info("WARN: Restored " + file + " after an interrupted rewrite.");
+            }
+        }
+        if (file.exists()) {
+            tmp.delete();
+            old.delete();
+        }
+    }
+
+    /**
+     * Load the log into memory. A torn entry at the end, left by a crash
+     * during an append, is cut off.
+     */
+    private void replay() throws IOException {
+        long good = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                byte[] payload;
+                try {
+                    payload = new byte[in.readInt()];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                applyEntry(new DataInputStream(new ByteArrayInputStream(payload)));
+                good += 4 + payload.length;
+            }
+        } finally {
+            in.close();
+        }
+        if (good < file.length()) {
+            LOGGER.info("WARN: Discarding " + (file.length() - good) + " bytes of a torn entry at the end of " + file);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(good);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    private void applyEntry(DataInputStream entry) throws IOException {
+        byte type = entry.readByte();
+        if (type == BATCH) {
+            setNextId(entry.readLong());
+            int count = entry.readInt();
+            List<DeploymentEvent> events = new ArrayList<DeploymentEvent>(count);
+            for (int i = 0; i < count; i++) {
+                events.add(readEvent(entry));
+            }
+            apply(events);
+        } else if (type == DEPLOYMENT) {
+            restore(readRecord(entry));
+        } else if (type == ADD_COLUMN) {
+            putColumn(readString(entry));
+        } else if (type == DROP_COLUMN) {
+            removeColumn(readString(entry));
+        } else if (type == NEXT_ID) {
+            setNextId(Math.max(getNextId(), entry.readLong()));
+        } else {
+            throw new IOException("Unknown entry type " + type + " in " + file);
+        }
+    }
+
+    private void appendColumn(byte type, String name) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream entry = new DataOutputStream(bytes);
+        entry.writeByte(type);
+        writeString(entry, name);
+        append(bytes);
+    }
+
+    private void append(ByteArrayOutputStream bytes) throws IOException {
+        writeEntry(out, bytes);
+        out.flush();
+        appended++;
+    }
+
+    private static void writeEntry(DataOutputStream log, ByteArrayOutputStream bytes) throws IOException {
+        log.writeInt(bytes.size());
+        bytes.writeTo(log);
+    }
+
+    private static void writeEvent(DataOutputStream entry, DeploymentEvent event) throws IOException {
+        Build b = event.getBuild();
+        writeString(entry, event.getRunTime());
+        writeString(entry, event.getEnvComp());
+        writeString(entry, b.getId());
+        writeString(entry, b.getUrl());
+        writeString(entry, b.getResult());
+        writeString(entry, b.getEnvironment());
+        writeString(entry, b.getComponantName());
+        writeString(entry, b.getJobUrl());
+        writeString(entry, b.getPackages());
+        entry.writeLong(event.getTimestamp());
+        writeMap(entry, event.getCustomColumns());
+    }
+
+    private static DeploymentEvent readEvent(DataInputStream entry) throws IOException {
+        String runTime = readString(entry);
+        String envComp = readString(entry);
+        Build b = new Build(readString(entry), readString(entry), readString(entry), readString(entry),
+                readString(entry), readString(entry), readString(entry));
+        long timestamp = entry.readLong();
+        return new DeploymentEvent(runTime, envComp, b, readMap(entry), timestamp);
+    }
+
+    private static void writeRecord(DataOutputStream entry, Record r) throws IOException {
+        entry.writeLong(r.id);
+        writeString(entry, r.envComp);
+        writeString(entry, r.jobUrl);
+        writeString(entry, r.buildNum);
+        writeString(entry, r.buildStatus);
+        writeString(entry, r.envName);
+        writeString(entry, r.compName);
+        entry.writeLong(r.createdAt);
+        writeString(entry, r.buildJobUrl);
+        writeString(entry, r.packageName);
+        writeMap(entry, r.custom);
+    }
+
+    private static Record readRecord(DataInputStream entry) throws IOException {
+        long id = entry.readLong();
+        String envComp = readString(entry);
+        String jobUrl = readString(entry);
+        String buildNum = readString(entry);
+        String buildStatus = readString(entry);
+        String envName = readString(entry);
+        String compName = readString(entry);
+        long createdAt = entry.readLong();
+        String buildJobUrl = readString(entry);
+        String packageName = readString(entry);
+        return new Record(id, envComp, jobUrl, buildNum, buildStatus, envName, compName, createdAt, buildJobUrl,
+                packageName, readMap(entry));
+    }
+
+    static void writeMap(DataOutputStream entry, Map<String, String> values) throws IOException {
+        entry.writeInt(values.size());
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            writeString(entry, value.getKey());
+            writeString(entry, value.getValue());
+        }
+    }
+
+    private static Map<String, String> readMap(DataInputStream entry) throws IOException {
+        int size = entry.readInt();
+        Map<String, String> values = new HashMap<String, String>();
+        for (int i = 0; i < size; i++) {
+            values.put(readString(entry), readString(entry));
+        }
+        return values;
+    }
+
+    /* Strings are written as a UTF-8 byte count, -1 for null, then the bytes */
+    static void writeString(DataOutputStream entry, String value) throws IOException {
+        if (value == null) {
+            entry.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        entry.writeInt(bytes.length);
+        entry.write(bytes);
+    }
+
+    private static String readString(DataInputStream entry) throws IOException {
+        int length = entry.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        entry.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
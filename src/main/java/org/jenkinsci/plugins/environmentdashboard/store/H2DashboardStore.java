@@ -0,0 +1,170 @@
+package org.jenkinsci.plugins.environmentdashboard.store;
+
+import hudson.Extension;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Map;
+
+import org.jenkinsci.plugins.environmentdashboard.dao.ColumnMetadataCache;
+import org.jenkinsci.plugins.environmentdashboard.dao.DashboardDAO;
+import org.jenkinsci.plugins.environmentdashboard.dao.LatestDeploymentCache;
+import org.jenkinsci.plugins.environmentdashboard.entity.Deployment;
+import org.jenkinsci.plugins.environmentdashboard.entity.DeploymentEvent;
+import org.jenkinsci.plugins.environmentdashboard.utils.DBConnection;
+
+/**
+ * The H2 database in JENKINS_HOME, through {@link DashboardDAO}. Latest
+ * deployments and column names are served from {@link LatestDeploymentCache}
+ * and {@link ColumnMetadataCache}.
+ */
+@Extension
+public class H2DashboardStore extends DashboardStore {
+
+    private final DashboardDAO dao = new DashboardDAO();
+
+    @Override
+    public String getType() {
+        return "h2";
+    }
+
+    @Override
+    public void open() throws IOException {
+        try {
+            if (dao.createDashboardTable()) {
+                resetChanges();
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void recordDeployments(List<DeploymentEvent> events) throws IOException {
+        open();
+        try {
+            dao.recordDeployments(events);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        recordChanges(events);
+    }
+
+    @Override
+    public boolean addColumn(String column) throws IOException {
+        open();
+        try {
+            if (!dao.addColumn(column)) {
+                return false;
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        resetChanges();
+        return true;
+    }
+
+    @Override
+    public void dropColumn(String column) throws IOException {
+        open();
+        try {
+            dao.dropColumn(column);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } finally {
+            resetChanges();
+        }
+    }
+
+    @Override
+    public List<String> getCustomColumns() throws IOException {
+        open();
+        try {
+            return ColumnMetadataCache.getCustomColumns();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public int pruneDeployments(int daysOld, int chunkSize) throws IOException {
+        open();
+        try {
+            int removed = dao.pruneBuilds(daysOld, chunkSize);
+            if (removed > 0) {
+                resetChanges();
+            }
+            return removed;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public int pruneDroppedColumns(int chunkSize) throws IOException {
+        open();
+        try {
+            return dao.pruneDroppedColumnValues(chunkSize);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public List<String> getEnvironments() throws IOException {
+        open();
+        try {
+            return dao.getEnvironments();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public List<String> getComponents() throws IOException {
+        open();
+        try {
+            return dao.getComponents();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public Deployment getLatest(String env, String comp) throws IOException {
+        open();
+        try {
+            return LatestDeploymentCache.get(env, comp);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public Map<String, Deployment> getLatestGrid() throws IOException {
+        open();
+        try {
+            return LatestDeploymentCache.getAll();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public List<Deployment> getHistory(String env, String comp, int limit, Timestamp beforeTime, long beforeId)
+            throws IOException {
+        open();
+        try {
+            return dao.getHistory(env, comp, limit, beforeTime, beforeId);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        DBConnection.shutdown();
+    }
+}
@@ -0,0 +1,452 @@
+package org.jenkinsci.plugins.environmentdashboard.store;
+
+import hudson.Extension;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.jenkinsci.plugins.environmentdashboard.entity.Build;
+import org.jenkinsci.plugins.environmentdashboard.entity.DashboardGrid;
+import org.jenkinsci.plugins.environmentdashboard.entity.Deployment;
+import org.jenkinsci.plugins.environmentdashboard.entity.DeploymentEvent;
+import org.jenkinsci.plugins.environmentdashboard.utils.NamePool;
+
+/**
+ * Keeps every deployment on the heap, indexed by environment, component and
+ * both, newest first. Nothing survives a restart, so it suits tests and
+ * small installs that only need the recent history shown on the dashboard.
+ */
+@Extension
+public class MemoryDashboardStore extends DashboardStore {
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    /* Orders deployments newest first, as the history pages are keyed */
+    static final Comparator<Record> NEWEST_FIRST = new Comparator<Record>() {
+        public int compare(Record a, Record b) {
+            if (a.createdAt != b.createdAt) {
+                return a.createdAt > b.createdAt ? -1 : 1;
+            }
+            return a.id == b.id ? 0 : (a.id > b.id ? -1 : 1);
+        }
+    };
+
+    /* Every deployment */
+    private final TreeSet<Record> all = new TreeSet<Record>(NEWEST_FIRST);
+
+    /* Deployments keyed by envComp */
+    private final Map<String, TreeSet<Record>> byEnvComp = new HashMap<String, TreeSet<Record>>();
+
+    /* Deployments keyed and sorted by environment */
+    private final TreeMap<String, TreeSet<Record>> byEnv = new TreeMap<String, TreeSet<Record>>();
+
+    /* Deployments keyed and sorted by component */
+    private final TreeMap<String, TreeSet<Record>> byComp = new TreeMap<String, TreeSet<Record>>();
+
+    /* Deployments keyed by envComp and job URL, as POST and NODEPLOY find them */
+    private final Map<String, List<Record>> byJob = new HashMap<String, List<Record>>();
+
+    /* Registered custom columns, lower case, in the order they were added */
+    private final Set<String> columns = new LinkedHashSet<String>();
+
+    private long nextId = 1;
+
+    @Override
+    public String getType() {
+        return "memory";
+    }
+
+    @Override
+    public void open() throws IOException {
+    }
+
+    @Override
+    public synchronized void recordDeployments(List<DeploymentEvent> events) throws IOException {
+        open();
+        apply(events);
+        recordChanges(events);
+    }
+
+    @Override
+    public synchronized boolean addColumn(String column) throws IOException {
+        open();
+        if (!columns.add(columnName(column))) {
+            return false;
+        }
+        resetChanges();
+        return true;
+    }
+
+    @Override
+    public synchronized void dropColumn(String column) throws IOException {
+        open();
+        columns.remove(column.toLowerCase(Locale.ENGLISH));
+        resetChanges();
+    }
+
+    @Override
+    public synchronized List<String> getCustomColumns() throws IOException {
+        open();
+        return new ArrayList<String>(columns);
+    }
+
+    @Override
+    public int pruneDeployments(int daysOld, int chunkSize) throws IOException {
+        if (daysOld <= 0) {
+            return 0;
+        }
+        long cutoff = System.currentTimeMillis() - daysOld * DAY_MILLIS;
+        int total = 0;
+        int deleted;
+        do {
+            // Let readers and writers in between chunks.
+            synchronized (this) {
+                open();
+                deleted = 0;
+                while (deleted < chunkSize && !all.isEmpty() && all.last().createdAt <= cutoff) {
+                    remove(all.last());
+                    deleted++;
+                }
+                if (deleted > 0) {
+                    // Removed deployments may have been the latest of their pair.
+                    resetChanges();
+                }
+            }
+            total += deleted;
+        } while (deleted >= chunkSize);
+        return total;
+    }
+
+    @Override
+    public synchronized int pruneDroppedColumns(int chunkSize) throws IOException {
+        open();
+        List<Record> stale = new ArrayList<Record>();
+        for (Record r : all) {
+            if (!columns.containsAll(r.custom.keySet())) {
+                stale.add(r);
+            }
+        }
+        int deleted = 0;
+        for (Record r : stale) {
+            Map<String, String> kept = new HashMap<String, String>(r.custom);
+            kept.keySet().retainAll(columns);
+            deleted += r.custom.size() - kept.size();
+            remove(r);
+            add(r.withCustom(kept));
+        }
+        return deleted;
+    }
+
+    @Override
+    public synchronized List<String> getEnvironments() throws IOException {
+        open();
+        return new ArrayList<String>(byEnv.keySet());
+    }
+
+    @Override
+    public synchronized List<String> getComponents() throws IOException {
+        open();
+        return new ArrayList<String>(byComp.keySet());
+    }
+
+    @Override
+    public synchronized Deployment getLatest(String env, String comp) throws IOException {
+        open();
+        TreeSet<Record> records = byEnvComp.get(DashboardGrid.key(env, comp));
+        if (records == null) {
+            return null;
+        }
+        return records.first().toDeployment(columnNames());
+    }
+
+    @Override
+    public synchronized Map<String, Deployment> getLatestGrid() throws IOException {
+        open();
+        String[] names = columnNames();
+        Map<String, Deployment> grid = new HashMap<String, Deployment>();
+        for (Map.Entry<String, TreeSet<Record>> entry : byEnvComp.entrySet()) {
+            grid.put(entry.getKey(), entry.getValue().first().toDeployment(names));
+        }
+        return grid;
+    }
+
+    @Override
+    public synchronized List<Deployment> getHistory(String env, String comp, int limit, Timestamp beforeTime,
+            long beforeId) throws IOException {
+        open();
+        NavigableSet<Record> records;
+        if (env != null && comp != null) {
+            records = byEnvComp.get(DashboardGrid.key(env, comp));
+        } else if (env != null) {
+            records = byEnv.get(env);
+        } else if (comp != null) {
+            records = byComp.get(comp);
+        } else {
+            records = all;
+        }
+        List<Deployment> history = new ArrayList<Deployment>();
+        if (records == null) {
+            return history;
+        }
+        if (beforeTime != null) {
+            records = records.tailSet(Record.probe(beforeTime.getTime(), beforeId), false);
+        }
+        String[] names = columnNames();
+        Iterator<Record> it = records.iterator();
+        while (it.hasNext() && history.size() < limit) {
+            history.add(it.next().toDeployment(names));
+        }
+        return history;
+    }
+
+    @Override
+    public synchronized Map<String, Number> getStatistics() {
+        Map<String, Number> stats = new LinkedHashMap<String, Number>();
+        stats.put("deployments", all.size());
+        stats.put("pairs", byEnvComp.size());
+        stats.put("columns", columns.size());
+        return stats;
+    }
+
+    /**
+     * Apply a batch of events to the indexes. Callers hold the lock.
+     */
+    void apply(List<DeploymentEvent> events) {
+        for (DeploymentEvent event : events) {
+            Build b = event.getBuild();
+            String runTime = event.getRunTime();
+            if (runTime.equals("PRE")) {
+                Map<String, String> custom = new HashMap<String, String>();
+                for (Map.Entry<String, String> column : event.getCustomColumns().entrySet()) {
+                    custom.put(column.getKey().toLowerCase(Locale.ENGLISH), column.getValue());
+                }
+                add(new Record(nextId++, event.getEnvComp(), b.getUrl(), b.getId(), b.getResult(), b.getEnvironment(),
+                        b.getComponantName(), event.getTimestamp(), b.getUrl(), b.getPackages(), custom));
+            } else if (runTime.equals("POST") || runTime.equals("NODEPLOY")) {
+                List<Record> matches = byJob.get(jobKey(event.getEnvComp(), b.getUrl()));
+                if (matches == null) {
+                    continue;
+                }
+                for (Record r : new ArrayList<Record>(matches)) {
+                    remove(r);
+                    if (runTime.equals("POST")) {
+                        add(r.withStatus(b.getResult(), event.getTimestamp()));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Put back a deployment read from storage, keeping its id. Callers hold
+     * the lock.
+     */
+    void restore(Record r) {
+        add(r);
+        nextId = Math.max(nextId, r.id + 1);
+    }
+
+    /**
+     * Forget every deployment and column. Callers hold the lock.
+     */
+    void clear() {
+        all.clear();
+        byEnvComp.clear();
+        byEnv.clear();
+        byComp.clear();
+        byJob.clear();
+        columns.clear();
+        nextId = 1;
+    }
+
+    /**
+     * @return true if the column was not registered yet. Callers hold the
+     *         lock.
+     */
+    boolean putColumn(String name) {
+        return columns.add(name);
+    }
+
+    /**
+     * @return true if the column was registered. Callers hold the lock.
+     */
+    boolean removeColumn(String name) {
+        return columns.remove(name);
+    }
+
+    /**
+     * @return the registered custom columns, shared by the deployments of a
+     *         read. Callers hold the lock.
+     */
+    private String[] columnNames() {
+        return columns.toArray(new String[columns.size()]);
+    }
+
+    /**
+     * @return the id the next deployment is given. Callers hold the lock.
+     */
+    long getNextId() {
+        return nextId;
+    }
+
+    /**
+     * @param id
+     *            the id the next deployment is given. Callers hold the lock.
+     */
+    void setNextId(long id) {
+        nextId = id;
+    }
+
+    /**
+     * @return every deployment, oldest first. Callers hold the lock.
+     */
+    List<Record> getRecords() {
+        List<Record> records = new ArrayList<Record>(all);
+        Collections.reverse(records);
+        return records;
+    }
+
+    /**
+     * @param column
+     *            a column as given to {@link #addColumn(String)}.
+     * @return the lower case column name.
+     */
+    static String columnName(String column) {
+        return column.trim().split("\\s+")[0].toLowerCase(Locale.ENGLISH);
+    }
+
+    private void add(Record r) {
+        all.add(r);
+        index(byEnvComp, DashboardGrid.key(r.envName, r.compName), r);
+        index(byEnv, r.envName, r);
+        index(byComp, r.compName, r);
+        String job = jobKey(r.envComp, r.jobUrl);
+        List<Record> matches = byJob.get(job);
+        if (matches == null) {
+            matches = new ArrayList<Record>(1);
+            byJob.put(job, matches);
+        }
+        matches.add(r);
+    }
+
+    private void remove(Record r) {
+        all.remove(r);
+        unindex(byEnvComp, DashboardGrid.key(r.envName, r.compName), r);
+        unindex(byEnv, r.envName, r);
+        unindex(byComp, r.compName, r);
+        String job = jobKey(r.envComp, r.jobUrl);
+        List<Record> matches = byJob.get(job);
+        if (matches != null) {
+            matches.remove(r);
+            if (matches.isEmpty()) {
+                byJob.remove(job);
+            }
+        }
+    }
+
+    private static void index(Map<String, TreeSet<Record>> index, String key, Record r) {
+        if (key == null) {
+            return;
+        }
+        TreeSet<Record> records = index.get(key);
+        if (records == null) {
+            records = new TreeSet<Record>(NEWEST_FIRST);
+            index.put(key, records);
+        }
+        records.add(r);
+    }
+
+    private static void unindex(Map<String, TreeSet<Record>> index, String key, Record r) {
+        if (key == null) {
+            return;
+        }
+        TreeSet<Record> records = index.get(key);
+        if (records != null) {
+            records.remove(r);
+            if (records.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private static String jobKey(String envComp, String jobUrl) {
+        return envComp + '\n' + jobUrl;
+    }
+
+    /**
+     * One stored deployment. Immutable; updates replace it. The names are
+     * shared through {@link NamePool}.
+     */
+    static final class Record {
+        final long id;
+        final String envComp;
+        final String jobUrl;
+        final String buildNum;
+        final String buildStatus;
+        final String envName;
+        final String compName;
+        final long createdAt;
+        final String buildJobUrl;
+        final String packageName;
+
+        /* Custom column values keyed by lower case column name */
+        final Map<String, String> custom;
+
+        Record(long id, String envComp, String jobUrl, String buildNum, String buildStatus, String envName,
+                String compName, long createdAt, String buildJobUrl, String packageName, Map<String, String> custom) {
+            this.id = id;
+            this.envComp = NamePool.canonical(envComp);
+            this.jobUrl = jobUrl;
+            this.buildNum = buildNum;
+            this.buildStatus = NamePool.canonical(buildStatus);
+            this.envName = NamePool.canonical(envName);
+            this.compName = NamePool.canonical(compName);
+            this.createdAt = createdAt;
+            this.buildJobUrl = buildJobUrl;
+            this.packageName = packageName;
+            this.custom = Collections.unmodifiableMap(custom);
+        }
+
+        /**
+         * @return a record that sorts where a deployment created at the given
+         *         time with the given id would.
+         */
+        static Record probe(long createdAt, long id) {
+            return new Record(id, null, null, null, null, null, null, createdAt, null, null,
+                    Collections.<String, String> emptyMap());
+        }
+
+        Record withStatus(String status, long at) {
+            return new Record(id, envComp, jobUrl, buildNum, status, envName, compName, at, buildJobUrl, packageName, custom);
+        }
+
+        Record withCustom(Map<String, String> values) {
+            return new Record(id, envComp, jobUrl, buildNum, buildStatus, envName, compName, createdAt, buildJobUrl,
+                    packageName, values);
+        }
+
+        /**
+         * @param columns
+         *            the registered custom columns.
+         * @return the deployment with the values of the registered columns.
+         */
+        Deployment toDeployment(String[] columns) {
+            return new Deployment(id, envName, compName, buildStatus, buildJobUrl, jobUrl, buildNum, createdAt,
+                    packageName, columns, Deployment.customValues(columns, custom));
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package org.jenkinsci.plugins.environmentdashboard.store;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.logging.Logger;
+
+import org.jenkinsci.plugins.environmentdashboard.entity.Build;
+import org.jenkinsci.plugins.environmentdashboard.entity.DashboardGrid;
+import org.jenkinsci.plugins.environmentdashboard.entity.Deployment;
+import org.jenkinsci.plugins.environmentdashboard.entity.DeploymentEvent;
+
+/**
+ * The newest deployments of every environment and component pair, kept on
+ * the heap so the history popups of a pair do not query the store.
+ *
+ * Every pair holds at most as many deployments as the largest history
+ * limit of the dashboards, up to the system property
+ * org.jenkinsci.plugins.environmentdashboard.store.RecentHistory.maxCapacity.
+ * Buffers are replaced, never changed, on a write, so the lists handed out
+ * stay valid.
+ */
+public final class RecentHistory {
+
+    private static final Logger LOGGER = Logger.getLogger(RecentHistory.class.getName());
+
+    private static final int MAX_CAPACITY = Integer.getInteger(RecentHistory.class.getName() + ".maxCapacity", 100);
+
+    /* Rough heap cost of a deployment and of a String, in bytes */
+    private static final int DEPLOYMENT_BYTES = 80;
+    private static final int STRING_BYTES = 40;
+
+    /* Deployments kept per pair */
+    private static int capacity = 0;
+
+    /* Buffers keyed by DashboardGrid.key; pairs not loaded yet are missing */
+    private static final Map<String, Buffer> buffers = new HashMap<String, Buffer>();
+
+    /* Bumped on every change, so loads that raced a write are not kept */
+    private static long generation = 0;
+
+    /**
+     * Added explicit private constructor as this is a utility class.
+     */
+    private RecentHistory() {
+
+    }
+
+    /**
+     * Load the buffer of every deployed pair.
+     *
+     * @param store
+     *            the store to load from.
+     * @param limit
+     *            the largest history limit of the dashboards.
+     * @throws IOException
+     *             unable to read the store.
+     */
+    public static void populate(DashboardStore store, int limit) throws IOException {
+        synchronized (RecentHistory.class) {
+            grow(limit);
+        }
+        for (Deployment latest : store.getLatestGrid().values()) {
+            get(store, latest.getEnvironment(), latest.getComponantName(), limit);
+        }
+    }
+
+    /**
+     * @param store
+     *            the store to load the pair from if it is not held.
+     * @param env
+     *            the environment name.
+     * @param comp
+     *            the component name.
+     * @param limit
+     *            the number of deployments wanted.
+     * @return the newest deployments of the pair, newest first, or null if
+     *         the limit is more than can be held.
+     * @throws IOException
+     *             unable to read the store.
+     */
+    public static List<Deployment> get(DashboardStore store, String env, String comp, int limit)
+            throws IOException {
+        String key = DashboardGrid.key(env, comp);
+        int size;
+        long loading;
+        synchronized (RecentHistory.class) {
+            if (limit > capacity && !grow(limit)) {
+                return null;
+            }
+            Buffer buffer = buffers.get(key);
+            if (buffer != null) {
+                return buffer.newest(limit);
+            }
+            size = capacity;
+            loading = generation;
+        }
+        List<Deployment> history = store.getHistory(env, comp, size, null, 0);
+        Buffer buffer = new Buffer(history);
+        synchronized (RecentHistory.class) {
+            if (loading == generation) {
+                buffers.put(key, buffer);
+            }
+        }
+        return buffer.newest(limit);
+    }
+
+    /**
+     * Add the deployments a batch wrote to the buffers. A pair whose new
+     * deployments are not all known is dropped, to be loaded again on the
+     * next read.
+     *
+     * @param store
+     *            the store the batch was written to.
+     * @param events
+     *            the recorded events.
+     */
+    static void update(DashboardStore store, List<DeploymentEvent> events) {
+        Map<String, List<Build>> written = new LinkedHashMap<String, List<Build>>();
+        for (DeploymentEvent event : events) {
+            String runTime = event.getRunTime();
+            if (runTime.equals("PRE") || runTime.equals("POST") || runTime.equals("NODEPLOY")) {
+                Build b = event.getBuild();
+                String key = DashboardGrid.key(b.getEnvironment(), b.getComponantName());
+                List<Build> builds = written.get(key);
+                if (builds == null) {
+                    builds = new ArrayList<Build>(1);
+                    written.put(key, builds);
+                }
+                // Deleted deployments leave a gap that only a reload fills.
+                builds.add(runTime.equals("NODEPLOY") ? null : b);
+            }
+        }
+        for (Map.Entry<String, List<Build>> pair : written.entrySet()) {
+            synchronized (RecentHistory.class) {
+                generation++;
+                if (!buffers.containsKey(pair.getKey())) {
+                    continue;
+                }
+            }
+            Deployment latest = null;
+            Build b = pair.getValue().size() == 1 ? pair.getValue().get(0) : null;
+            if (b != null) {
+                try {
+                    // PRE and POST both make the deployment the newest of its pair.
+                    latest = store.getLatest(b.getEnvironment(), b.getComponantName());
+                } catch (IOException e) {
+                    LOGGER.info("WARN: Could not read the latest deployment of " + pair.getKey() + ". " + e);
+                }
+            }
+            synchronized (RecentHistory.class) {
+                Buffer buffer = buffers.get(pair.getKey());
+                if (buffer != null && latest != null && b.getUrl() != null && b.getUrl().equals(latest.getUrl())) {
+                    buffers.put(pair.getKey(), buffer.push(latest, capacity));
+                } else {
+                    buffers.remove(pair.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop every buffer, after a write whose changed pairs are not known.
+     */
+    static synchronized void clear() {
+        generation++;
+        buffers.clear();
+    }
+
+    /**
+     * @return the capacity, pairs held, deployments held and their rough
+     *         heap cost in bytes, keyed by name.
+     */
+    public static synchronized Map<String, Number> getStatistics() {
+        long deployments = 0;
+        long bytes = 0;
+        for (Buffer buffer : buffers.values()) {
+            deployments += buffer.deployments.length;
+            bytes += buffer.bytes;
+        }
+        Map<String, Number> stats = new LinkedHashMap<String, Number>();
+        stats.put("capacity", capacity);
+        stats.put("pairs", buffers.size());
+        stats.put("deployments", deployments);
+        stats.put("estimatedBytes", bytes);
+        return stats;
+    }
+
+    /**
+     * Raise the capacity to a limit, dropping the buffers held at the old
+     * one. Callers hold the lock.
+     *
+     * @return false if the limit is more than can be held.
+     */
+    private static boolean grow(int limit) {
+        if (limit > MAX_CAPACITY) {
+            return false;
+        }
+        if (limit > capacity) {
+            capacity = limit;
+            clear();
+        }
+        return true;
+    }
+
+    /**
+     * The newest deployments of a pair, newest first. Immutable.
+     */
+    private static final class Buffer {
+        final Deployment[] deployments;
+
+        /* Rough heap cost of the deployments */
+        final long bytes;
+
+        Buffer(List<Deployment> history) {
+            this(history.toArray(new Deployment[history.size()]));
+        }
+
+        Buffer(Deployment[] deployments) {
+            this.deployments = deployments;
+            long total = 0;
+            for (Deployment deployment : deployments) {
+                // The names are pooled; the build number, urls and packages are not.
+                total += DEPLOYMENT_BYTES + 4 * STRING_BYTES;
+                total += 2 * (length(deployment.getId()) + length(deployment.getUrl())
+                        + length(deployment.getJobUrl()) + length(deployment.getPackages()));
+            }
+            this.bytes = total;
+        }
+
+        /**
+         * @return a buffer with the deployment first, replacing the older
+         *         version of it, and at most capacity deployments.
+         */
+        Buffer push(Deployment deployment, int capacity) {
+            List<Deployment> kept = new ArrayList<Deployment>(capacity);
+            kept.add(deployment);
+            for (Deployment older : deployments) {
+                if (kept.size() == capacity) {
+                    break;
+                }
+                if (older.getDeploymentId() != deployment.getDeploymentId()) {
+                    kept.add(older);
+                }
+            }
+            return new Buffer(kept);
+        }
+
+        List<Deployment> newest(int limit) {
+            return new View(deployments, Math.min(limit, deployments.length));
+        }
+
+        private static int length(String value) {
+            return value == null ? 0 : value.length();
+        }
+    }
+
+    /**
+     * Read-only list over the first deployments of a buffer.
+     */
+    private static final class View extends AbstractList<Deployment> implements RandomAccess {
+        private final Deployment[] deployments;
+        private final int size;
+
+        View(Deployment[] deployments, int size) {
+            this.deployments = deployments;
+            this.size = size;
+        }
+
+        @Override
+        public Deployment get(int index) {
+            if (index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            return deployments[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,992 @@
+package org.jenkinsci.plugins.environmentdashboard.store;
+
+import hudson.Extension;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import jenkins.model.Jenkins;
+
+import org.jenkinsci.plugins.environmentdashboard.entity.Build;
+import org.jenkinsci.plugins.environmentdashboard.entity.DashboardGrid;
+import org.jenkinsci.plugins.environmentdashboard.entity.Deployment;
+import org.jenkinsci.plugins.environmentdashboard.entity.DeploymentEvent;
+import org.jenkinsci.plugins.environmentdashboard.store.MemoryDashboardStore.Record;
+import org.jenkinsci.plugins.environmentdashboard.utils.NamePool;
+
+/**
+ * Appends every deployment to fixed size segment files and reads them back
+ * through memory mapped buffers. Deployments are never updated in place: a
+ * POST appends a new version of the deployment and a NODEPLOY a tombstone.
+ *
+ * Every record points back to the previous record of its environment and
+ * component pair. The heap only holds, per pair, the position of the newest
+ * record and of the latest deployment, so the latest deployment is one read
+ * and history is a walk down the chain. Retention deletes whole segments
+ * once every deployment in them has expired.
+ *
+ * Environment, component, envComp and status names are written once per
+ * segment and referred to by number, so they are neither repeated on disk
+ * nor decoded again on every read.
+ *
+ * POST and NODEPLOY apply to the deployments their build started with PRE.
+ * Values of dropped custom columns stay in their segments until the
+ * segments expire.
+ *
+ * Segments are kept in jenkins_dashboard_segments in JENKINS_HOME unless the
+ * system property
+ * org.jenkinsci.plugins.environmentdashboard.store.SegmentDashboardStore.dir
+ * names another directory. Segments are
+ * org.jenkinsci.plugins.environmentdashboard.store.SegmentDashboardStore.segmentSize
+ * bytes, 8 MB by default, or larger for a batch that does not fit.
+ */
+@Extension
+public class SegmentDashboardStore extends DashboardStore {
+
+    private static final Logger LOGGER = Logger.getLogger(SegmentDashboardStore.class.getName());
+
+    private static final String DIR = System.getProperty(SegmentDashboardStore.class.getName() + ".dir");
+
+    private static final int SEGMENT_SIZE = Integer.getInteger(SegmentDashboardStore.class.getName() + ".segmentSize",
+            8 * 1024 * 1024);
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private static final String SUFFIX = ".segment";
+
+    /* Frames start with the payload length and its CRC32 */
+    private static final int FRAME_HEADER = 8;
+
+    /* Record types */
+    private static final byte STARTED = 'P';
+    private static final byte UPDATED = 'U';
+    private static final byte DELETED = 'T';
+    private static final byte NAME = 'N';
+
+    /* Position of no record */
+    private static final long NONE = -1;
+
+    /* Polls the record whose chain may still hold the newest deployment first */
+    private static final Comparator<Version> NEWEST_BOUND_FIRST = new Comparator<Version>() {
+        public int compare(Version a, Version b) {
+            return a.maxCreated == b.maxCreated ? 0 : (a.maxCreated > b.maxCreated ? -1 : 1);
+        }
+    };
+
+    private static final Comparator<Version> NEWEST_FIRST = new Comparator<Version>() {
+        public int compare(Version a, Version b) {
+            return MemoryDashboardStore.NEWEST_FIRST.compare(a.record, b.record);
+        }
+    };
+
+    /* The directory to use instead of the default one, if any */
+    private final File configuredDir;
+
+    private File dir = null;
+
+    /* Live segments by number; the last one is appended to. Null until opened. */
+    private TreeMap<Integer, Segment> segments = null;
+
+    /* The record chain of every pair, keyed by DashboardGrid.key */
+    private final Map<String, Chain> chains = new HashMap<String, Chain>();
+
+    /* Registered custom columns, lower case, in the order they were added */
+    private final Set<String> columns = new LinkedHashSet<String>();
+
+    private long nextId = 1;
+
+    public SegmentDashboardStore() {
+        this(DIR == null ? null : new File(DIR));
+    }
+
+    /**
+     * @param dir
+     *            the directory to keep the segments in, or null for the
+     *            default one.
+     */
+    SegmentDashboardStore(File dir) {
+        this.configuredDir = dir;
+    }
+
+    @Override
+    public String getType() {
+        return "segment";
+    }
+
+    @Override
+    public synchronized void open() throws IOException {
+        if (segments != null) {
+            return;
+        }
+        if (configuredDir != null) {
+            dir = configuredDir;
+        } else if (Jenkins.getInstance() != null) {
+            dir = new File(Jenkins.getInstance().root, "jenkins_dashboard_segments");
+        } else {
+            throw new IOException("No segment directory: set " + SegmentDashboardStore.class.getName()
+                    + ".dir outside Jenkins.");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        segments = new TreeMap<Integer, Segment>();
+        chains.clear();
+        columns.clear();
+        nextId = 1;
+        try {
+            loadColumns();
+            for (int number : segmentNumbers()) {
+                Segment segment = new Segment(number, segmentFile(number), 0);
+                segments.put(number, segment);
+                replay(segment);
+            }
+            if (segments.isEmpty()) {
+                segments.put(1, new Segment(1, segmentFile(1), SEGMENT_SIZE));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        resetChanges();
+    }
+
+    @Override
+    public synchronized void recordDeployments(List<DeploymentEvent> events) throws IOException {
+        open();
+        Segment segment = segments.lastEntry().getValue();
+        Batch batch = prepare(events, segment);
+        if (segment.end + FRAME_HEADER + batch.payload.size() > segment.size) {
+            Segment next = new Segment(segment.number + 1, segmentFile(segment.number + 1),
+                    Math.max(SEGMENT_SIZE, FRAME_HEADER + batch.payload.size()));
+            segments.put(next.number, next);
+            segment = next;
+            batch = prepare(events, segment);
+        }
+        segment.append(batch.payload);
+        for (Map.Entry<String, Integer> name : batch.names.entrySet()) {
+            segment.define(name.getValue(), name.getKey());
+        }
+        segment.newest = Math.max(segment.newest, batch.newest);
+        segment.deployments += batch.deployments;
+        chains.putAll(batch.chains);
+        nextId = batch.nextId;
+        recordChanges(events);
+    }
+
+    @Override
+    public synchronized boolean addColumn(String column) throws IOException {
+        open();
+        if (!columns.add(MemoryDashboardStore.columnName(column))) {
+            return false;
+        }
+        saveColumns();
+        resetChanges();
+        return true;
+    }
+
+    @Override
+    public synchronized void dropColumn(String column) throws IOException {
+        open();
+        try {
+            if (columns.remove(column.toLowerCase(Locale.ENGLISH))) {
+                saveColumns();
+            }
+        } finally {
+            resetChanges();
+        }
+    }
+
+    @Override
+    public synchronized List<String> getCustomColumns() throws IOException {
+        open();
+        return new ArrayList<String>(columns);
+    }
+
+    /**
+     * Delete every segment, apart from the one being appended to, whose
+     * deployments are all older than the specified days. Whole segments are
+     * deleted, so chunkSize is not used.
+     */
+    @Override
+    public synchronized int pruneDeployments(int daysOld, int chunkSize) throws IOException {
+        open();
+        if (daysOld <= 0) {
+            return 0;
+        }
+        long cutoff = System.currentTimeMillis() - daysOld * DAY_MILLIS;
+        int deleted = 0;
+        boolean pruned = false;
+        while (segments.size() > 1 && segments.firstEntry().getValue().newest <= cutoff) {
+            Segment segment = segments.pollFirstEntry().getValue();
+            segment.close();
+            if (!segment.file.delete()) {
+                // A mapped file cannot be deleted on some platforms until the mapping is collected.
+                LOGGER.info("WARN: Could not delete " + segment.file + "; it will be deleted on exit.");
+                segment.file.deleteOnExit();
+            }
+            deleted += segment.deployments;
+            pruned = true;
+        }
+        if (pruned) {
+            unlinkExpired();
+            resetChanges();
+        }
+        return deleted;
+    }
+
+    /**
+     * Values of dropped columns are deleted with their segments.
+     *
+     * @return 0
+     */
+    @Override
+    public synchronized int pruneDroppedColumns(int chunkSize) throws IOException {
+        open();
+        return 0;
+    }
+
+    @Override
+    public synchronized List<String> getEnvironments() throws IOException {
+        open();
+        Set<String> envs = new TreeSet<String>();
+        for (Chain chain : chains.values()) {
+            if (chain.latest != NONE && chain.env != null) {
+                envs.add(chain.env);
+            }
+        }
+        return new ArrayList<String>(envs);
+    }
+
+    @Override
+    public synchronized List<String> getComponents() throws IOException {
+        open();
+        Set<String> comps = new TreeSet<String>();
+        for (Chain chain : chains.values()) {
+            if (chain.latest != NONE && chain.comp != null) {
+                comps.add(chain.comp);
+            }
+        }
+        return new ArrayList<String>(comps);
+    }
+
+    @Override
+    public synchronized Deployment getLatest(String env, String comp) throws IOException {
+        open();
+        Chain chain = chains.get(DashboardGrid.key(env, comp));
+        if (chain == null || chain.latest == NONE) {
+            return null;
+        }
+        return read(chain.latest, null).record.toDeployment(columnNames());
+    }
+
+    @Override
+    public synchronized Map<String, Deployment> getLatestGrid() throws IOException {
+        open();
+        String[] names = columnNames();
+        Map<String, Deployment> grid = new HashMap<String, Deployment>();
+        for (Map.Entry<String, Chain> entry : chains.entrySet()) {
+            if (entry.getValue().latest != NONE) {
+                grid.put(entry.getKey(), read(entry.getValue().latest, null).record.toDeployment(names));
+            }
+        }
+        return grid;
+    }
+
+    @Override
+    public synchronized List<Deployment> getHistory(String env, String comp, int limit, Timestamp beforeTime,
+            long beforeId) throws IOException {
+        open();
+        List<Chain> matches = new ArrayList<Chain>();
+        if (env != null && comp != null) {
+            Chain chain = chains.get(DashboardGrid.key(env, comp));
+            if (chain != null) {
+                matches.add(chain);
+            }
+        } else {
+            for (Chain chain : chains.values()) {
+                if ((env == null || env.equals(chain.env)) && (comp == null || comp.equals(chain.comp))) {
+                    matches.add(chain);
+                }
+            }
+        }
+        Record before = beforeTime == null ? null : Record.probe(beforeTime.getTime(), beforeId);
+        String[] names = columnNames();
+        List<Deployment> history = new ArrayList<Deployment>();
+        for (Version v : walk(matches, limit, before, null)) {
+            history.add(v.record.toDeployment(names));
+        }
+        return history;
+    }
+
+    @Override
+    public synchronized Map<String, Number> getStatistics() {
+        Map<String, Number> stats = new LinkedHashMap<String, Number>();
+        long bytes = 0;
+        if (segments != null) {
+            for (Segment segment : segments.values()) {
+                bytes += segment.end;
+            }
+        }
+        stats.put("segments", segments == null ? 0 : segments.size());
+        stats.put("segmentBytes", bytes);
+        stats.put("pairs", chains.size());
+        stats.put("columns", columns.size());
+        return stats;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (segments == null) {
+            return;
+        }
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+        segments = null;
+    }
+
+    /**
+     * Encode a batch of events as one frame to be appended to a segment,
+     * without changing the store. Chains the batch changes are copied into
+     * the batch.
+     */
+    private Batch prepare(List<DeploymentEvent> events, Segment segment) throws IOException {
+        Batch batch = new Batch(segment);
+        for (DeploymentEvent event : events) {
+            Build b = event.getBuild();
+            String runTime = event.getRunTime();
+            String key = DashboardGrid.key(b.getEnvironment(), b.getComponantName());
+            if (runTime.equals("PRE")) {
+                Map<String, String> custom = new HashMap<String, String>();
+                for (Map.Entry<String, String> column : event.getCustomColumns().entrySet()) {
+                    custom.put(column.getKey().toLowerCase(Locale.ENGLISH), column.getValue());
+                }
+                Record r = new Record(batch.nextId++, event.getEnvComp(), b.getUrl(), b.getId(), b.getResult(),
+                        b.getEnvironment(), b.getComponantName(), event.getTimestamp(), b.getUrl(), b.getPackages(),
+                        custom);
+                batch.append(batch.chain(key, r.envName, r.compName), STARTED, r);
+            } else if (runTime.equals("POST") || runTime.equals("NODEPLOY")) {
+                Chain chain = batch.chain(key, null, null);
+                List<Long> started = chain == null ? null : chain.running.get(b.getUrl());
+                if (started == null) {
+                    continue;
+                }
+                for (long position : new ArrayList<Long>(started)) {
+                    Version v = read(position, batch);
+                    if (v == null) {
+                        continue;
+                    }
+                    if (runTime.equals("POST")) {
+                        batch.append(chain, UPDATED, v.record.withStatus(b.getResult(), event.getTimestamp()));
+                    } else {
+                        batch.append(chain, DELETED, v.record);
+                    }
+                }
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Move a chain on to a record appended to it.
+     */
+    private void link(Chain chain, Version v, Batch batch) throws IOException {
+        chain.head = v.position;
+        chain.maxCreated = v.maxCreated;
+        if (v.type == STARTED) {
+            List<Long> started = chain.running.get(v.record.jobUrl);
+            if (started == null) {
+                started = new ArrayList<Long>(1);
+                chain.running.put(v.record.jobUrl, started);
+            }
+            started.add(v.position);
+        } else {
+            chain.running.remove(v.record.jobUrl);
+        }
+        if (v.type != DELETED
+                && (chain.latest == NONE || MemoryDashboardStore.NEWEST_FIRST.compare(v.record, chain.latestRecord) < 0)) {
+            chain.setLatest(v);
+        } else if (chain.latest != NONE && chain.latestRecord.id == v.id) {
+            // The latest deployment was deleted or updated to sort behind another one.
+            findLatest(chain, batch);
+        }
+    }
+
+    private void findLatest(Chain chain, Batch batch) throws IOException {
+        List<Version> latest = walk(Collections.singletonList(chain), 1, null, batch);
+        if (latest.isEmpty()) {
+            chain.latest = NONE;
+            chain.latestRecord = null;
+        } else {
+            chain.setLatest(latest.get(0));
+        }
+    }
+
+    /**
+     * Walk the chains newest record first, collecting the current version of
+     * each deployment that sorts after the page key. Stops once no record
+     * left in the chains can be created later than the oldest one collected.
+     */
+    private List<Version> walk(Collection<Chain> walked, int limit, Record before, Batch batch) throws IOException {
+        List<Version> page = new ArrayList<Version>();
+        if (limit <= 0) {
+            return page;
+        }
+        TreeSet<Version> newest = new TreeSet<Version>(NEWEST_FIRST);
+        PriorityQueue<Version> heads = new PriorityQueue<Version>(Math.max(1, walked.size()), NEWEST_BOUND_FIRST);
+        Set<Long> seen = new HashSet<Long>();
+        for (Chain chain : walked) {
+            Version v = read(chain.head, batch);
+            if (v != null) {
+                heads.add(v);
+            }
+        }
+        while (!heads.isEmpty()) {
+            Version v = heads.poll();
+            if (newest.size() >= limit && newest.last().record.createdAt > v.maxCreated) {
+                break;
+            }
+            // Records of a deployment are met newest first, so only the first one counts.
+            if (seen.add(v.id) && v.type != DELETED
+                    && (before == null || MemoryDashboardStore.NEWEST_FIRST.compare(v.record, before) > 0)) {
+                newest.add(v);
+                if (newest.size() > limit) {
+                    newest.pollLast();
+                }
+            }
+            Version previous = read(v.previous, batch);
+            if (previous != null) {
+                heads.add(previous);
+            }
+        }
+        page.addAll(newest);
+        return page;
+    }
+
+    /**
+     * Load the records of a segment into the chains. A torn frame at the
+     * end, left by a crash during an append, is cleared.
+     */
+    private void replay(Segment segment) throws IOException {
+        ByteBuffer buffer = segment.map.duplicate();
+        int offset = 0;
+        while (offset + FRAME_HEADER <= segment.size) {
+            buffer.position(offset);
+            int length = buffer.getInt();
+            if (length == 0) {
+                break;
+            }
+            int crc = buffer.getInt();
+            if (length < 0 || (long) offset + FRAME_HEADER + length > segment.size
+                    || crc != checksum(segment.map, offset + FRAME_HEADER, length)) {
+                LOGGER.info("WARN: Discarding a torn entry at " + offset + " in " + segment.file);
+                segment.clear(offset);
+                break;
+            }
+            int position = offset + FRAME_HEADER;
+            while (position < offset + FRAME_HEADER + length) {
+                buffer.position(position);
+                int recordLength = buffer.getInt();
+                if (buffer.get() == NAME) {
+                    int id = buffer.getInt();
+                    segment.define(id, readString(buffer, segment));
+                    position += 4 + recordLength;
+                    continue;
+                }
+                Version v = read(segment, position);
+                String key = DashboardGrid.key(v.record.envName, v.record.compName);
+                Chain chain = chains.get(key);
+                if (chain == null) {
+                    chain = new Chain(v.record.envName, v.record.compName);
+                    chains.put(key, chain);
+                }
+                link(chain, v, null);
+                if (v.type != DELETED) {
+                    segment.newest = Math.max(segment.newest, v.record.createdAt);
+                }
+                if (v.type == STARTED) {
+                    segment.deployments++;
+                }
+                nextId = Math.max(nextId, v.id + 1);
+                position += 4 + v.length;
+            }
+            offset = position;
+        }
+        segment.end = offset;
+    }
+
+    /**
+     * Drop the chain links into deleted segments.
+     */
+    private void unlinkExpired() throws IOException {
+        int first = segments.firstKey();
+        for (Iterator<Chain> it = chains.values().iterator(); it.hasNext();) {
+            Chain chain = it.next();
+            if (segmentOf(chain.head) < first) {
+                it.remove();
+                continue;
+            }
+            for (Iterator<List<Long>> started = chain.running.values().iterator(); started.hasNext();) {
+                List<Long> positions = started.next();
+                for (Iterator<Long> position = positions.iterator(); position.hasNext();) {
+                    if (segmentOf(position.next()) < first) {
+                        position.remove();
+                    }
+                }
+                if (positions.isEmpty()) {
+                    started.remove();
+                }
+            }
+            if (chain.latest != NONE && segmentOf(chain.latest) < first) {
+                findLatest(chain, null);
+            }
+        }
+    }
+
+    /**
+     * @return the record at a position, or null if there is none or its
+     *         segment was deleted.
+     */
+    private Version read(long position, Batch batch) throws IOException {
+        if (position == NONE) {
+            return null;
+        }
+        if (batch != null) {
+            Version v = batch.versions.get(position);
+            if (v != null) {
+                return v;
+            }
+        }
+        Segment segment = segments.get(segmentOf(position));
+        if (segment == null) {
+            return null;
+        }
+        return read(segment, (int) position);
+    }
+
+    /* Records are a length, then the type, previous record, chain bound, id, created_at and fields */
+    private static Version read(Segment segment, int offset) throws IOException {
+        ByteBuffer buffer = segment.map.duplicate();
+        buffer.position(offset);
+        int length = buffer.getInt();
+        byte type = buffer.get();
+        long previous = buffer.getLong();
+        long maxCreated = buffer.getLong();
+        long id = buffer.getLong();
+        long createdAt = buffer.getLong();
+        String envComp = readString(buffer, segment);
+        String jobUrl = readString(buffer, segment);
+        String buildNum = readString(buffer, segment);
+        String buildStatus = readString(buffer, segment);
+        String envName = readString(buffer, segment);
+        String compName = readString(buffer, segment);
+        String buildJobUrl = readString(buffer, segment);
+        String packageName = readString(buffer, segment);
+        int size = buffer.getInt();
+        Map<String, String> custom = new HashMap<String, String>();
+        for (int i = 0; i < size; i++) {
+            custom.put(readString(buffer, segment), readString(buffer, segment));
+        }
+        Record r = new Record(id, envComp, jobUrl, buildNum, buildStatus, envName, compName, createdAt, buildJobUrl,
+                packageName, custom);
+        return new Version(position(segment.number, offset), length, type, previous, maxCreated, r);
+    }
+
+    /* Strings are a UTF-8 byte count and the bytes, -1 for null, or -2 - n for name n of the segment */
+    private static String readString(ByteBuffer buffer, Segment segment) throws IOException {
+        int length = buffer.getInt();
+        if (length == -1) {
+            return null;
+        } else if (length < -1) {
+            return segment.names.get(-2 - length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static int checksum(ByteBuffer map, int offset, int length) {
+        ByteBuffer buffer = map.duplicate();
+        buffer.position(offset);
+        byte[] chunk = new byte[Math.min(length, 64 * 1024)];
+        CRC32 crc = new CRC32();
+        for (int remaining = length; remaining > 0; remaining -= chunk.length) {
+            int n = Math.min(remaining, chunk.length);
+            buffer.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        return (int) crc.getValue();
+    }
+
+    private static long position(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private static int segmentOf(long position) {
+        return (int) (position >>> 32);
+    }
+
+    private File segmentFile(int number) {
+        return new File(dir, String.format("%010d", number) + SUFFIX);
+    }
+
+    private List<Integer> segmentNumbers() {
+        String[] names = dir.list(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.matches("\\d+" + SUFFIX.replace(".", "\\."));
+            }
+        });
+        List<Integer> numbers = new ArrayList<Integer>();
+        if (names != null) {
+            for (String name : names) {
+                numbers.add(Integer.valueOf(name.substring(0, name.length() - SUFFIX.length())));
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * @return the registered custom columns, shared by the deployments of a
+     *         read. Callers hold the lock.
+     */
+    private String[] columnNames() {
+        return columns.toArray(new String[columns.size()]);
+    }
+
+    private void loadColumns() throws IOException {
+        File file = new File(dir, "columns");
+        FileDashboardStore.recover(file);
+        if (!file.exists()) {
+            return;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.length() > 0) {
+                    columns.add(line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void saveColumns() throws IOException {
+        File file = new File(dir, "columns");
+        File tmp = new File(dir, "columns.tmp");
+        FileOutputStream stream = new FileOutputStream(tmp);
+        Writer out = new OutputStreamWriter(stream, "UTF-8");
+        try {
+            for (String column : columns) {
+                out.write(column + "\n");
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        FileDashboardStore.replace(tmp, file);
+    }
+
+    /**
+     * The records of one environment and component pair, newest first.
+     */
+    private static final class Chain {
+        final String env;
+        final String comp;
+
+        /* Position of the newest record, and the latest created_at of the chain */
+        long head = NONE;
+        long maxCreated = Long.MIN_VALUE;
+
+        /* Position of the latest deployment */
+        long latest = NONE;
+        Record latestRecord = null;
+
+        /* Positions of the deployments still waiting for POST, keyed by build URL */
+        final Map<String, List<Long>> running = new HashMap<String, List<Long>>();
+
+        Chain(String env, String comp) {
+            this.env = env;
+            this.comp = comp;
+        }
+
+        Chain copy() {
+            Chain copy = new Chain(env, comp);
+            copy.head = head;
+            copy.maxCreated = maxCreated;
+            copy.latest = latest;
+            copy.latestRecord = latestRecord;
+            for (Map.Entry<String, List<Long>> started : running.entrySet()) {
+                copy.running.put(started.getKey(), new ArrayList<Long>(started.getValue()));
+            }
+            return copy;
+        }
+
+        void setLatest(Version v) {
+            latest = v.position;
+            latestRecord = v.record;
+        }
+    }
+
+    /**
+     * One record of a chain.
+     */
+    private static final class Version {
+        final long position;
+        final int length;
+        final byte type;
+        final long previous;
+
+        /* The latest created_at of this record and every older one in the chain */
+        final long maxCreated;
+
+        final long id;
+        final Record record;
+
+        Version(long position, int length, byte type, long previous, long maxCreated, Record record) {
+            this.position = position;
+            this.length = length;
+            this.type = type;
+            this.previous = previous;
+            this.maxCreated = maxCreated;
+            this.id = record.id;
+            this.record = record;
+        }
+    }
+
+    /**
+     * Records of one batch of events, encoded as the payload of a frame that
+     * starts at the end of a segment.
+     */
+    private final class Batch {
+        final Segment segment;
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+        /* Chains the batch links records to */
+        final Map<String, Chain> chains = new HashMap<String, Chain>();
+
+        /* Records of the batch by position, until they are written */
+        final Map<Long, Version> versions = new HashMap<Long, Version>();
+
+        /* Names the batch adds to the segment, by number */
+        final Map<String, Integer> names = new LinkedHashMap<String, Integer>();
+
+        long nextId = SegmentDashboardStore.this.nextId;
+        long newest = Long.MIN_VALUE;
+        int deployments = 0;
+
+        Batch(Segment segment) {
+            this.segment = segment;
+        }
+
+        /**
+         * @return the chain of a pair as this batch left it. A new pair gets a
+         *         chain if env is given, otherwise null is returned.
+         */
+        Chain chain(String key, String env, String comp) {
+            Chain chain = chains.get(key);
+            if (chain == null) {
+                Chain current = SegmentDashboardStore.this.chains.get(key);
+                if (current == null && env == null) {
+                    return null;
+                }
+                chain = current == null ? new Chain(env, comp) : current.copy();
+                chains.put(key, chain);
+            }
+            return chain;
+        }
+
+        void append(Chain chain, byte type, Record r) throws IOException {
+            long maxCreated = type == DELETED ? chain.maxCreated : Math.max(chain.maxCreated, r.createdAt);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream record = new DataOutputStream(bytes);
+            record.writeByte(type);
+            record.writeLong(chain.head);
+            record.writeLong(maxCreated);
+            record.writeLong(r.id);
+            record.writeLong(r.createdAt);
+            writeName(record, r.envComp);
+            FileDashboardStore.writeString(record, r.jobUrl);
+            FileDashboardStore.writeString(record, r.buildNum);
+            writeName(record, r.buildStatus);
+            writeName(record, r.envName);
+            writeName(record, r.compName);
+            FileDashboardStore.writeString(record, r.buildJobUrl);
+            FileDashboardStore.writeString(record, r.packageName);
+            FileDashboardStore.writeMap(record, r.custom);
+
+            int offset = segment.end + FRAME_HEADER + payload.size();
+            new DataOutputStream(payload).writeInt(bytes.size());
+            bytes.writeTo(payload);
+
+            Version v = new Version(position(segment.number, offset), bytes.size(), type, chain.head, maxCreated, r);
+            versions.put(v.position, v);
+            link(chain, v, this);
+            if (type != DELETED) {
+                newest = Math.max(newest, r.createdAt);
+            }
+            if (type == STARTED) {
+                deployments++;
+            }
+        }
+
+        /**
+         * Write a name as its number in the segment, first adding the name
+         * to the payload if the segment does not have it yet.
+         */
+        void writeName(DataOutputStream record, String name) throws IOException {
+            if (name == null) {
+                record.writeInt(-1);
+                return;
+            }
+            Integer id = segment.ids.get(name);
+            if (id == null) {
+                id = names.get(name);
+            }
+            if (id == null) {
+                id = segment.names.size() + names.size();
+                names.put(name, id);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream definition = new DataOutputStream(bytes);
+                definition.writeByte(NAME);
+                definition.writeInt(id);
+                FileDashboardStore.writeString(definition, name);
+                new DataOutputStream(payload).writeInt(bytes.size());
+                bytes.writeTo(payload);
+            }
+            record.writeInt(-2 - id);
+        }
+    }
+
+    /**
+     * One segment file, mapped for reading.
+     */
+    private static final class Segment {
+        final int number;
+        final File file;
+        final RandomAccessFile raf;
+        final FileChannel channel;
+        final MappedByteBuffer map;
+        final int size;
+
+        /* Offset the next frame is written at */
+        int end = 0;
+
+        /* The latest created_at of the deployments in the segment */
+        long newest = Long.MIN_VALUE;
+
+        /* Deployments started in the segment */
+        int deployments = 0;
+
+        /* Names written to the segment, by number */
+        final List<String> names = new ArrayList<String>();
+        final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+        /**
+         * Open a segment, creating it with the given size if it does not
+         * exist.
+         */
+        Segment(int number, File file, int size) throws IOException {
+            this.number = number;
+            this.file = file;
+            raf = new RandomAccessFile(file, "rw");
+            try {
+                if (raf.length() == 0) {
+                    raf.setLength(size);
+                }
+                channel = raf.getChannel();
+                this.size = (int) raf.length();
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, this.size);
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Add a name written to the segment.
+         */
+        void define(int id, String name) throws IOException {
+            if (id != names.size()) {
+                throw new IOException("Name " + id + " is out of order in " + file);
+            }
+            String pooled = NamePool.canonical(name);
+            names.add(pooled);
+            ids.put(pooled, id);
+        }
+
+        /**
+         * Write a frame at the end of the segment with one sequential write.
+         */
+        void append(ByteArrayOutputStream payload) throws IOException {
+            byte[] bytes = payload.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + bytes.length);
+            frame.putInt(bytes.length);
+            frame.putInt((int) crc.getValue());
+            frame.put(bytes);
+            frame.flip();
+            while (frame.hasRemaining()) {
+                channel.write(frame, end + frame.position());
+            }
+            end += frame.limit();
+        }
+
+        /**
+         * Zero the segment from an offset, so appends there are not
+         * followed by a torn frame.
+         */
+        void clear(int offset) throws IOException {
+            ByteBuffer zeros = ByteBuffer.allocate(64 * 1024);
+            for (long position = offset; position < size; position += zeros.capacity()) {
+                zeros.clear();
+                zeros.limit((int) Math.min(zeros.capacity(), size - position));
+                channel.write(zeros, position);
+            }
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                LOGGER.info("WARN: Could not close " + file + ". " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,752 @@
+package org.jenkinsci.plugins.environmentdashboard.utils;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A bounded pool of JDBC connections.
+ *
+ * Connections handed out by {@link #borrow()} are proxies; calling
+ * {@link Connection#close()} on them returns the underlying connection to the
+ * pool and closes any statements opened through it.
+ *
+ * Statements from {@link Connection#prepareStatement(String)} are cached per
+ * physical connection and handed out again when the same SQL is prepared on
+ * a later borrow, so the DB does not re-parse and re-plan them. Closing such
+ * a statement returns it to the cache. Their executions are timed and passed
+ * to {@link SlowQueryLog} with their bind values and row counts.
+ */
+public class ConnectionPool {
+
+    private static final Logger LOGGER = Logger.getLogger(ConnectionPool.class.getName());
+
+    /* JDBC url of the database */
+    private final String url;
+
+    /* Maximum number of open connections, idle and active */
+    private final int maxSize;
+
+    /* How long a caller waits for a free connection before giving up */
+    private final long borrowTimeoutMillis;
+
+    /* Idle connections older than this are validated before reuse */
+    private final long validationIntervalMillis;
+
+    /* Most prepared statements cached per physical connection */
+    private final int statementCacheSize;
+
+    /* Idle connections, most recently returned first */
+    private final LinkedList<IdleConnection> idle = new LinkedList<IdleConnection>();
+
+    /* Connections currently borrowed or being opened */
+    private int active = 0;
+
+    private boolean closed = false;
+
+    private long borrowCount = 0;
+    private long totalWaitNanos = 0;
+    private long maxWaitNanos = 0;
+    private long timeoutCount = 0;
+    private long createdCount = 0;
+    private long invalidatedCount = 0;
+    private long statementHits = 0;
+    private long statementMisses = 0;
+
+    /**
+     * Create a connection pool.
+     *
+     * @param url
+     *            the JDBC url to connect to.
+     * @param maxSize
+     *            the maximum number of open connections.
+     * @param borrowTimeoutMillis
+     *            how long to wait for a free connection.
+     * @param validationIntervalMillis
+     *            idle time after which a connection is validated on borrow.
+     */
+    public ConnectionPool(String url, int maxSize, long borrowTimeoutMillis, long validationIntervalMillis) {
+        this(url, maxSize, borrowTimeoutMillis, validationIntervalMillis, 50);
+    }
+
+    /**
+     * Create a connection pool.
+     *
+     * @param url
+     *            the JDBC url to connect to.
+     * @param maxSize
+     *            the maximum number of open connections.
+     * @param borrowTimeoutMillis
+     *            how long to wait for a free connection.
+     * @param validationIntervalMillis
+     *            idle time after which a connection is validated on borrow.
+     * @param statementCacheSize
+     *            the most prepared statements cached per connection; 0
+     *            disables the cache.
+     */
+    public ConnectionPool(String url, int maxSize, long borrowTimeoutMillis, long validationIntervalMillis, int statementCacheSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be at least 1");
+        }
+        this.url = url;
+        this.maxSize = maxSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.validationIntervalMillis = validationIntervalMillis;
+        this.statementCacheSize = Math.max(0, statementCacheSize);
+    }
+
+    /**
+     * Borrow a connection from the pool, opening a new one if the pool is not
+     * yet full.
+     *
+     * @return a pooled connection; close it to return it to the pool.
+     * @throws SQLException
+     *             if no connection became available within the borrow timeout
+     *             or a new connection could not be opened.
+     */
+    public Connection borrow() throws SQLException {
+        long start = System.nanoTime();
+        long deadline = start + borrowTimeoutMillis * 1000000L;
+        while (true) {
+            IdleConnection candidate = null;
+            synchronized (this) {
+                while (!closed && idle.isEmpty() && active >= maxSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        timeoutCount++;
+                        throw new SQLException("Timed out after " + borrowTimeoutMillis
+                                + "ms waiting for a dashboard DB connection (" + active + " in use).");
+                    }
+                    try {
+                        wait(remaining / 1000000L + 1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted waiting for a dashboard DB connection.");
+                    }
+                }
+                if (closed) {
+                    throw new SQLException("Connection pool is closed.");
+                }
+                // Reserve a slot before leaving the lock.
+                active++;
+                if (!idle.isEmpty()) {
+                    candidate = idle.removeFirst();
+                }
+            }
+
+            PhysicalConnection physical;
+            try {
+                if (candidate == null) {
+                    physical = new PhysicalConnection(DriverManager.getConnection(url), statementCacheSize);
+                    synchronized (this) {
+                        createdCount++;
+                    }
+                } else if (isUsable(candidate)) {
+                    physical = candidate.connection;
+                } else {
+                    discard(candidate.connection);
+                    synchronized (this) {
+                        invalidatedCount++;
+                        active--;
+                    }
+                    continue;
+                }
+            } catch (SQLException e) {
+                synchronized (this) {
+                    active--;
+                    notifyAll();
+                }
+                throw e;
+            }
+
+            long waited = System.nanoTime() - start;
+            synchronized (this) {
+                borrowCount++;
+                totalWaitNanos += waited;
+                if (waited > maxWaitNanos) {
+                    maxWaitNanos = waited;
+                }
+            }
+            return wrap(physical);
+        }
+    }
+
+    /**
+     * Close all idle connections and refuse further borrows. Borrowed
+     * connections are closed when they are returned.
+     */
+    public void close() {
+        List<IdleConnection> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayList<IdleConnection>(idle);
+            idle.clear();
+            notifyAll();
+        }
+        for (IdleConnection c : toClose) {
+            discard(c.connection);
+        }
+    }
+
+    /**
+     * @return a point-in-time snapshot of the pool statistics.
+     */
+    public synchronized Stats getStats() {
+        return new Stats(active, idle.size(), maxSize, borrowCount, totalWaitNanos, maxWaitNanos,
+                timeoutCount, createdCount, invalidatedCount, statementHits, statementMisses);
+    }
+
+    private boolean isUsable(IdleConnection candidate) {
+        try {
+            if (candidate.connection.connection.isClosed()) {
+                return false;
+            }
+            if (System.currentTimeMillis() - candidate.idleSince < validationIntervalMillis) {
+                return true;
+            }
+            return candidate.connection.connection.isValid(5);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void release(PhysicalConnection physical, boolean broken) {
+        boolean reuse = !broken;
+        if (reuse) {
+            try {
+                if (!physical.connection.getAutoCommit()) {
+                    physical.connection.rollback();
+                    physical.connection.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                reuse = false;
+            }
+        }
+        synchronized (this) {
+            active--;
+            if (reuse && !closed) {
+                idle.addFirst(new IdleConnection(physical));
+                physical = null;
+            }
+            notifyAll();
+        }
+        if (physical != null) {
+            discard(physical);
+        }
+    }
+
+    private static void discard(PhysicalConnection physical) {
+        try {
+            // Cached statements are closed along with the connection.
+            physical.connection.close();
+        } catch (SQLException e) {
+            LOGGER.info("WARN: Could not close dashboard DB connection." + e);
+        }
+    }
+
+    private Connection wrap(PhysicalConnection physical) {
+        return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new PooledConnectionHandler(physical));
+    }
+
+    private synchronized void countStatement(boolean hit) {
+        if (hit) {
+            statementHits++;
+        } else {
+            statementMisses++;
+        }
+    }
+
+    /**
+     * Intercepts close() on a borrowed connection, tracks the statements
+     * created through it and serves prepareStatement(String) from the
+     * statement cache.
+     */
+    private final class PooledConnectionHandler implements InvocationHandler {
+
+        private PhysicalConnection physical;
+
+        private final List<Statement> statements = new ArrayList<Statement>();
+
+        /* Cached statements handed out during this borrow, keyed by proxy */
+        private final Map<PreparedStatement, CachedStatement> checkedOut = new LinkedHashMap<PreparedStatement, CachedStatement>();
+
+        private boolean broken = false;
+
+        PooledConnectionHandler(PhysicalConnection physical) {
+            this.physical = physical;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name)) {
+                returnToPool();
+                return null;
+            }
+            if ("isClosed".equals(name)) {
+                return physical == null;
+            }
+            if ("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+            if ("toString".equals(name)) {
+                return "Pooled[" + (physical == null ? null : physical.connection) + "]";
+            }
+            if (physical == null) {
+                throw new SQLException("Connection has already been returned to the pool.");
+            }
+            try {
+                // With a cache size of 0 the statement is closed on check in.
+                if ("prepareStatement".equals(name) && args.length == 1) {
+                    return prepare((String) args[0]);
+                }
+                Object result = method.invoke(physical.connection, args);
+                if (result instanceof Statement) {
+                    statements.add((Statement) result);
+                }
+                return result;
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof SQLException && isFatal((SQLException) cause)) {
+                    broken = true;
+                }
+                throw cause;
+            }
+        }
+
+        /**
+         * Take the statement for this SQL out of the cache, or prepare it.
+         * A statement stays out of the cache while in use, so preparing the
+         * same SQL twice at once yields two statements.
+         */
+        private PreparedStatement prepare(String sql) throws Throwable {
+            PreparedStatement statement = physical.statements.remove(sql);
+            countStatement(statement != null);
+            if (statement == null) {
+                try {
+                    statement = physical.connection.prepareStatement(sql);
+                } catch (SQLException e) {
+                    if (isFatal(e)) {
+                        broken = true;
+                    }
+                    throw e;
+                }
+            }
+            CachedStatement handler = new CachedStatement(this, sql, statement);
+            PreparedStatement wrapped = (PreparedStatement) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                    new Class<?>[] { PreparedStatement.class }, handler);
+            checkedOut.put(wrapped, handler);
+            return wrapped;
+        }
+
+        /**
+         * Put a statement back in the cache, cleared for its next user.
+         */
+        void checkIn(PreparedStatement wrapped, CachedStatement handler) {
+            if (checkedOut.remove(wrapped) == null || physical == null) {
+                return;
+            }
+            handler.finish();
+            PreparedStatement statement = handler.statement;
+            try {
+                ResultSet rs = statement.getResultSet();
+                if (rs != null) {
+                    rs.close();
+                }
+                statement.clearParameters();
+                statement.clearBatch();
+            } catch (SQLException e) {
+                closeQuietly(statement);
+                return;
+            }
+            if (physical.statements.containsKey(handler.sql)) {
+                closeQuietly(statement);
+            } else {
+                physical.statements.put(handler.sql, statement);
+            }
+        }
+
+        private void returnToPool() {
+            if (physical == null) {
+                return;
+            }
+            for (Map.Entry<PreparedStatement, CachedStatement> entry : new ArrayList<Map.Entry<PreparedStatement, CachedStatement>>(checkedOut.entrySet())) {
+                checkIn(entry.getKey(), entry.getValue());
+            }
+            for (Statement statement : statements) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    broken = true;
+                }
+            }
+            statements.clear();
+            PhysicalConnection c = physical;
+            physical = null;
+            release(c, broken);
+        }
+
+        private boolean isFatal(SQLException e) {
+            // SQL state class 08 - connection exception
+            return e.getSQLState() != null && e.getSQLState().startsWith("08");
+        }
+    }
+
+    /**
+     * A cached prepared statement lent out for one borrow; close() returns
+     * it to the cache instead of closing it. Bind values are remembered and
+     * each execution is timed for the slow query log, queries until their
+     * result set is read to the end or closed.
+     */
+    private static final class CachedStatement implements InvocationHandler {
+
+        private final PooledConnectionHandler owner;
+        final String sql;
+        final PreparedStatement statement;
+        private boolean returned = false;
+
+        /* Bind values by parameter index starting at 0 */
+        private Object[] params = new Object[0];
+
+        /* The execution being timed, or null */
+        private Execution execution = null;
+
+        CachedStatement(PooledConnectionHandler owner, String sql, PreparedStatement statement) {
+            this.owner = owner;
+            this.sql = sql;
+            this.statement = statement;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name)) {
+                if (!returned) {
+                    returned = true;
+                    owner.checkIn((PreparedStatement) proxy, this);
+                }
+                return null;
+            }
+            if ("isClosed".equals(name)) {
+                return returned;
+            }
+            if ("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+            if ("toString".equals(name)) {
+                return "Cached[" + sql + "]";
+            }
+            if (returned) {
+                throw new SQLException("Statement has already been closed.");
+            }
+            boolean executes = name.startsWith("execute");
+            if (executes) {
+                finish();
+                execution = new Execution(params.clone());
+            } else if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                bind((Integer) args[0], args[1]);
+            } else if ("clearParameters".equals(name)) {
+                params = new Object[0];
+            }
+            try {
+                Object result = method.invoke(statement, args);
+                if ("executeQuery".equals(name)) {
+                    execution.rows = 0;
+                    return Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                            new Class<?>[] { ResultSet.class }, new CountingResultSet((ResultSet) result, execution));
+                }
+                if (executes) {
+                    execution.rows = updateCount(result);
+                    finish();
+                }
+                return result;
+            } catch (InvocationTargetException e) {
+                if (executes) {
+                    finish();
+                }
+                Throwable cause = e.getCause();
+                if (cause instanceof SQLException && owner.isFatal((SQLException) cause)) {
+                    owner.broken = true;
+                }
+                throw cause;
+            }
+        }
+
+        private void bind(int index, Object value) {
+            if (index > params.length) {
+                Object[] grown = new Object[index];
+                System.arraycopy(params, 0, grown, 0, params.length);
+                params = grown;
+            }
+            params[index - 1] = value;
+        }
+
+        private long updateCount(Object result) throws SQLException {
+            if (result instanceof Integer) {
+                return (Integer) result;
+            }
+            if (result instanceof int[]) {
+                long rows = 0;
+                for (int count : (int[]) result) {
+                    rows += Math.max(count, 0);
+                }
+                return rows;
+            }
+            return statement.getUpdateCount();
+        }
+
+        /**
+         * Stop timing the current execution, if any, and pass it on to the
+         * slow query log.
+         */
+        void finish() {
+            Execution e = execution;
+            if (e == null) {
+                return;
+            }
+            execution = null;
+            SlowQueryLog.record(sql, e.params, e.rows, (System.nanoTime() - e.startNanos) / 1000000);
+        }
+
+        /**
+         * A result set of this statement; counts the rows read and finishes
+         * the execution when the last row is passed or the set is closed.
+         */
+        private final class CountingResultSet implements InvocationHandler {
+
+            private final ResultSet rs;
+            private final Execution timed;
+
+            CountingResultSet(ResultSet rs, Execution timed) {
+                this.rs = rs;
+                this.timed = timed;
+            }
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                Object result;
+                try {
+                    result = method.invoke(rs, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+                if ("next".equals(name)) {
+                    if (Boolean.TRUE.equals(result)) {
+                        timed.rows++;
+                    } else {
+                        done();
+                    }
+                } else if ("close".equals(name)) {
+                    done();
+                }
+                return result;
+            }
+
+            private void done() {
+                // A later execution of the statement has already finished this one.
+                if (execution == timed) {
+                    finish();
+                }
+            }
+        }
+    }
+
+    /**
+     * One timed execution of a cached statement.
+     */
+    private static final class Execution {
+        final long startNanos = System.nanoTime();
+        final Object[] params;
+
+        /* Rows read or changed so far, or -1 if unknown or failed */
+        long rows = -1;
+
+        Execution(Object[] params) {
+            this.params = params;
+        }
+    }
+
+    private static void closeQuietly(Statement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            LOGGER.info("WARN: Could not close dashboard DB statement." + e);
+        }
+    }
+
+    /**
+     * A physical connection and its prepared statement cache.
+     */
+    private static final class PhysicalConnection {
+        final Connection connection;
+
+        /* Idle cached statements keyed by SQL, least recently used first */
+        final Map<String, PreparedStatement> statements;
+
+        PhysicalConnection(Connection connection, final int cacheSize) {
+            this.connection = connection;
+            this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() > cacheSize) {
+                        closeQuietly(eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+    }
+
+    private static final class IdleConnection {
+        final PhysicalConnection connection;
+        final long idleSince;
+
+        IdleConnection(PhysicalConnection connection) {
+            this.connection = connection;
+            this.idleSince = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Immutable snapshot of pool statistics.
+     */
+    public static final class Stats {
+        private final int active;
+        private final int idle;
+        private final int maxSize;
+        private final long borrowCount;
+        private final long totalWaitNanos;
+        private final long maxWaitNanos;
+        private final long timeoutCount;
+        private final long createdCount;
+        private final long invalidatedCount;
+        private final long statementHits;
+        private final long statementMisses;
+
+        Stats(int active, int idle, int maxSize, long borrowCount, long totalWaitNanos, long maxWaitNanos,
+                long timeoutCount, long createdCount, long invalidatedCount, long statementHits, long statementMisses) {
+            this.active = active;
+            this.idle = idle;
+            this.maxSize = maxSize;
+            this.borrowCount = borrowCount;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+            this.timeoutCount = timeoutCount;
+            this.createdCount = createdCount;
+            this.invalidatedCount = invalidatedCount;
+            this.statementHits = statementHits;
+            this.statementMisses = statementMisses;
+        }
+
+        /**
+         * @return connections currently borrowed
+         */
+        public int getActive() {
+            return active;
+        }
+
+        /**
+         * @return open connections waiting in the pool
+         */
+        public int getIdle() {
+            return idle;
+        }
+
+        /**
+         * @return the maximum number of open connections
+         */
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        /**
+         * @return total successful borrows
+         */
+        public long getBorrowCount() {
+            return borrowCount;
+        }
+
+        /**
+         * @return total time spent waiting to borrow, in milliseconds
+         */
+        public long getTotalWaitMillis() {
+            return totalWaitNanos / 1000000L;
+        }
+
+        /**
+         * @return mean time spent waiting to borrow, in milliseconds
+         */
+        public double getAverageWaitMillis() {
+            return borrowCount == 0 ? 0 : (double) totalWaitNanos / borrowCount / 1000000.0;
+        }
+
+        /**
+         * @return longest time spent waiting to borrow, in milliseconds
+         */
+        public long getMaxWaitMillis() {
+            return maxWaitNanos / 1000000L;
+        }
+
+        /**
+         * @return borrows that timed out
+         */
+        public long getTimeoutCount() {
+            return timeoutCount;
+        }
+
+        /**
+         * @return physical connections opened
+         */
+        public long getCreatedCount() {
+            return createdCount;
+        }
+
+        /**
+         * @return idle connections discarded after failing validation
+         */
+        public long getInvalidatedCount() {
+            return invalidatedCount;
+        }
+
+        /**
+         * @return prepared statements served from the statement cache
+         */
+        public long getStatementHits() {
+            return statementHits;
+        }
+
+        /**
+         * @return prepared statements that had to be parsed by the DB
+         */
+        public long getStatementMisses() {
+            return statementMisses;
+        }
+
+        @Override
+        public String toString() {
+            return "active=" + active + ", idle=" + idle + ", max=" + maxSize + ", borrows=" + borrowCount
+                    + ", avgWaitMs=" + getAverageWaitMillis() + ", maxWaitMs=" + getMaxWaitMillis()
+                    + ", timeouts=" + timeoutCount + ", statementHits=" + statementHits
+                    + ", statementMisses=" + statementMisses;
+        }
+    }
+}
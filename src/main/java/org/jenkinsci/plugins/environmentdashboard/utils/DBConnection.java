@@ -2,15 +2,21 @@ package org.jenkinsci.plugins.environmentdashboard.utils;
 
 import java.io.File;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.logging.Logger;
 
 import jenkins.model.Jenkins;
 
 /**
- * Singleton class to represent a single DB connection.
- * 
+ * Utility class handing out pooled connections to the dashboard DB.
+ *
+ * The pool size, borrow timeout, idle validation interval and prepared
+ * statement cache size can be tuned with the system properties
+ * org.jenkinsci.plugins.environmentdashboard.utils.DBConnection.maxPoolSize,
+ * .borrowTimeout, .validationInterval (milliseconds) and .statementCacheSize.
+ * The DB lives in JENKINS_HOME unless .url names another JDBC URL, as the
+ * benchmarks do.
+ *
  * @author robertnorthard
  * @date 18/10/2014, 01/03/2015
  */
@@ -18,7 +24,17 @@ public class DBConnection {
 
     private static final Logger LOGGER = Logger.getLogger(DBConnection.class.getName());
 
-    private static Connection con = null;
+    private static final int MAX_POOL_SIZE = Integer.getInteger(DBConnection.class.getName() + ".maxPoolSize", 10);
+
+    private static final long BORROW_TIMEOUT = Long.getLong(DBConnection.class.getName() + ".borrowTimeout", 30000L);
+
+    private static final long VALIDATION_INTERVAL = Long.getLong(DBConnection.class.getName() + ".validationInterval", 30000L);
+
+    private static final int STATEMENT_CACHE_SIZE = Integer.getInteger(DBConnection.class.getName() + ".statementCacheSize", 50);
+
+    private static final String URL = System.getProperty(DBConnection.class.getName() + ".url");
+
+    private static volatile ConnectionPool pool = null;
 
     /**
      * Added explicit private constructor as this is a utility class.
@@ -28,41 +44,43 @@ public class DBConnection {
     }
 
     /**
-     * Return a database connection object.
-     * 
-     * @return a database connection object
+     * Return a pooled database connection object. Callers must hand it back
+     * with {@link #closeConnection(Connection)} once done.
+     *
+     * @return a database connection object, or null if none could be
+     *         acquired.
      */
     public static Connection getConnection() {
-
-        // Generate connection String for DB driver.
-        String dbConnectionString = "jdbc:h2:"
-                + Jenkins.getInstance().root.toString() + File.separator
-                + "jenkins_dashboard" + ";MVCC=true";
-
-        // Load driver and connect to DB
+        DashboardMetrics.Operation op = DashboardMetrics.operation("DBConnection.getConnection");
+        long start = System.nanoTime();
         try {
-            Class.forName("org.h2.Driver");
-            DBConnection.con = DriverManager.getConnection(dbConnectionString);
+            return getPool().borrow();
         } catch (ClassNotFoundException e) {
+            op.error();
             LOGGER.info("WARN: Could not acquire Class org.h2.Driver." + e);
         } catch (SQLException e) {
+            op.error();
             LOGGER.info("WARN: Could not acquire connection to H2 DB." + e);
+        } finally {
+            op.record(start);
         }
-        return con;
+        return null;
     }
 
     /**
-     * Close Database Connection
-     * 
+     * Return a connection to the pool.
+     *
+     * @param conn
+     *            the connection obtained from {@link #getConnection()}
      * @return true if database connection closed successful, else false if
      *         connection not closed or SQLException.
      */
-    public static boolean closeConnection() {
+    public static boolean closeConnection(Connection conn) {
 
         // Prevent unchecked NullPointerException
-        if (DBConnection.con != null) {
+        if (conn != null) {
             try {
-                DBConnection.con.close();
+                conn.close();
                 return true;
             } catch (SQLException e) {
                 LOGGER.info("E5: " + e);
@@ -72,4 +90,53 @@ public class DBConnection {
         // default - failed to close
         return false;
     }
+
+    /**
+     * @return statistics of the connection pool, or null if no connection
+     *         has been requested yet.
+     */
+    public static ConnectionPool.Stats getPoolStats() {
+        ConnectionPool p = pool;
+        return p == null ? null : p.getStats();
+    }
+
+    /**
+     * Close all pooled connections. A new pool is created on the next call
+     * to {@link #getConnection()}.
+     */
+    public static void shutdown() {
+        ConnectionPool p;
+        synchronized (DBConnection.class) {
+            p = pool;
+            pool = null;
+        }
+        if (p != null) {
+            p.close();
+        }
+    }
+
+    private static ConnectionPool getPool() throws ClassNotFoundException {
+        ConnectionPool p = pool;
+        if (p == null) {
+            synchronized (DBConnection.class) {
+                p = pool;
+                if (p == null) {
+                    // Generate connection String for DB driver.
+                    String dbConnectionString = URL;
+                    if (dbConnectionString == null) {
+                        dbConnectionString = "jdbc:h2:"
+                                + Jenkins.getInstance().root.toString() + File.separator
+                                + "jenkins_dashboard" + ";MVCC=true";
+                    }
+
+                    // Load driver once for the lifetime of the pool.
+                    Class.forName("org.h2.Driver");
+                    p = new ConnectionPool(dbConnectionString, MAX_POOL_SIZE, BORROW_TIMEOUT, VALIDATION_INTERVAL,
+                            STATEMENT_CACHE_SIZE);
+                    pool = p;
+                }
+            }
+        }
+        return p;
+    }
 }
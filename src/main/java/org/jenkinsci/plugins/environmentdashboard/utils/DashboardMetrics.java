@@ -0,0 +1,109 @@
+package org.jenkinsci.plugins.environmentdashboard.utils;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide call counts, error counts and latency histograms of the
+ * dashboard's data layer, one set per operation. Operations are timed as
+ *
+ * <pre>
+ * DashboardMetrics.Operation op = DashboardMetrics.operation("Class.method");
+ * long start = System.nanoTime();
+ * try {
+ *     ...
+ * } catch (SQLException e) {
+ *     op.error();
+ *     throw e;
+ * } finally {
+ *     op.record(start);
+ * }
+ * </pre>
+ */
+public final class DashboardMetrics {
+
+    private static final ConcurrentMap<String, Operation> operations = new ConcurrentHashMap<String, Operation>();
+
+    /**
+     * Added explicit private constructor as this is a utility class.
+     */
+    private DashboardMetrics() {
+
+    }
+
+    /**
+     * @param name
+     *            the operation, e.g. "DashboardDAO.addBuild".
+     * @return the metrics of the operation, created on first use.
+     */
+    public static Operation operation(String name) {
+        Operation operation = operations.get(name);
+        if (operation == null) {
+            operations.putIfAbsent(name, new Operation());
+            operation = operations.get(name);
+        }
+        return operation;
+    }
+
+    /**
+     * @return the metrics of every operation, keyed and sorted by name
+     */
+    public static SortedMap<String, Operation> getOperations() {
+        return new TreeMap<String, Operation>(operations);
+    }
+
+    /**
+     * Metrics of one operation.
+     */
+    public static final class Operation {
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final Histogram latency = new Histogram(Histogram.LATENCY_BOUNDS);
+
+        private Operation() {
+        }
+
+        /**
+         * Record one call.
+         *
+         * @param startNanos
+         *            System.nanoTime() when the call started.
+         */
+        public void record(long startNanos) {
+            count.incrementAndGet();
+            latency.record((System.nanoTime() - startNanos) / 1000000);
+        }
+
+        /**
+         * Count a failed call; it must still be recorded.
+         */
+        public void error() {
+            errors.incrementAndGet();
+        }
+
+        /**
+         * @return the number of calls
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * @return the number of failed calls
+         */
+        public long getErrors() {
+            return errors.get();
+        }
+
+        /**
+         * @return the call latencies in milliseconds
+         */
+        public Histogram getLatency() {
+            return latency;
+        }
+    }
+}
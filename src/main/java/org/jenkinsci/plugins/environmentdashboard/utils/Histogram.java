@@ -0,0 +1,116 @@
+package org.jenkinsci.plugins.environmentdashboard.utils;
+
+import java.util.Arrays;
+
+/**
+ * Thread-safe histogram with fixed, roughly exponential bucket bounds.
+ *
+ * Values above the last bound are counted in an overflow bucket.
+ */
+public class Histogram {
+
+    /* Bucket upper bounds suitable for millisecond latencies */
+    public static final long[] LATENCY_BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000 };
+
+    /* Bucket upper bounds suitable for batch and result sizes */
+    public static final long[] SIZE_BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000 };
+
+    private final long[] bounds;
+
+    /* One count per bound plus the overflow bucket */
+    private final long[] counts;
+
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    /**
+     * @param bounds
+     *            ascending bucket upper bounds (inclusive).
+     */
+    public Histogram(long[] bounds) {
+        this.bounds = bounds.clone();
+        this.counts = new long[bounds.length + 1];
+    }
+
+    /**
+     * Record a value.
+     *
+     * @param value
+     *            the value to record.
+     */
+    public synchronized void record(long value) {
+        int i = Arrays.binarySearch(bounds, value);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        counts[i]++;
+        count++;
+        sum += value;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the mean of the recorded values
+     */
+    public synchronized double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @return the largest recorded value
+     */
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * @param quantile
+     *            between 0 and 1, e.g. 0.99.
+     * @return the upper bound of the bucket holding the quantile, or the
+     *         maximum value if it falls in the overflow bucket.
+     */
+    public synchronized long getPercentile(double quantile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(bounds[i], max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return the bucket upper bounds
+     */
+    public long[] getBounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * @return the count per bucket; the last entry is the overflow bucket
+     */
+    public synchronized long[] getCounts() {
+        return counts.clone();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "count=" + count + ", mean=" + getMean() + ", p50=" + getPercentile(0.5) + ", p99="
+                + getPercentile(0.99) + ", max=" + max;
+    }
+}
@@ -0,0 +1,56 @@
+package org.jenkinsci.plugins.environmentdashboard.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Process-wide pool of the environment, component and build status names,
+ * so every deployment read shares one String per name instead of holding
+ * its own copy. There are only a few hundred distinct names, where the
+ * history holds millions of deployments.
+ *
+ * The number of names pooled is bounded by the system property
+ * org.jenkinsci.plugins.environmentdashboard.utils.NamePool.maxSize; names
+ * met once the pool is full are used as they are.
+ */
+public final class NamePool {
+
+    private static final int MAX_SIZE = Integer.getInteger(NamePool.class.getName() + ".maxSize", 10000);
+
+    private static final ConcurrentMap<String, String> names = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Added explicit private constructor as this is a utility class.
+     */
+    private NamePool() {
+
+    }
+
+    /**
+     * @param name
+     *            a name, or null.
+     * @return the pooled String equal to the name, or the name itself if it
+     *         is not pooled and the pool is full.
+     */
+    public static String canonical(String name) {
+        if (name == null) {
+            return null;
+        }
+        String pooled = names.get(name);
+        if (pooled != null) {
+            return pooled;
+        }
+        if (names.size() >= MAX_SIZE) {
+            return name;
+        }
+        pooled = names.putIfAbsent(name, name);
+        return pooled == null ? name : pooled;
+    }
+
+    /**
+     * @return the number of names pooled
+     */
+    public static int size() {
+        return names.size();
+    }
+}
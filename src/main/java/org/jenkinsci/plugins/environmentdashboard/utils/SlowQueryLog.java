@@ -0,0 +1,162 @@
+package org.jenkinsci.plugins.environmentdashboard.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide log of the SQL statements that took longer than a threshold,
+ * with their bind values, row count and elapsed time. Slow statements are
+ * written to the Jenkins log and the most recent ones are kept for the
+ * global configuration page.
+ *
+ * The threshold is set from the global configuration. The number of
+ * statements kept is bounded by the system property
+ * org.jenkinsci.plugins.environmentdashboard.utils.SlowQueryLog.maxSize.
+ */
+public final class SlowQueryLog {
+
+    private static final Logger LOGGER = Logger.getLogger(SlowQueryLog.class.getName());
+
+    private static final int MAX_SIZE = Integer.getInteger(SlowQueryLog.class.getName() + ".maxSize", 100);
+
+    /* Bind values longer than this are cut short in the log */
+    private static final int MAX_VALUE_LENGTH = 100;
+
+    private static volatile long thresholdMillis = 200;
+
+    /* Recent slow statements, oldest first */
+    private static final LinkedList<SlowQuery> queries = new LinkedList<SlowQuery>();
+
+    /**
+     * Added explicit private constructor as this is a utility class.
+     */
+    private SlowQueryLog() {
+
+    }
+
+    /**
+     * @param millis
+     *            log statements taking at least this long; zero or less
+     *            turns the log off.
+     */
+    public static void setThreshold(long millis) {
+        thresholdMillis = millis;
+    }
+
+    /**
+     * @return the threshold in milliseconds
+     */
+    public static long getThreshold() {
+        return thresholdMillis;
+    }
+
+    /**
+     * @param elapsedMillis
+     *            how long a statement took.
+     * @return true if a statement that took this long must be recorded.
+     */
+    public static boolean isSlow(long elapsedMillis) {
+        long threshold = thresholdMillis;
+        return threshold > 0 && elapsedMillis >= threshold;
+    }
+
+    /**
+     * Record a statement if it was slow.
+     *
+     * @param sql
+     *            the statement text.
+     * @param params
+     *            the bind values, by parameter index starting at 0.
+     * @param rows
+     *            the rows returned or changed, or -1 if unknown or failed.
+     * @param elapsedMillis
+     *            how long it took.
+     */
+    public static void record(String sql, Object[] params, long rows, long elapsedMillis) {
+        if (!isSlow(elapsedMillis)) {
+            return;
+        }
+        SlowQuery query = new SlowQuery(System.currentTimeMillis(), sql, format(params), rows, elapsedMillis);
+        synchronized (queries) {
+            queries.addLast(query);
+            while (queries.size() > MAX_SIZE) {
+                queries.removeFirst();
+            }
+        }
+        LOGGER.info("Slow dashboard query (" + elapsedMillis + " ms, " + rows + " rows): " + sql + " " + query.getParams());
+    }
+
+    /**
+     * @return the recent slow statements, newest first
+     */
+    public static List<SlowQuery> getRecent() {
+        List<SlowQuery> recent;
+        synchronized (queries) {
+            recent = new ArrayList<SlowQuery>(queries);
+        }
+        Collections.reverse(recent);
+        return recent;
+    }
+
+    private static String format(Object[] params) {
+        String[] values = new String[params.length];
+        for (int i = 0; i < params.length; i++) {
+            String value = String.valueOf(params[i]);
+            values[i] = value.length() > MAX_VALUE_LENGTH ? value.substring(0, MAX_VALUE_LENGTH) + "..." : value;
+        }
+        return Arrays.toString(values);
+    }
+
+    /**
+     * One slow statement.
+     */
+    public static final class SlowQuery {
+        private final long timestamp;
+        private final String sql;
+        private final String params;
+        private final long rows;
+        private final long elapsedMillis;
+
+        SlowQuery(long timestamp, String sql, String params, long rows, long elapsedMillis) {
+            this.timestamp = timestamp;
+            this.sql = sql;
+            this.params = params;
+            this.rows = rows;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * @return when the statement finished
+         */
+        public Date getTimestamp() {
+            return new Date(timestamp);
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        /**
+         * @return the bind values, e.g. "[env1, comp2]"
+         */
+        public String getParams() {
+            return params;
+        }
+
+        /**
+         * @return the rows returned or changed, or -1 if unknown or failed
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package org.jenkinsci.plugins.environmentdashboard.dao;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.jenkinsci.plugins.environmentdashboard.entity.Build;
+import org.jenkinsci.plugins.environmentdashboard.entity.Deployment;
+import org.jenkinsci.plugins.environmentdashboard.entity.DeploymentEvent;
+import org.jenkinsci.plugins.environmentdashboard.utils.DBConnection;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DashboardDAOTest {
+
+    static {
+        // Must be set before the first connection is made in this JVM.
+        System.setProperty(DBConnection.class.getName() + ".url",
+                "jdbc:h2:mem:env-dashboard-dao-test;DB_CLOSE_DELAY=-1;MVCC=true");
+    }
+
+    private DashboardDAO dao;
+
+    private long now;
+
+    @Before
+    public void setUp() throws Exception {
+        dao = new DashboardDAO();
+        dao.createDashboardTable();
+        dao.truncateEnvDashboard();
+        dao.addColumn("ticket");
+        now = System.currentTimeMillis();
+    }
+
+    private DeploymentEvent event(String env, String comp, int build) {
+        Build b = new Build(String.valueOf(build), "job/" + comp + "/" + build + "/", "SUCCESS", env, comp, "", "");
+        return new DeploymentEvent("PRE", env + "=" + comp, b, Collections.singletonMap("ticket", "T-" + build),
+                now + build);
+    }
+
+    @Test
+    public void testFivePairsArePadded() throws Exception {
+        List<DeploymentEvent> events = new ArrayList<DeploymentEvent>();
+        List<String[]> pairs = new ArrayList<String[]>();
+        for (int i = 0; i < 5; i++) {
+            events.add(event("dev", "comp" + i, i));
+            pairs.add(new String[] { "dev", "comp" + i });
+        }
+        dao.recordDeployments(events);
+
+        // Five pairs pad to a bucket of eight, three groups past the end.
+        Map<String, Deployment> latest = dao.getLatestDeployments(pairs);
+        assertEquals(5, latest.size());
+        assertEquals("T-3", latest.get("dev=comp3").getCustom("ticket"));
+    }
+
+    @Test
+    public void testFiveIdsArePadded() throws Exception {
+        List<DeploymentEvent> events = new ArrayList<DeploymentEvent>();
+        for (int i = 0; i < 6; i++) {
+            events.add(event("dev", "web", i));
+        }
+        dao.recordDeployments(events);
+
+        // The custom values of five deployments are read with eight ids.
+        List<Deployment> history = dao.getHistory("dev", "web", 5, null, 0);
+        assertEquals(5, history.size());
+        List<Long> ids = new ArrayList<Long>();
+        for (Deployment deployment : history) {
+            assertEquals("T-" + deployment.getId(), deployment.getCustom("ticket"));
+            ids.add(deployment.getDeploymentId());
+        }
+        assertEquals(5, dao.getCustomValues(ids).size());
+    }
+
+    @Test
+    public void testNamesAreStoredOnce() throws Exception {
+        List<DeploymentEvent> events = new ArrayList<DeploymentEvent>();
+        for (int i = 0; i < 4; i++) {
+            events.add(event("dev", "web", i));
+        }
+        events.add(event("qa", "web", 4));
+        dao.recordDeployments(events);
+        Build post = new Build("3", "job/web/3/", "FAILURE", "dev", "web", "", "");
+        dao.recordDeployments(Collections.singletonList(new DeploymentEvent("POST", "dev=web", post,
+                Collections.<String, String> emptyMap(), now + 10)));
+
+        assertEquals(2, count("SELECT COUNT(*) FROM env_dashboard_env WHERE name IN ('dev', 'qa')"));
+        assertEquals(1, count("SELECT COUNT(*) FROM env_dashboard_comp WHERE name = 'web'"));
+        assertEquals("FAILURE", dao.getLatestDeployments().get("dev=web").getResult());
+        assertEquals(Arrays.asList("dev", "qa"), dao.getEnvironments());
+        assertEquals(1, dao.getHistory("qa", "web", 10, null, 0).size());
+    }
+
+    @Test
+    public void testConcurrentNewNameIsShared() throws Exception {
+        // Another writer adds the same new environment and has not committed yet.
+        final Connection other = DBConnection.getConnection();
+        try {
+            other.setAutoCommit(false);
+            Statement stat = other.createStatement();
+            stat.execute("INSERT INTO env_dashboard_env (name) VALUES ('race');");
+            stat.close();
+            Thread committer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(200);
+                        other.commit();
+                    } catch (Exception e) {
+                        // The recording below then fails on the lock.
+                    }
+                }
+            };
+            committer.start();
+            dao.recordDeployments(Collections.singletonList(event("race", "web", 1)));
+            committer.join();
+        } finally {
+            other.setAutoCommit(true);
+            DBConnection.closeConnection(other);
+        }
+
+        assertEquals(1, count("SELECT COUNT(*) FROM env_dashboard_env WHERE name = 'race'"));
+        assertEquals("1", dao.getLatestDeployments().get("race=web").getId());
+    }
+
+    @Test
+    public void testLegacyNameColumnsAreMigrated() throws Exception {
+        Connection conn = DBConnection.getConnection();
+        try {
+            Statement stat = conn.createStatement();
+            stat.execute("DROP ALL OBJECTS;");
+            stat.execute("CREATE TABLE env_dashboard (envComp VARCHAR(255), jobUrl VARCHAR(255), buildNum VARCHAR(255), "
+                    + "buildStatus VARCHAR(255), envName VARCHAR(255), compName VARCHAR(255), created_at TIMESTAMP, "
+                    + "buildJobUrl VARCHAR(255), packageName VARCHAR(255), ticket VARCHAR(255));");
+            stat.execute("CREATE INDEX env_dashboard_env_comp_time_idx ON env_dashboard (envName, compName, created_at);");
+            stat.execute("INSERT INTO env_dashboard VALUES ('dev=web', 'job/web/1/', '1', 'SUCCESS', 'dev', 'web', "
+                    + "NOW(), '', '', 'T-1'), ('dev=web', 'job/web/2/', '2', 'FAILURE', 'dev', 'web', NOW(), '', '', 'T-2');");
+            stat.close();
+        } finally {
+            DBConnection.closeConnection(conn);
+        }
+        DashboardDAO.invalidateSchema();
+        dao.createDashboardTable();
+
+        assertEquals(0, count("SELECT COUNT(*) FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_NAME = 'ENV_DASHBOARD' "
+                + "AND COLUMN_NAME IN ('ENVCOMP', 'ENVNAME', 'COMPNAME', 'BUILDSTATUS')"));
+        assertEquals(1, count("SELECT COUNT(*) FROM env_dashboard_env"));
+        List<Deployment> history = dao.getHistory("dev", "web", 10, null, 0);
+        assertEquals(2, history.size());
+        assertEquals("dev", history.get(0).getEnvironment());
+        assertEquals("T-" + history.get(0).getId(), history.get(0).getCustom("ticket"));
+        assertNotNull(dao.getLatestDeployments().get("dev=web"));
+        assertEquals(Arrays.asList("web"), dao.getComponents());
+
+        // The migrated build can still be updated by its POST.
+        Build post = new Build("2", "job/web/2/", "SUCCESS", "dev", "web", "", "");
+        dao.recordDeployments(Collections.singletonList(new DeploymentEvent("POST", "dev=web", post,
+                Collections.<String, String> emptyMap(), now + 10)));
+        assertEquals("SUCCESS", dao.getHistory("dev", "web", 1, null, 0).get(0).getResult());
+    }
+
+    private static int count(String query) throws Exception {
+        Connection conn = DBConnection.getConnection();
+        try {
+            Statement stat = conn.createStatement();
+            ResultSet rs = stat.executeQuery(query);
+            rs.next();
+            int count = rs.getInt(1);
+            stat.close();
+            return count;
+        } finally {
+            DBConnection.closeConnection(conn);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package org.jenkinsci.plugins.environmentdashboard.entity;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DeploymentTest {
+
+    private static Deployment deployment(String status, String packageName) {
+        String[] columns = { "ticket", "owner" };
+        return new Deployment(7, "dev", "web", status, "job/web/", "job/web/3/", "3", 1000L, packageName, columns,
+                Deployment.customValues(columns, Collections.singletonMap("ticket", "ABC-1")));
+    }
+
+    @Test
+    public void testFields() throws Exception {
+        Deployment d = deployment("FAILURE", null);
+        assertEquals(7, d.getDeploymentId());
+        assertEquals("3", d.getId());
+        assertEquals("job/web/3/", d.getUrl());
+        assertEquals("job/web/", d.getJobUrl());
+        assertEquals(Deployment.Status.FAILURE, d.getStatus());
+        assertEquals("", d.getPackages());
+        assertEquals(1000L, d.getTimestamp().getTime());
+        assertEquals("ABC-1", d.getCustom("ticket"));
+        assertNull(d.getCustom("owner"));
+        assertNull(d.getCustom("missing"));
+        assertEquals(Deployment.Status.UNKNOWN, deployment("", "pkg").getStatus());
+    }
+
+    @Test
+    public void testToMap() throws Exception {
+        Map<String, String> fields = deployment("SUCCESS", "pkg").toMap();
+        assertEquals("7", fields.get("id"));
+        assertEquals("3", fields.get("buildNum"));
+        assertEquals("SUCCESS", fields.get("buildstatus"));
+        assertEquals("job/web/3/", fields.get("jobUrl"));
+        assertEquals("job/web/", fields.get("buildJobUrl"));
+        assertEquals("pkg", fields.get("packageName"));
+        assertEquals("ABC-1", fields.get("ticket"));
+        assertFalse(fields.containsKey("owner"));
+    }
+
+    @Test
+    public void testImmutable() throws Exception {
+        Deployment d = deployment("SUCCESS", "pkg");
+        try {
+            d.setResult("FAILURE");
+            fail();
+        } catch (UnsupportedOperationException e) {
+            assertEquals("SUCCESS", d.getResult());
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.jenkinsci.plugins.environmentdashboard.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.jenkinsci.plugins.environmentdashboard.entity.Build;
+import org.jenkinsci.plugins.environmentdashboard.entity.DeploymentEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FileDashboardStoreTest {
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private File dir;
+
+    private File log;
+
+    private FileDashboardStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("file-store", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        log = new File(dir, "jenkins_dashboard.log");
+        store = new FileDashboardStore(log);
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private static DeploymentEvent event(String env, String comp, int build, long at) {
+        Build b = new Build(String.valueOf(build), "job/" + comp + "/" + build + "/", "SUCCESS", env, comp, "", "");
+        return new DeploymentEvent("PRE", env + "=" + comp, b, Collections.<String, String> emptyMap(), at);
+    }
+
+    private FileDashboardStore reopen() throws IOException {
+        store.close();
+        store = new FileDashboardStore(log);
+        store.open();
+        return store;
+    }
+
+    @Test
+    public void testCompactionSurvivesReopen() throws Exception {
+        long now = System.currentTimeMillis();
+        store.recordDeployments(Arrays.asList(event("dev", "web", 1, now - 10 * DAY_MILLIS),
+                event("dev", "web", 2, now)));
+        assertEquals(1, store.pruneDeployments(5, 100));
+        assertFalse(new File(log.getPath() + ".tmp").exists());
+
+        assertEquals("2", reopen().getLatest("dev", "web").getId());
+        assertEquals(1, store.getHistory("dev", "web", 10, null, 0).size());
+    }
+
+    @Test
+    public void testRecoversInterruptedCompaction() throws Exception {
+        long now = System.currentTimeMillis();
+        store.recordDeployments(Collections.singletonList(event("dev", "web", 1, now)));
+        store.close();
+        // A crash after the old log was moved aside and before the rename.
+        assertTrue(log.renameTo(new File(log.getPath() + ".tmp")));
+
+        assertEquals("1", reopen().getLatest("dev", "web").getId());
+        assertTrue(log.exists());
+        assertFalse(new File(log.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void testReplaceKeepsOneWholeFile() throws Exception {
+        File tmp = new File(log.getPath() + ".tmp");
+        assertTrue(tmp.createNewFile());
+        assertTrue(log.createNewFile());
+        FileDashboardStore.replace(tmp, log);
+        assertTrue(log.exists());
+        assertFalse(tmp.exists());
+        assertFalse(new File(log.getPath() + ".old").exists());
+    }
+}
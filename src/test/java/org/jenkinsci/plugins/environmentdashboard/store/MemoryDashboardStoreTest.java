@@ -0,0 +1,91 @@
+package org.jenkinsci.plugins.environmentdashboard.store;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.jenkinsci.plugins.environmentdashboard.entity.Build;
+import org.jenkinsci.plugins.environmentdashboard.entity.Deployment;
+import org.jenkinsci.plugins.environmentdashboard.entity.DeploymentEvent;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MemoryDashboardStoreTest {
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private static DeploymentEvent event(String runTime, String env, String comp, int build, String result, long at) {
+        Build b = new Build(String.valueOf(build), "job/" + comp + "/" + build + "/", result, env, comp, "", "");
+        return new DeploymentEvent(runTime, env + "=" + comp, b, Collections.<String, String> emptyMap(), at);
+    }
+
+    @Test
+    public void testLatestFollowsPostAndNoDeploy() throws Exception {
+        MemoryDashboardStore store = new MemoryDashboardStore();
+        long now = System.currentTimeMillis();
+        store.recordDeployments(Arrays.asList(
+                event("PRE", "dev", "web", 1, "RUNNING", now - 2000),
+                event("POST", "dev", "web", 1, "SUCCESS", now - 1000),
+                event("PRE", "dev", "web", 2, "RUNNING", now)));
+        assertEquals("2", store.getLatest("dev", "web").getId());
+
+        store.recordDeployments(Collections.singletonList(event("NODEPLOY", "dev", "web", 2, "", now)));
+        Deployment latest = store.getLatest("dev", "web");
+        assertEquals("1", latest.getId());
+        assertEquals("SUCCESS", latest.getResult());
+        assertNull(store.getLatest("dev", "db"));
+        assertEquals(1, store.getLatestGrid().size());
+    }
+
+    @Test
+    public void testHistoryPages() throws Exception {
+        MemoryDashboardStore store = new MemoryDashboardStore();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            // Two deployments share every timestamp, so pages must break ties by id.
+            store.recordDeployments(Arrays.asList(event("PRE", "dev", "web", 2 * i, "SUCCESS", now + i),
+                    event("PRE", "qa", "web", 2 * i + 1, "SUCCESS", now + i)));
+        }
+        List<Deployment> first = store.getHistory(null, "web", 4, null, 0);
+        assertEquals(Arrays.asList("9", "8", "7", "6"), Arrays.asList(first.get(0).getId(),
+                first.get(1).getId(), first.get(2).getId(), first.get(3).getId()));
+        Deployment last = first.get(3);
+        List<Deployment> second = store.getHistory(null, "web", 4, last.getTimestamp(),
+                last.getDeploymentId());
+        assertEquals("5", second.get(0).getId());
+        assertEquals(5, store.getHistory("qa", null, 10, null, 0).size());
+        assertEquals(Arrays.asList("dev", "qa"), store.getEnvironments());
+    }
+
+    @Test
+    public void testCustomColumns() throws Exception {
+        MemoryDashboardStore store = new MemoryDashboardStore();
+        assertTrue(store.addColumn("Ticket VARCHAR"));
+        assertFalse(store.addColumn("ticket"));
+        Build b = new Build("1", "job/web/1/", "SUCCESS", "dev", "web", "", "");
+        store.recordDeployments(Collections.singletonList(new DeploymentEvent("PRE", "dev=web", b,
+                Collections.singletonMap("Ticket", "ABC-1"), System.currentTimeMillis())));
+        assertEquals("ABC-1", store.getLatest("dev", "web").getCustom("ticket"));
+
+        store.dropColumn("ticket");
+        assertNull(store.getLatest("dev", "web").getCustom("ticket"));
+        assertEquals(1, store.pruneDroppedColumns(1000));
+        assertEquals(0, store.pruneDroppedColumns(1000));
+    }
+
+    @Test
+    public void testPruneDeployments() throws Exception {
+        MemoryDashboardStore store = new MemoryDashboardStore();
+        long now = System.currentTimeMillis();
+        store.recordDeployments(Arrays.asList(event("PRE", "dev", "web", 1, "SUCCESS", now - 40 * DAY_MILLIS),
+                event("PRE", "dev", "web", 2, "SUCCESS", now - 35 * DAY_MILLIS),
+                event("PRE", "dev", "db", 3, "SUCCESS", now)));
+        long revision = store.getRevision();
+        assertEquals(0, store.pruneDeployments(0, 1));
+        assertEquals(2, store.pruneDeployments(30, 1));
+        assertTrue(store.getRevision() > revision);
+        assertNull(store.getLatest("dev", "web"));
+        assertEquals(Collections.singletonList("db"), store.getComponents());
+    }
+}
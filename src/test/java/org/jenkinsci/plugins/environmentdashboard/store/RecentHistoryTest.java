@@ -0,0 +1,80 @@
+package org.jenkinsci.plugins.environmentdashboard.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.jenkinsci.plugins.environmentdashboard.entity.Build;
+import org.jenkinsci.plugins.environmentdashboard.entity.Deployment;
+import org.jenkinsci.plugins.environmentdashboard.entity.DeploymentEvent;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RecentHistoryTest {
+
+    private MemoryDashboardStore store;
+
+    private long now;
+
+    @Before
+    public void setUp() throws Exception {
+        RecentHistory.clear();
+        store = new MemoryDashboardStore();
+        now = System.currentTimeMillis();
+        for (int i = 1; i <= 4; i++) {
+            store.recordDeployments(Collections.singletonList(event("PRE", i, "SUCCESS", now + i)));
+        }
+    }
+
+    private static DeploymentEvent event(String runTime, int build, String result, long at) {
+        Build b = new Build(String.valueOf(build), "job/web/" + build + "/", result, "dev", "web", "", "");
+        return new DeploymentEvent(runTime, "dev=web", b, Collections.<String, String> emptyMap(), at);
+    }
+
+    private static List<String> buildNums(List<Deployment> deployments) {
+        List<String> nums = new ArrayList<String>();
+        for (Deployment deployment : deployments) {
+            nums.add(deployment.getId() + ":" + deployment.getResult());
+        }
+        return nums;
+    }
+
+    @Test
+    public void testWritesArePushed() throws Exception {
+        List<Deployment> before = RecentHistory.get(store, "dev", "web", 3);
+        assertEquals(Arrays.asList("4:SUCCESS", "3:SUCCESS", "2:SUCCESS"), buildNums(before));
+
+        store.recordDeployments(Collections.singletonList(event("PRE", 5, "RUNNING", now + 5)));
+        store.recordDeployments(Collections.singletonList(event("POST", 5, "FAILURE", now + 6)));
+        assertEquals(Arrays.asList("5:FAILURE", "4:SUCCESS", "3:SUCCESS"),
+                buildNums(RecentHistory.get(store, "dev", "web", 3)));
+        // Lists handed out before the writes do not change.
+        assertEquals(Arrays.asList("4:SUCCESS", "3:SUCCESS", "2:SUCCESS"), buildNums(before));
+    }
+
+    @Test
+    public void testDeletedDeploymentReloads() throws Exception {
+        RecentHistory.get(store, "dev", "web", 3);
+        store.recordDeployments(Collections.singletonList(event("NODEPLOY", 4, "", now + 5)));
+        assertEquals(Arrays.asList("3:SUCCESS", "2:SUCCESS", "1:SUCCESS"),
+                buildNums(RecentHistory.get(store, "dev", "web", 3)));
+    }
+
+    @Test
+    public void testCapacity() throws Exception {
+        assertNull(RecentHistory.get(store, "dev", "web", Integer.MAX_VALUE));
+        assertEquals(2, RecentHistory.get(store, "dev", "web", 2).size());
+        assertTrue(RecentHistory.get(store, "dev", "db", 2).isEmpty());
+        Map<String, Number> stats = RecentHistory.getStatistics();
+        assertEquals(2, stats.get("pairs").intValue());
+        assertTrue(stats.get("estimatedBytes").longValue() > 0);
+
+        store.pruneDeployments(1, 100);
+        store.addColumn("ticket");
+        assertEquals(0, RecentHistory.getStatistics().get("pairs").intValue());
+    }
+}
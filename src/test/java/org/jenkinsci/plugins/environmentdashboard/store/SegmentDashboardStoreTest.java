@@ -0,0 +1,176 @@
+package org.jenkinsci.plugins.environmentdashboard.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.jenkinsci.plugins.environmentdashboard.entity.Build;
+import org.jenkinsci.plugins.environmentdashboard.entity.Deployment;
+import org.jenkinsci.plugins.environmentdashboard.entity.DeploymentEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SegmentDashboardStoreTest {
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private File dir;
+
+    private SegmentDashboardStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("segment-store", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        store = new SegmentDashboardStore(dir);
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private static DeploymentEvent event(String runTime, String env, String comp, int build, String result, long at) {
+        Build b = new Build(String.valueOf(build), "job/" + comp + "/" + build + "/", result, env, comp, "", "");
+        return new DeploymentEvent(runTime, env + "=" + comp, b, Collections.<String, String> emptyMap(), at);
+    }
+
+    private static List<String> buildNums(List<Deployment> deployments) {
+        List<String> nums = new ArrayList<String>();
+        for (Deployment deployment : deployments) {
+            nums.add(deployment.getId());
+        }
+        return nums;
+    }
+
+    @Test
+    public void testLatestFollowsPostAndNoDeploy() throws Exception {
+        long now = System.currentTimeMillis();
+        store.recordDeployments(Arrays.asList(
+                event("PRE", "dev", "web", 1, "RUNNING", now - 2000),
+                event("POST", "dev", "web", 1, "SUCCESS", now - 1000),
+                event("PRE", "dev", "web", 2, "RUNNING", now)));
+        assertEquals("2", store.getLatest("dev", "web").getId());
+
+        store.recordDeployments(Collections.singletonList(event("NODEPLOY", "dev", "web", 2, "", now)));
+        Deployment latest = store.getLatest("dev", "web");
+        assertEquals("1", latest.getId());
+        assertEquals("SUCCESS", latest.getResult());
+        assertNull(store.getLatest("dev", "db"));
+        assertEquals(1, store.getLatestGrid().size());
+        assertEquals(Collections.singletonList("1"), buildNums(store.getHistory("dev", "web", 10, null, 0)));
+    }
+
+    @Test
+    public void testHistoryPages() throws Exception {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            // Two deployments share every timestamp, so pages must break ties by id.
+            store.recordDeployments(Arrays.asList(event("PRE", "dev", "web", 2 * i, "SUCCESS", now + i),
+                    event("PRE", "qa", "web", 2 * i + 1, "SUCCESS", now + i)));
+        }
+        List<Deployment> first = store.getHistory(null, "web", 4, null, 0);
+        assertEquals(Arrays.asList("9", "8", "7", "6"), buildNums(first));
+        Deployment last = first.get(3);
+        List<Deployment> second = store.getHistory(null, "web", 4, last.getTimestamp(),
+                last.getDeploymentId());
+        assertEquals(Arrays.asList("5", "4", "3", "2"), buildNums(second));
+        assertEquals(5, store.getHistory("qa", null, 10, null, 0).size());
+        assertEquals(Arrays.asList("dev", "qa"), store.getEnvironments());
+    }
+
+    @Test
+    public void testReopenReplaysSegments() throws Exception {
+        long now = System.currentTimeMillis();
+        assertTrue(store.addColumn("Ticket VARCHAR"));
+        Build b = new Build("1", "job/web/1/", "RUNNING", "dev", "web", "", "");
+        store.recordDeployments(Collections.singletonList(new DeploymentEvent("PRE", "dev=web", b,
+                Collections.singletonMap("Ticket", "ABC-1"), now)));
+        store.close();
+
+        store = new SegmentDashboardStore(dir);
+        assertEquals("ABC-1", store.getLatest("dev", "web").getCustom("ticket"));
+        // The build is still running after the restart, so POST finds it.
+        store.recordDeployments(Collections.singletonList(event("POST", "dev", "web", 1, "SUCCESS", now + 1)));
+        store.recordDeployments(Collections.singletonList(event("PRE", "dev", "web", 2, "RUNNING", now + 2)));
+        assertEquals(Arrays.asList("2", "1"), buildNums(store.getHistory("dev", "web", 10, null, 0)));
+        assertEquals("SUCCESS", store.getHistory("dev", "web", 10, null, 0).get(1).getResult());
+    }
+
+    @Test
+    public void testNamesAreWrittenOncePerSegment() throws Exception {
+        long now = System.currentTimeMillis();
+        String env = "production-eu-west-and-a-long-environment-name-to-show-up-in-the-segment-size";
+        store.recordDeployments(Collections.singletonList(event("PRE", env, "web", 1, "SUCCESS", now)));
+        long first = ((Number) store.getStatistics().get("segmentBytes")).longValue();
+        store.recordDeployments(Collections.singletonList(event("PRE", env, "web", 2, "SUCCESS", now + 1)));
+        long second = ((Number) store.getStatistics().get("segmentBytes")).longValue() - first;
+        assertTrue(second < first - env.length());
+        store.close();
+
+        store = new SegmentDashboardStore(dir);
+        List<Deployment> history = store.getHistory(env, "web", 10, null, 0);
+        assertEquals(Arrays.asList("2", "1"), buildNums(history));
+        assertSame(history.get(0).getEnvironment(), history.get(1).getEnvironment());
+    }
+
+    @Test
+    public void testTornFrameIsDiscarded() throws Exception {
+        long now = System.currentTimeMillis();
+        store.recordDeployments(Collections.singletonList(event("PRE", "dev", "web", 1, "SUCCESS", now)));
+        long end = ((Number) store.getStatistics().get("segmentBytes")).longValue();
+        store.recordDeployments(Collections.singletonList(event("PRE", "dev", "web", 2, "SUCCESS", now + 1)));
+        store.close();
+
+        // Corrupt the second frame as a crash during its write would.
+        RandomAccessFile segment = new RandomAccessFile(new File(dir, "0000000001.segment"), "rw");
+        segment.seek(end + 12);
+        segment.writeInt(0xdeadbeef);
+        segment.close();
+
+        store = new SegmentDashboardStore(dir);
+        assertEquals("1", store.getLatest("dev", "web").getId());
+        store.recordDeployments(Collections.singletonList(event("PRE", "dev", "web", 3, "SUCCESS", now + 2)));
+        assertEquals(Arrays.asList("3", "1"), buildNums(store.getHistory("dev", "web", 10, null, 0)));
+    }
+
+    @Test
+    public void testPruneDeletesExpiredSegments() throws Exception {
+        long now = System.currentTimeMillis();
+        store.recordDeployments(Arrays.asList(event("PRE", "dev", "web", 1, "SUCCESS", now - 40 * DAY_MILLIS),
+                event("PRE", "dev", "db", 2, "SUCCESS", now - 35 * DAY_MILLIS)));
+        store.close();
+
+        // Segments only roll when full, so start a new one by hand.
+        File first = new File(dir, "0000000001.segment");
+        RandomAccessFile segment = new RandomAccessFile(first, "rw");
+        long size = segment.length();
+        segment.close();
+        RandomAccessFile second = new RandomAccessFile(new File(dir, "0000000002.segment"), "rw");
+        second.setLength(size);
+        second.close();
+
+        store = new SegmentDashboardStore(dir);
+        store.recordDeployments(Collections.singletonList(event("PRE", "dev", "web", 3, "SUCCESS", now)));
+        long revision = store.getRevision();
+        assertEquals(0, store.pruneDeployments(0, 1));
+        assertEquals(2, store.pruneDeployments(30, 1));
+        assertFalse(first.exists());
+        assertTrue(store.getRevision() > revision);
+        assertEquals("3", store.getLatest("dev", "web").getId());
+        assertNull(store.getLatest("dev", "db"));
+        assertEquals(Collections.singletonList("web"), store.getComponents());
+        assertEquals(Collections.singletonList("3"), buildNums(store.getHistory("dev", "web", 10, null, 0)));
+    }
+}
@@ -0,0 +1,82 @@
+package org.jenkinsci.plugins.environmentdashboard.utils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConnectionPoolTest {
+
+    private ConnectionPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        Class.forName("org.h2.Driver");
+        pool = new ConnectionPool("jdbc:h2:mem:pooltest;DB_CLOSE_DELAY=-1", 2, 100, 0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.close();
+    }
+
+    @Test
+    public void testBorrowAndReturn() throws Exception {
+        Connection conn = pool.borrow();
+        assertEquals(1, pool.getStats().getActive());
+        conn.close();
+        assertTrue(conn.isClosed());
+        assertEquals(0, pool.getStats().getActive());
+        assertEquals(1, pool.getStats().getIdle());
+
+        // The idle connection is reused rather than a new one opened.
+        pool.borrow().close();
+        assertEquals(1, pool.getStats().getCreatedCount());
+        assertEquals(2, pool.getStats().getBorrowCount());
+    }
+
+    @Test
+    public void testBorrowTimesOutWhenFull() throws Exception {
+        Connection first = pool.borrow();
+        Connection second = pool.borrow();
+        try {
+            pool.borrow();
+            fail("Expected the pool to be exhausted");
+        } catch (SQLException e) {
+            assertEquals(1, pool.getStats().getTimeoutCount());
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test(expected = SQLException.class)
+    public void testReturnedConnectionIsUnusable() throws Exception {
+        Connection conn = pool.borrow();
+        conn.close();
+        conn.createStatement();
+    }
+
+    @Test
+    public void testPreparedStatementIsReused() throws Exception {
+        Connection conn = pool.borrow();
+        conn.prepareStatement("SELECT 1").close();
+        conn.close();
+
+        // The same physical connection hands back the cached statement.
+        conn = pool.borrow();
+        PreparedStatement stat = conn.prepareStatement("SELECT 1");
+        ResultSet rs = stat.executeQuery();
+        assertTrue(rs.next());
+        assertEquals(1, rs.getInt(1));
+        conn.close();
+        assertEquals(1, pool.getStats().getStatementMisses());
+        assertEquals(1, pool.getStats().getStatementHits());
+    }
+}
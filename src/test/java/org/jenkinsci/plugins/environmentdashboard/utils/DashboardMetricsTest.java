@@ -0,0 +1,23 @@
+package org.jenkinsci.plugins.environmentdashboard.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DashboardMetricsTest {
+
+    @Test
+    public void testRecord() throws Exception {
+        DashboardMetrics.Operation op = DashboardMetrics.operation("DashboardMetricsTest.testRecord");
+        assertSame(op, DashboardMetrics.operation("DashboardMetricsTest.testRecord"));
+
+        op.record(System.nanoTime());
+        op.error();
+        op.record(System.nanoTime());
+
+        assertEquals(2, op.getCount());
+        assertEquals(1, op.getErrors());
+        assertEquals(2, op.getLatency().getCount());
+        assertSame(op, DashboardMetrics.getOperations().get("DashboardMetricsTest.testRecord"));
+    }
+}
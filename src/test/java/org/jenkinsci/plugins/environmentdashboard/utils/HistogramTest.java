@@ -0,0 +1,36 @@
+package org.jenkinsci.plugins.environmentdashboard.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test
+    public void testRecord() throws Exception {
+        Histogram histogram = new Histogram(new long[] { 1, 10, 100 });
+        histogram.record(1);
+        histogram.record(5);
+        histogram.record(50);
+        histogram.record(500);
+
+        assertEquals(4, histogram.getCount());
+        assertEquals(500, histogram.getMax());
+        assertEquals(139.0, histogram.getMean(), 0.001);
+        assertArrayEquals(new long[] { 1, 1, 1, 1 }, histogram.getCounts());
+    }
+
+    @Test
+    public void testGetPercentile() throws Exception {
+        Histogram histogram = new Histogram(new long[] { 1, 10, 100 });
+        assertEquals(0, histogram.getPercentile(0.5));
+        for (int i = 0; i < 99; i++) {
+            histogram.record(3);
+        }
+        histogram.record(1000);
+
+        assertEquals(10, histogram.getPercentile(0.5));
+        assertEquals(10, histogram.getPercentile(0.99));
+        assertEquals(1000, histogram.getPercentile(1.0));
+    }
+}
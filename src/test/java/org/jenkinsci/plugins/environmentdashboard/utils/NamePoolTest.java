@@ -0,0 +1,18 @@
+package org.jenkinsci.plugins.environmentdashboard.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NamePoolTest {
+
+    @Test
+    public void testCanonical() throws Exception {
+        String first = NamePool.canonical(new String("production"));
+        String second = NamePool.canonical(new String("production"));
+        assertEquals("production", second);
+        assertSame(first, second);
+        assertNull(NamePool.canonical(null));
+        assertTrue(NamePool.size() > 0);
+    }
+}
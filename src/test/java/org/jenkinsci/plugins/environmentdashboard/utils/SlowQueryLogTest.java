@@ -0,0 +1,35 @@
+package org.jenkinsci.plugins.environmentdashboard.utils;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SlowQueryLogTest {
+
+    @After
+    public void tearDown() throws Exception {
+        SlowQueryLog.setThreshold(200);
+    }
+
+    @Test
+    public void testRecord() throws Exception {
+        SlowQueryLog.setThreshold(50);
+        int before = SlowQueryLog.getRecent().size();
+        SlowQueryLog.record("SELECT 1", new Object[] { "fast" }, 1, 49);
+        assertEquals(before, SlowQueryLog.getRecent().size());
+
+        SlowQueryLog.record("SELECT ?", new Object[] { "env1", null }, 3, 50);
+        SlowQueryLog.SlowQuery newest = SlowQueryLog.getRecent().get(0);
+        assertEquals("SELECT ?", newest.getSql());
+        assertEquals("[env1, null]", newest.getParams());
+        assertEquals(3, newest.getRows());
+        assertEquals(50, newest.getElapsedMillis());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        SlowQueryLog.setThreshold(0);
+        assertFalse(SlowQueryLog.isSlow(100000));
+    }
+}